@@ -2,16 +2,76 @@
 
 import Analysis from './src/analysis';
 import filterResults from './src/filterResults';
+import Instrumentation from './src/instrumentation';
+import MetricsCollector from './src/metrics';
+import prioritizeResults from './src/prioritizeResults';
+import ResponseCache from './src/responseCache';
+import ResultsExporter from './src/resultsExporter';
+import ResultsStore from './src/resultsStore';
+import ShardedAnalysis from './src/shardedAnalysis';
+import WatchAnalysis from './src/watchAnalysis';
 import writeTests from './src/writeTests';
 
+export { RunCancellation } from './src/analysis';
 export {
   cancelAnalysis,
+  getAllAnalysisResults,
   getAnalysisResults,
   getAnalysisStatus,
   getApiVersion,
   startAnalysis,
 } from './src/bindings';
-export { generateTestClass, groupResults, mergeIntoTestClass } from './src/combiner';
+export { generateTestClass, groupResults, groupResultsAsync, mergeIntoTestClass } from './src/combiner';
+export { PollEvent, QueueEvent, RequestEvent, WriteEvent } from './src/instrumentation';
+export { Histogram, serveMetrics } from './src/metrics';
+export {
+  defaultTagWeights,
+  getResultPhase,
+  ResultPrioritizer,
+  ResultPriorityOptions,
+  scoreResult,
+} from './src/prioritizeResults';
+export {
+  CircuitBreaker,
+  CircuitBreakerOptions,
+  CircuitState,
+  getCircuitBreaker,
+  HedgeOptions,
+  ResilienceOptions,
+  RetryOptions,
+} from './src/resilience';
+export { ResponseCacheOptions, sharedResponseCache } from './src/responseCache';
+export {
+  ColumnarBatch,
+  ColumnarDecoder,
+  ColumnarEncoder,
+  columnarHeader,
+  decodeColumnar,
+  ExportFormat,
+  ResultsExporterOptions,
+} from './src/resultsExporter';
+export { defaultMaxMemoryBytes, ResultsStoreOptions } from './src/resultsStore';
+export { partitionSettings, Shard, ShardedAnalysisOptions } from './src/shardedAnalysis';
 export * from './src/types/types';
-export { Analysis, filterResults, writeTests };
+export {
+  getChangedClasses,
+  getClassName,
+  JarEntries,
+  readJarEntries,
+  WatchAnalysisOptions,
+  WatchedBuild,
+} from './src/watchAnalysis';
+export {
+  Analysis,
+  filterResults,
+  Instrumentation,
+  MetricsCollector,
+  prioritizeResults,
+  ResponseCache,
+  ResultsExporter,
+  ResultsStore,
+  ShardedAnalysis,
+  WatchAnalysis,
+  writeTests,
+};
 export default Analysis;
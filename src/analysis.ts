@@ -2,16 +2,25 @@
 
 //  tslint:disable:no-non-null-assertion
 
+import axios, { CancelTokenSource } from 'axios';
+import { map } from 'bluebird';
+
 import {
   cancelAnalysis,
+  getAllAnalysisResults,
   getAnalysisResults,
   getAnalysisStatus,
   getApiVersion,
   getDefaultSettings,
   startAnalysis,
 } from './bindings';
-import { getFileNameForResult, groupResults } from './combiner';
+import { getFileNameForResult, groupResultsAsync } from './combiner';
 import { AnalysisError, AnalysisErrorCode } from './errors';
+import Instrumentation, { startTimer, Timer } from './instrumentation';
+import { ResultPrioritizer } from './prioritizeResults';
+import ResultsExporter, { ResultsExporterOptions } from './resultsExporter';
+import ResultsStore from './resultsStore';
+import SymbolTable from './symbolTable';
 import {
   AnalysisCancelApiResponse,
   AnalysisFiles,
@@ -27,6 +36,7 @@ import {
   ComputedAnalysisSettings,
   endedStatuses,
   inProgressStatuses,
+  ResultsPaginationOptions,
   RunAnalysisOptions,
   UnknownAnalysisStatus,
   WriteTestsOptions,
@@ -34,9 +44,16 @@ import {
 import CancellableDelay from './utils/CancellableDelay';
 import writeTests from './writeTests';
 
+export const dependencies = {
+  createCancelTokenSource: axios.CancelToken.source,
+  map: map,
+};
+
 export const components = {
+  ResultsExporter: ResultsExporter,
   writeTests: writeTests,
   cancelAnalysis: cancelAnalysis,
+  getAllAnalysisResults: getAllAnalysisResults,
   getAnalysisResults: getAnalysisResults,
   getAnalysisStatus: getAnalysisStatus,
   getApiVersion: getApiVersion,
@@ -44,6 +61,14 @@ export const components = {
   startAnalysis: startAnalysis,
 };
 
+/** Cancel token sources for the requests and test writing of a run */
+export interface RunCancellation {
+  /** Canceled by `stopPolling`, aborting any request in progress */
+  requests: CancelTokenSource;
+  /** Canceled by `cancel`, stopping any test writing in progress */
+  writing: CancelTokenSource;
+}
+
 /** Class to run an analysis and keep track of its state */
 export default class Analysis {
   public static readonly unknownStatus: UnknownAnalysisStatus = 'UNKNOWN';
@@ -57,10 +82,15 @@ export default class Analysis {
   public status?: AnalysisStatus | UnknownAnalysisStatus;
   public error?: ApiErrorResponse;
   public results: AnalysisResult[] = [];
+  /** If set, results are accumulated here, and `results` holds only the latest poll's results */
+  public resultsStore?: ResultsStore;
   public cursor?: number;
   public apiVersion?: string;
   public pollDelay?: CancellableDelay<void>;
   public pollingStopped?: boolean;
+  /** Set when the analysis is run, so that stopping or canceling it aborts its requests and test writing */
+  public cancellation?: RunCancellation;
+  private queueTimer?: Timer;
 
   public constructor(
     apiUrl: string,
@@ -107,6 +137,28 @@ export default class Analysis {
   private updateStatus(status: AnalysisStatusApiResponse): void {
     this.status = AnalysisStatus[status.status];
     this.error = status.message;
+    if (this.queueTimer && this.status !== AnalysisStatus.QUEUED) {
+      this.instrument((instrumentation, analysisId) => {
+        instrumentation.queue({ analysisId: analysisId, durationMilliseconds: this.queueTimer!() });
+      });
+      this.queueTimer = undefined;
+    }
+  }
+
+  /** Get the bindings options, with the cancel token of the run if it has not yet been canceled */
+  private requestOptions(): BindingsOptions {
+    const cancellation = this.cancellation;
+    if (!cancellation || cancellation.requests.token.reason) {
+      return this.bindingsOptions;
+    }
+    return { ...this.bindingsOptions, cancelToken: cancellation.requests.token };
+  }
+
+  /** Call a function with the instrumentation from the bindings options, if it is set */
+  private instrument(report: (instrumentation: Instrumentation, analysisId: string) => void): void {
+    if (this.bindingsOptions.instrumentation) {
+      report(this.bindingsOptions.instrumentation, this.analysisId!);
+    }
   }
 
   /**
@@ -119,6 +171,7 @@ export default class Analysis {
    *
    * Will poll for latest results and analysis status every 60 seconds,
    * configurable via the `pollingInterval` option.
+   * If the `resultsPagination` option is specified, results are downloaded in pages of that size.
    *
    * If a directory is specified in the `outputTests` option,
    * tests will be written to that directory when the analysis completes.
@@ -127,12 +180,26 @@ export default class Analysis {
    * the concurrency when writing tests.
    * The `writingFilter` option can be used to specify a filter
    * to apply to the results before writing tests.
+   * If the `writeIncrementally` option is also set, tests are instead written as each polling attempt
+   * returns results, so partial results are on disk if the run is interrupted.
+   * If the `priority` option is also specified, tests are instead written as each polling attempt
+   * returns results, highest quality first, and results beyond each class's quality budget are dropped.
    *
    * If an `onResults` callback option is provided, this will be called
    * once for each group of results returned by each polling attempt.
+   * If it returns a promise, polling waits for it to settle before continuing,
+   * and at most `onResultsConcurrency` calls (default 1) are in progress at once.
+   *
+   * If a `resultsExporter` option is provided, the results returned by each polling attempt are written to it.
+   * If a `resultsStore` option is provided, results are kept in it rather than in `results`,
+   * and this method resolves with only the latest poll's results. Read every result from the store instead.
    *
    * If an `onError` callback option is provided, this will be called
    * with any error thrown, and this method will resolve rather than reject.
+   *
+   * Calling `stopPolling` aborts any request in progress, including the upload of the files,
+   * and tests are still written for the results fetched so far if `outputTests` is set.
+   * Calling `cancel` also stops any test writing in progress. In either case this method resolves.
    */
   public async run(
     files: AnalysisFiles,
@@ -140,35 +207,16 @@ export default class Analysis {
     options: RunAnalysisOptions = {},
   ): Promise<AnalysisResult[]> {
     try {
-      this.checkNotStarted();
-      this.pollingStopped = false;
-      const defaultPollingInterval = 60;  // seconds
-      const pollingIntervalMilliseconds = (options.pollingInterval || defaultPollingInterval) * 1000;
-      await this.start(files, settings);
-      while (this.isInProgress()) {
-        this.pollDelay = new CancellableDelay(pollingIntervalMilliseconds, undefined);
-        await this.pollDelay.promise;
-        this.pollDelay = undefined;
-        if (this.pollingStopped) {
-          // May have been changed by force stop
-          break;
-        }
-        const { results } = await this.getResults();
-        if (results.length && options.onResults) {
-          const groups = groupResults(results);
-          for (const resultGroup of Object.values(groups)) {
-            const fileName = getFileNameForResult(resultGroup[0]);
-            options.onResults(resultGroup, fileName);
-          }
-        }
-        if (this.isErrored()) {
-          throw new AnalysisError(
-            'Analysis ended with ERRORED status.',
-            AnalysisErrorCode.RUN_ERRORED,
-          );
+      const cancellation = this.prepareRun(options);
+      try {
+        await this.startAndPoll(files, settings, options);
+      } catch (error) {
+        // If only requests were aborted by `stopPolling`, tests are still written for the fetched results
+        if (!this.isAborted(error)) {
+          throw error;
         }
       }
-      if (options.outputTests) {
+      if (options.outputTests && !this.writesIncrementally(options) && !cancellation.writing.token.reason) {
         const writeOptions = {
           concurrency: options.writingConcurrency,
           filter: options.writingFilter,
@@ -176,6 +224,9 @@ export default class Analysis {
         await this.writeTests(options.outputTests, writeOptions);
       }
     } catch (error) {
+      if (this.isAborted(error)) {
+        return this.results;
+      }
       this.stopPolling();
       if (options.onError) {
         options.onError(error);
@@ -186,21 +237,153 @@ export default class Analysis {
     return this.results;
   }
 
-  /** If an analysis is being run, stop polling for results */
+  /** Start the analysis, and poll for results until it ends or polling is stopped */
+  private async startAndPoll(
+    files: AnalysisFiles,
+    settings: AnalysisSettings | undefined,
+    options: RunAnalysisOptions,
+  ): Promise<void> {
+    const defaultPollingInterval = 60;  // seconds
+    const pollingIntervalMilliseconds = (options.pollingInterval || defaultPollingInterval) * 1000;
+    const symbols = new SymbolTable();
+    const prioritizer = options.priority && options.outputTests ? new ResultPrioritizer(options.priority) : undefined;
+    await this.start(files, settings);
+    while (this.isInProgress()) {
+      this.pollDelay = new CancellableDelay(pollingIntervalMilliseconds, undefined);
+      await this.pollDelay.promise;
+      this.pollDelay = undefined;
+      if (this.pollingStopped) {
+        // May have been changed by force stop
+        break;
+      }
+      const pollTimer = this.bindingsOptions.instrumentation ? startTimer() : undefined;
+      const { results } = await this.getResults(true, options.resultsPagination);
+      this.instrument((instrumentation, analysisId) => {
+        instrumentation.poll({ analysisId: analysisId, results: results.length, durationMilliseconds: pollTimer!() });
+      });
+      if (results.length) {
+        await this.handleNewResults(results, options, symbols, prioritizer);
+      }
+      if (this.isErrored()) {
+        throw new AnalysisError(
+          'Analysis ended with ERRORED status.',
+          AnalysisErrorCode.RUN_ERRORED,
+        );
+      }
+    }
+  }
+
+  /** Check the analysis can be run, and reset the state of the run */
+  private prepareRun(options: RunAnalysisOptions): RunCancellation {
+    this.checkNotStarted();
+    this.pollingStopped = false;
+    this.cancellation = {
+      requests: dependencies.createCancelTokenSource(),
+      writing: dependencies.createCancelTokenSource(),
+    };
+    if (options.resultsStore) {
+      this.resultsStore = options.resultsStore;
+    }
+    return this.cancellation;
+  }
+
+  /** Check if a run writes tests after each poll, rather than when the analysis ends */
+  private writesIncrementally(options: RunAnalysisOptions): boolean {
+    return Boolean(options.outputTests && (options.priority || options.writeIncrementally));
+  }
+
+  /** Check if an error is from a request or test writing aborted by `stopPolling` or `cancel` */
+  private isAborted(error: Error): boolean {
+    return axios.isCancel(error) && Boolean(this.pollingStopped);
+  }
+
+  /**
+   * Pass new results to the `onResults` callback, write them to the `resultsExporter`,
+   * and write tests for them if results are being prioritized
+   */
+  private async handleNewResults(
+    results: AnalysisResult[],
+    options: RunAnalysisOptions,
+    symbols: SymbolTable,
+    prioritizer?: ResultPrioritizer,
+  ): Promise<void> {
+    if (options.resultsExporter) {
+      await options.resultsExporter.write(results);
+    }
+    if (options.onResults) {
+      const onResults = options.onResults;
+      const groups = await groupResultsAsync(results);
+      await dependencies.map(
+        Object.values(groups),
+        async (resultGroup) => onResults(resultGroup, getFileNameForResult(resultGroup[0], symbols)),
+        { concurrency: options.onResultsConcurrency || 1 },
+      );
+    }
+    if (options.outputTests && this.writesIncrementally(options)) {
+      await components.writeTests(options.outputTests, results, {
+        concurrency: options.writingConcurrency,
+        filter: options.writingFilter,
+        prioritizer: prioritizer,
+        instrumentation: this.bindingsOptions.instrumentation,
+        cancelToken: this.cancellation && this.cancellation.writing.token,
+      });
+    }
+  }
+
+  /** If an analysis is being run, stop polling for results, aborting any request in progress */
   public stopPolling(): void {
     if (this.pollDelay) {
       this.pollDelay.cancel();
     }
     this.pollingStopped = true;
+    if (this.cancellation && !this.cancellation.requests.token.reason) {
+      this.cancellation.requests.cancel('Polling stopped');
+    }
   }
 
   /**
    * Write test files to the specified directory using the current results
    *
    * The results to be used can be filtered by using the `filter` property of the `options` paramter.
+   * While the analysis is being run, writing is stopped if it is canceled.
    */
   public async writeTests(directoryPath: string, options?: WriteTestsOptions): Promise<string[]> {
-    return components.writeTests(directoryPath, this.results, options);
+    const instrumentation = this.bindingsOptions.instrumentation;
+    const writing = this.cancellation && this.cancellation.writing;
+    const results = this.resultsStore || this.results;
+    let writeOptions = options;
+    if (instrumentation && !(options && options.instrumentation)) {
+      writeOptions = { ...writeOptions, instrumentation: instrumentation };
+    }
+    if (writing && !writing.token.reason && !(options && options.cancelToken)) {
+      writeOptions = { ...writeOptions, cancelToken: writing.token };
+    }
+    return components.writeTests(directoryPath, results, writeOptions);
+  }
+
+  /**
+   * Export the current results to a file, returning the number of results written
+   *
+   * If `resultsStore` is set, its results are read and exported one source file at a time.
+   * See `ResultsExporter` for the formats supported.
+   */
+  public async exportResults(path: string, options?: ResultsExporterOptions): Promise<number> {
+    const exporter = new components.ResultsExporter(path, options);
+    try {
+      const store = this.resultsStore;
+      if (store) {
+        for (const sourceFilePath of store.sourceFilePaths()) {
+          await exporter.write(await store.getGroup(sourceFilePath));
+        }
+      } else {
+        await exporter.write(this.results);
+      }
+    } catch (error) {
+      await exporter.close().catch(() => undefined);
+      throw error;
+    }
+    await exporter.close();
+    return exporter.exported;
   }
 
   /**
@@ -217,6 +400,9 @@ export default class Analysis {
       try {
         await this.getDefaultSettings();
       } catch (error) {
+        if (axios.isCancel(error)) {
+          throw error;
+        }
         throw new AnalysisError(
           `Could not fetch default settings when starting analysis:\n${error.message}`,
           AnalysisErrorCode.START_DEFAULTS_FAILED,
@@ -228,17 +414,31 @@ export default class Analysis {
       this.apiUrl,
       files,
       settings || this.defaultSettings!,
-      this.bindingsOptions,
+      this.requestOptions(),
     );
     this.settings = settings;
     this.analysisId = response.id;
     this.computedSettings = response.settings;
     this.status = AnalysisStatus.QUEUED;
+    if (this.bindingsOptions.instrumentation) {
+      this.queueTimer = startTimer();
+    }
     return response;
   }
 
-  /** Cancel the analysis */
+  /**
+   * Cancel the analysis
+   *
+   * If the analysis is being run, polling is stopped and any test writing in progress is stopped first.
+   */
   public async cancel(): Promise<AnalysisCancelApiResponse> {
+    const cancellation = this.cancellation;
+    if (cancellation) {
+      this.stopPolling();
+      if (!cancellation.writing.token.reason) {
+        cancellation.writing.cancel('Analysis canceled');
+      }
+    }
     this.checkStarted();
     const response = await components.cancelAnalysis(this.apiUrl, this.analysisId!, this.bindingsOptions);
     this.updateStatus(response.status);
@@ -248,29 +448,41 @@ export default class Analysis {
   /** Get the analysis's status */
   public async getStatus(): Promise<AnalysisStatusApiResponse> {
     this.checkStarted();
-    const response = await components.getAnalysisStatus(this.apiUrl, this.analysisId!, this.bindingsOptions);
+    const response = await components.getAnalysisStatus(this.apiUrl, this.analysisId!, this.requestOptions());
     this.updateStatus(response);
     return response;
   }
 
-  /** Get the analysis's results */
-  public async getResults(useCursor: boolean = true): Promise<AnalysisResultsApiResponse> {
+  /**
+   * Get the analysis's results
+   *
+   * If pagination options are provided, every result is downloaded in pages (see `getAllAnalysisResults`).
+   * If `resultsStore` is set, new results are added to it rather than appended to `results`.
+   */
+  public async getResults(
+    useCursor: boolean = true,
+    pagination?: ResultsPaginationOptions,
+  ): Promise<AnalysisResultsApiResponse> {
     this.checkStarted();
-    const response = await components.getAnalysisResults(
-      this.apiUrl,
-      this.analysisId!,
-      useCursor ? this.cursor : undefined,
-      this.bindingsOptions,
-    );
+    const cursor = useCursor ? this.cursor : undefined;
+    const options = this.requestOptions();
+    const response = pagination
+      ? await components.getAllAnalysisResults(this.apiUrl, this.analysisId!, cursor, pagination, options)
+      : await components.getAnalysisResults(this.apiUrl, this.analysisId!, cursor, options);
     this.cursor = response.cursor;
-    this.results = useCursor ? [...this.results, ...response.results] : response.results;
+    if (this.resultsStore && useCursor) {
+      await this.resultsStore.add(response.results);
+      this.results = response.results;
+    } else {
+      this.results = useCursor ? [...this.results, ...response.results] : response.results;
+    }
     this.updateStatus(response.status);
     return response;
   }
 
   /** Get default analysis settings */
   public async getDefaultSettings(): Promise<ComputedAnalysisSettings> {
-    const response = await components.getDefaultSettings(this.apiUrl, this.bindingsOptions);
+    const response = await components.getDefaultSettings(this.apiUrl, this.requestOptions());
     this.defaultSettings = response;
     return response;
   }
@@ -1,10 +1,15 @@
 // Copyright 2019 Diffblue Limited. All Rights Reserved.
 
-import { AxiosRequestConfig } from 'axios';
+import axios, { AxiosRequestConfig, AxiosTransformer, CancelToken } from 'axios';
+import { map } from 'bluebird';
 import * as FormData from 'form-data';
 import { Agent } from 'https';
+import { range } from 'lodash';
+import { Readable } from 'stream';
 
 import { BindingsError, BindingsErrorCode } from './errors';
+import { RouteName, startTimer } from './instrumentation';
+import resilient from './resilience';
 import routes from './routes';
 import {
   AnalysisCancelApiResponse,
@@ -16,6 +21,7 @@ import {
   ApiVersionApiResponse,
   BindingsOptions,
   ComputedAnalysisSettings,
+  ResultsPaginationOptions,
 } from './types/types';
 import request from './utils/request';
 
@@ -36,23 +42,171 @@ const Gb = 1024 * 1024 * 1024;
 /** Convert bindings options to an axios request config */
 function convertOptions(options: BindingsOptions = {}): AxiosRequestConfig {
   const config: AxiosRequestConfig = {};
+  if (options.cancelToken) {
+    config.cancelToken = options.cancelToken;
+  }
+  if (options.httpAgent) {
+    config.httpAgent = options.httpAgent;
+  }
   if (options.allowUnauthorizedHttps) {
     config.httpsAgent = components.permissiveHttpsAgent;
+  } else if (options.httpsAgent) {
+    config.httpsAgent = options.httpsAgent;
   }
   return config;
 }
 
+/** Byte counts of a single request */
+interface RequestSize {
+  sent: number;
+  received: number;
+}
+
+/** Get the default axios response transforms as an array */
+function defaultTransformResponse(): AxiosTransformer[] {
+  const transforms = axios.defaults.transformResponse;
+  if (!transforms) {
+    return [];
+  }
+  return Array.isArray(transforms) ? transforms : [transforms];
+}
+
+/**
+ * Make a request, reporting its duration and size if the `instrumentation` option is set.
+ *
+ * The received size is measured from the raw response body before it is parsed.
+ * If the option is not set the request is made directly, so there is no overhead.
+ */
+async function instrumented<Response>(
+  route: RouteName,
+  method: 'get' | 'post',
+  options: BindingsOptions | undefined,
+  config: AxiosRequestConfig,
+  send: (requestConfig: AxiosRequestConfig, size?: RequestSize) => Promise<Response>,
+): Promise<Response> {
+  const instrumentation = options && options.instrumentation;
+  if (!instrumentation) {
+    return send(config);
+  }
+  const size = { sent: 0, received: 0 };
+  const countReceived = (data: string | Buffer | object) => {
+    if (typeof data === 'string' || Buffer.isBuffer(data)) {
+      size.received = Buffer.byteLength(data);
+    }
+    return data;
+  };
+  const instrumentedConfig = { ...config, transformResponse: [countReceived, ...defaultTransformResponse()] };
+  const timer = startTimer();
+  try {
+    const response = await send(instrumentedConfig, size);
+    instrumentation.request({
+      route: route,
+      method: method,
+      durationMilliseconds: timer(),
+      sentBytes: size.sent,
+      receivedBytes: size.received,
+    });
+    return response;
+  } catch (error) {
+    instrumentation.request({
+      route: route,
+      method: method,
+      durationMilliseconds: timer(),
+      sentBytes: size.sent,
+      receivedBytes: size.received,
+      status: error.status,
+      error: error,
+    });
+    throw error;
+  }
+}
+
+/**
+ * Make an instrumented request to the specified API, applying the `resilience` option.
+ *
+ * GET requests are idempotent, so may be retried or hedged.
+ * A hedged request is made with its own cancel token, so that the losing request can be canceled.
+ */
+async function apiRequest<Response>(
+  api: string,
+  route: RouteName,
+  method: 'get' | 'post',
+  options: BindingsOptions | undefined,
+  config: AxiosRequestConfig,
+  send: (requestConfig: AxiosRequestConfig, size?: RequestSize) => Promise<Response>,
+): Promise<Response> {
+  return resilient(api, method === 'get', options && options.resilience, async (cancelToken) => {
+    const requestConfig = cancelToken ? { ...config, cancelToken: cancelToken } : config;
+    return instrumented(route, method, options, requestConfig, send);
+  }, config.cancelToken);
+}
+
+/** Settle with a promise, or reject with the cancellation of a token if it is canceled first */
+async function unlessCanceled<Result>(promise: Promise<Result>, cancelToken?: CancelToken): Promise<Result> {
+  if (!cancelToken) {
+    return promise;
+  }
+  cancelToken.throwIfRequested();
+  return Promise.race([promise, cancelToken.promise.then((cancel) => {
+    throw cancel;
+  })]);
+}
+
+/**
+ * Make a GET request for a response which rarely changes, via the `responseCache` option if it is set.
+ *
+ * When an expired response is revalidated, its ETag is sent in an `If-None-Match` header.
+ * A cached request may be shared by several callers, so it is made without the `cancelToken` option,
+ * and a caller whose token is canceled stops waiting for it rather than aborting it.
+ */
+async function cachedGet<Response extends object>(
+  api: string,
+  route: 'version' | 'defaultSettings',
+  options?: BindingsOptions,
+): Promise<Response> {
+  const url = dependencies.routes[route](api);
+  const responseCache = options && options.responseCache;
+  if (!responseCache) {
+    return apiRequest(api, route, 'get', options, convertOptions(options), async (config) => {
+      return dependencies.request.get(url, config);
+    });
+  }
+  const sharedOptions = { ...options, cancelToken: undefined };
+  const shared = responseCache.get<Response>(`${route} ${url}`, async (etag) => {
+    const baseConfig = convertOptions(sharedOptions);
+    const axiosConfig = etag ? { ...baseConfig, headers: { 'If-None-Match': etag }} : baseConfig;
+    const response = await apiRequest(api, route, 'get', sharedOptions, axiosConfig, async (config) => {
+      return dependencies.request.getResponse(url, config);
+    });
+    return { notModified: response.status === 304, data: response.data, etag: response.headers.etag };
+  });
+  return unlessCanceled(shared, options && options.cancelToken);
+}
+
 /** Gets the version used for the API */
 export async function getApiVersion(api: string, options?: BindingsOptions): Promise<ApiVersionApiResponse> {
-  return dependencies.request.get(dependencies.routes.version(api), convertOptions(options));
+  return cachedGet<ApiVersionApiResponse>(api, 'version', options);
 }
 
 /** Gets default analysis settings */
 export async function getDefaultSettings(api: string, options?: BindingsOptions): Promise<ComputedAnalysisSettings> {
-  return dependencies.request.get(dependencies.routes.defaultSettings(api), convertOptions(options));
+  return cachedGet<ComputedAnalysisSettings>(api, 'defaultSettings', options);
 }
 
-/** Starts an analysis and returns the analysis id and computed settings */
+/** Destroy any file streams, so that the files they read are closed if an upload is canceled */
+function destroyStreams(files: Array<Buffer | NodeJS.ReadableStream | undefined>): void {
+  files.forEach((file) => {
+    if (file instanceof Readable) {
+      file.destroy();
+    }
+  });
+}
+
+/**
+ * Starts an analysis and returns the analysis id and computed settings
+ *
+ * If the upload is canceled by the `cancelToken` option, any file streams are destroyed.
+ */
 export async function startAnalysis(
   api: string,
   { baseBuild, build, dependenciesBuild }: AnalysisFiles,
@@ -94,21 +248,81 @@ export async function startAnalysis(
     maxContentLength: Gb * 2, // 2 Gb
   };
 
-  return dependencies.request.post(dependencies.routes.start(api), formData, axiosConfig);
+  return apiRequest(api, 'start', 'post', options, axiosConfig, async (config, size) => {
+    if (size) {
+      formData.on('data', (chunk: string | Buffer) => {
+        size.sent += Buffer.byteLength(chunk);
+      });
+    }
+    try {
+      return await dependencies.request.post(dependencies.routes.start(api), formData, config);
+    } catch (error) {
+      if (axios.isCancel(error)) {
+        destroyStreams([build, baseBuild, dependenciesBuild]);
+      }
+      throw error;
+    }
+  });
 }
 
 /**
  * Download analysis results using a id for the target analysis
  * and an optional cursor to get the results since the last download
+ *
+ * An optional limit sets the maximum number of results returned.
  */
 export async function getAnalysisResults(
   api: string,
   id: string,
   cursor?: number,
   options?: BindingsOptions,
+  limit?: number,
 ): Promise<AnalysisResultsApiResponse> {
-  const axiosConfig = { ...convertOptions(options), params: { cursor: cursor }};
-  return dependencies.request.get(dependencies.routes.results(api, id), axiosConfig);
+  const params = limit === undefined ? { cursor: cursor } : { cursor: cursor, limit: limit };
+  const axiosConfig = { ...convertOptions(options), params: params };
+  return apiRequest(api, 'results', 'get', options, axiosConfig, async (config) => {
+    return dependencies.request.get(dependencies.routes.results(api, id), config);
+  });
+}
+
+/**
+ * Download every result since a cursor, in pages of at most `pageSize` results.
+ *
+ * If the first page is full and the server reports the total number of results,
+ * the remaining pages are requested `concurrency` at a time, treating cursors as result offsets,
+ * and reassembled in order. Pages are then requested one after another until a page is not full,
+ * which also picks up results produced since the total was reported,
+ * or resumes from the last contiguous page if the server's cursors turn out not to be offsets.
+ */
+export async function getAllAnalysisResults(
+  api: string,
+  id: string,
+  cursor: number | undefined,
+  pagination: ResultsPaginationOptions,
+  options?: BindingsOptions,
+): Promise<AnalysisResultsApiResponse> {
+  const pageSize = Math.max(pagination.pageSize, 1);
+  const concurrency = pagination.concurrency || 4;
+  let page = await getAnalysisResults(api, id, cursor, options, pageSize);
+  const results = [...page.results];
+  if (page.total !== undefined && page.results.length === pageSize) {
+    const starts = range(page.cursor, page.total, pageSize);
+    const pages = await map(starts, async (start) => getAnalysisResults(api, id, start, options, pageSize), {
+      concurrency: concurrency,
+    });
+    for (let index = 0; index < pages.length && starts[index] === page.cursor; index++) {
+      page = pages[index];
+      results.push(...page.results);
+      if (page.results.length < pageSize) {
+        break;
+      }
+    }
+  }
+  while (page.results.length === pageSize) {
+    page = await getAnalysisResults(api, id, page.cursor, options, pageSize);
+    results.push(...page.results);
+  }
+  return { ...page, results: results };
 }
 
 /** Cancel the analysis tied to the specified id */
@@ -117,7 +331,9 @@ export async function cancelAnalysis(
   id: string,
   options?: BindingsOptions,
 ): Promise<AnalysisCancelApiResponse> {
-  return dependencies.request.post(dependencies.routes.cancel(api, id), undefined, convertOptions(options));
+  return apiRequest(api, 'cancel', 'post', options, convertOptions(options), async (config) => {
+    return dependencies.request.post(dependencies.routes.cancel(api, id), undefined, config);
+  });
 }
 
 /** Get the status of the analysis tied to the specified id */
@@ -126,5 +342,7 @@ export async function getAnalysisStatus(
   id: string,
   options?: BindingsOptions,
 ): Promise<AnalysisStatusApiResponse> {
-  return dependencies.request.get(dependencies.routes.status(api, id), convertOptions(options));
+  return apiRequest(api, 'status', 'get', options, convertOptions(options), async (config) => {
+    return dependencies.request.get(dependencies.routes.status(api, id), config);
+  });
 }
@@ -2,44 +2,23 @@
 
 import { genTestClass, ITestData, mergeTests } from '@diffblue/java-combiner';
 import { groupBy, isString } from 'lodash';
-import { parse } from 'path';
 
 import { CombinerError, CombinerErrorCode } from './errors';
+import ResultsStore from './resultsStore';
+import SymbolTable from './symbolTable';
 import { AnalysisResult } from './types/types';
 
 export const dependencies = {
   genTestClass: genTestClass,
   mergeTests: mergeTests,
+  setImmediate: setImmediate,
 };
 
-/**
- * Parses package name from function full name.
- *
- * Function name should be the fully qualified name of a Java function
- * e.g. 'com.diffblue.javademo.TicTacToe.checkTicTacToePosition'
- * => 'com.diffblue.javademo'
- * e.g. 'java::com.diffblue.javademo.TicTacToe.checkTicTacToePosition'
- * => 'com.diffblue.javademo'
- */
-function parsePackageNameFromFunctionName(functionName: string): string {
-  const prefixRegexp = /^java::/;
-  return functionName
-  .replace(prefixRegexp, '').split('.').slice(0, -2).join('.');
-}
-
-/**
- * Parses class name from source file path.
- *
- * e.g. com/diffblue/javademo/TicTacToe.java
- * => 'TicTacToe'
- */
-function parseClassNameFromSourceFilePath(sourceFilePath: string): string {
-  const { name } = parse(sourceFilePath);
-  return name;
-}
+/** Default number of results grouped by `groupResultsAsync` between yields to the event loop */
+export const defaultGroupingChunkSize = 5000;
 
 /** Validate the results parameter */
-function checkResults(results: AnalysisResult[]): void {
+function checkResults(results: AnalysisResult[], symbols: SymbolTable): void {
   if (!results) {
     throw new CombinerError(
       'Missing required parameter "results"',
@@ -60,9 +39,9 @@ function checkResults(results: AnalysisResult[]): void {
   }
   const sourceFilePaths = new Set();
   const packageNames = new Set();
-  results.forEach(({ testedFunction, sourceFilePath }) => {
-    sourceFilePaths.add(sourceFilePath);
-    packageNames.add(parsePackageNameFromFunctionName(testedFunction));
+  results.forEach((result) => {
+    sourceFilePaths.add(result.sourceFilePath);
+    packageNames.add(symbols.getResult(result).testedFunction.packageName);
   });
   if (sourceFilePaths.size !== 1) {
     throw new CombinerError(
@@ -123,13 +102,16 @@ export function prepareTestData(results: AnalysisResult[]): ITestData[] {
   });
 }
 
-/** Create a test class from an array of analysis results */
-export function generateTestClass(results: AnalysisResult[]): string {
-  checkResults(results);
-  const { sourceFilePath, testedFunction } = results[0];
-  const className = parseClassNameFromSourceFilePath(sourceFilePath);
-  const packageName = parsePackageNameFromFunctionName(testedFunction);
-  const testClassName = `${className}Test`;
+/**
+ * Create a test class from an array of analysis results
+ *
+ * A symbol table may be passed to share parsed function names and source file paths between calls.
+ */
+export function generateTestClass(results: AnalysisResult[], symbols: SymbolTable = new SymbolTable()): string {
+  checkResults(results, symbols);
+  const { sourceFile, testedFunction } = symbols.getResult(results[0]);
+  const testClassName = `${sourceFile.className}Test`;
+  const packageName = testedFunction.packageName;
   const testData = prepareTestData(results);
   try {
     return dependencies.genTestClass(testData, testClassName, packageName);
@@ -138,10 +120,18 @@ export function generateTestClass(results: AnalysisResult[]): string {
   }
 }
 
-/** Merge analysis results into an existing test class */
-export async function mergeIntoTestClass(existingClass: string, results: AnalysisResult[]): Promise<string> {
+/**
+ * Merge analysis results into an existing test class
+ *
+ * A symbol table may be passed to share parsed function names and source file paths between calls.
+ */
+export async function mergeIntoTestClass(
+  existingClass: string,
+  results: AnalysisResult[],
+  symbols: SymbolTable = new SymbolTable(),
+): Promise<string> {
   checkExistingClass(existingClass);
-  checkResults(results);
+  checkResults(results, symbols);
   const testData = prepareTestData(results);
   try {
     return await dependencies.mergeTests(existingClass, testData);
@@ -155,13 +145,60 @@ export interface GroupedResults {
   [sourceFilePath: string]: AnalysisResult[];
 }
 
-/** Group AnalysisResults by sourceFilePath */
-export function groupResults(results: AnalysisResult[]): GroupedResults {
+/**
+ * Group AnalysisResults by sourceFilePath
+ *
+ * Results may also be read from a `ResultsStore`, one group at a time, in which case a promise is returned.
+ */
+export function groupResults(results: AnalysisResult[]): GroupedResults;
+export function groupResults(results: ResultsStore): Promise<GroupedResults>;
+export function groupResults(results: AnalysisResult[] | ResultsStore): GroupedResults | Promise<GroupedResults> {
+  if (results instanceof ResultsStore) {
+    return groupResultsAsync(results);
+  }
   return groupBy(results, 'sourceFilePath');
 }
 
+/** Resolve on a later turn of the event loop, allowing pending I/O and timers to run */
+async function yieldToEventLoop(): Promise<void> {
+  return new Promise<void>((resolve) => dependencies.setImmediate(resolve));
+}
+
+/**
+ * Group AnalysisResults by sourceFilePath without blocking the event loop.
+ *
+ * Produces the same groups as `groupResults`, but yields to the event loop after every `chunkSize` results,
+ * so that large batches do not delay other I/O.
+ *
+ * Results may also be read from a `ResultsStore`, one group at a time, though every group is then held in memory.
+ */
+export async function groupResultsAsync(
+  results: AnalysisResult[] | ResultsStore,
+  chunkSize = defaultGroupingChunkSize,
+): Promise<GroupedResults> {
+  const groups: GroupedResults = {};
+  if (results instanceof ResultsStore) {
+    for (const sourceFilePath of results.sourceFilePaths()) {
+      groups[sourceFilePath] = await results.getGroup(sourceFilePath);
+    }
+    return groups;
+  }
+  for (let index = 0; index < results.length; index++) {
+    if (index && index % chunkSize === 0) {
+      await yieldToEventLoop();
+    }
+    const result = results[index];
+    const group = groups[result.sourceFilePath];
+    if (group) {
+      group.push(result);
+    } else {
+      groups[result.sourceFilePath] = [result];
+    }
+  }
+  return groups;
+}
+
 /** Produce a file name from a class name */
-export function getFileNameForResult(result: AnalysisResult): string {
-  const className = parseClassNameFromSourceFilePath(result.sourceFilePath);
-  return `${className}Test.java`;
+export function getFileNameForResult(result: AnalysisResult, symbols: SymbolTable = new SymbolTable()): string {
+  return `${symbols.getSourceFile(result.sourceFilePath).className}Test.java`;
 }
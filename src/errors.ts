@@ -105,6 +105,8 @@ export class FilterResultsError extends CoverClientError {
 export enum WriterErrorCode {
   DIR_FAILED = 'DIR_FAILED',
   WRITE_FAILED = 'WRITE_FAILED',
+  EXPORT_UNSUPPORTED = 'EXPORT_UNSUPPORTED',
+  EXPORT_INVALID = 'EXPORT_INVALID',
 }
 
 /** Error thrown by Analysis object, with additional error code */
@@ -128,6 +130,10 @@ export enum AnalysisErrorCode {
   NO_ID = 'NO_ID',
   RUN_ERRORED = 'RUN_ERRORED',
   START_DEFAULTS_FAILED = 'START_DEFAULTS_FAILED',
+  SHARDING_NO_SERVERS = 'SHARDING_NO_SERVERS',
+  SHARDING_UNPARTITIONABLE = 'SHARDING_UNPARTITIONABLE',
+  SHARDING_STREAM_FILES = 'SHARDING_STREAM_FILES',
+  WATCH_INVALID_BUILD = 'WATCH_INVALID_BUILD',
 }
 
 /** Error thrown by Analysis object, with additional error code */
@@ -143,3 +149,22 @@ export class AnalysisError extends CoverClientError {
     Object.setPrototypeOf(this, new.target.prototype); // restore prototype chain
   }
 }
+
+/** Error codes used by ResilienceError */
+export enum ResilienceErrorCode {
+  CIRCUIT_OPEN = 'CIRCUIT_OPEN',
+}
+
+/** Error thrown when a request is not made because of the resilience options, with additional error code */
+export class ResilienceError extends CoverClientError {
+
+  public message: string;
+  public code: ResilienceErrorCode;
+
+  public constructor(message: string, code: ResilienceErrorCode) {
+    super(message);
+    this.code = code;
+    this.name = `ResilienceError ${this.code}`;
+    Object.setPrototypeOf(this, new.target.prototype); // restore prototype chain
+  }
+}
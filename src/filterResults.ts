@@ -3,6 +3,7 @@
 import { isFunction, isPlainObject } from 'lodash';
 
 import { FilterResultsError, FilterResultsErrorCode } from './errors';
+import ResultsStore from './resultsStore';
 import {
   AnalysisResult,
   ResultsFilter,
@@ -56,11 +57,19 @@ function filterResultsByTag(
  * and returns a boolean, in which case this callback is used to filter the results array directly.
  *
  * If no filter is supplied the results array is retuned unaltered.
+ *
+ * Results may also be read from a `ResultsStore`, in which case a promise is returned,
+ * and the store is read and filtered one source file's results at a time.
  */
+export default function filterResults(results: AnalysisResult[], filter?: ResultsFilter): AnalysisResult[];
+export default function filterResults(results: ResultsStore, filter?: ResultsFilter): Promise<AnalysisResult[]>;
 export default function filterResults(
-  results: AnalysisResult[],
+  results: AnalysisResult[] | ResultsStore,
   filter?: ResultsFilter,
-): AnalysisResult[] {
+): AnalysisResult[] | Promise<AnalysisResult[]> {
+  if (results instanceof ResultsStore) {
+    return filterStoredResults(results, filter);
+  }
   let filteredResults = results;
   if (filter) {
     try {
@@ -89,3 +98,12 @@ export default function filterResults(
   }
   return filteredResults;
 }
+
+/** Filter the results in a store, reading one source file's results at a time */
+async function filterStoredResults(store: ResultsStore, filter?: ResultsFilter): Promise<AnalysisResult[]> {
+  const groups: AnalysisResult[][] = [];
+  for (const sourceFilePath of store.sourceFilePaths()) {
+    groups.push(filterResults(await store.getGroup(sourceFilePath), filter));
+  }
+  return ([] as AnalysisResult[]).concat(...groups);
+}
@@ -0,0 +1,105 @@
+// Copyright 2019 Diffblue Limited. All Rights Reserved.
+
+import { EventEmitter } from 'events';
+
+import routes from './routes';
+
+/** Name of an API route, as defined in `routes` */
+export type RouteName = keyof typeof routes;
+
+/** Emitted once for every API request made by the bindings */
+export interface RequestEvent {
+  route: RouteName;
+  method: 'get' | 'post';
+  durationMilliseconds: number;
+  sentBytes: number;
+  receivedBytes: number;
+  /** HTTP status of a failed request, if a response was received */
+  status?: number;
+  error?: Error;
+}
+
+/** Emitted once for every time `Analysis.run` polls for results */
+export interface PollEvent {
+  analysisId: string;
+  results: number;
+  durationMilliseconds: number;
+}
+
+/** Emitted when an analysis is first seen to have left the QUEUED status */
+export interface QueueEvent {
+  analysisId: string;
+  durationMilliseconds: number;
+}
+
+/** Emitted once for every test file written by `writeTests` */
+export interface WriteEvent {
+  sourceFilePath: string;
+  operation: 'generate' | 'merge';
+  results: number;
+  readMilliseconds: number;
+  combineMilliseconds: number;
+  writeMilliseconds: number;
+  bytes: number;
+}
+
+/** A function which returns the number of milliseconds since it was created */
+export type Timer = () => number;
+
+/** Start a high resolution timer */
+export function startTimer(): Timer {
+  const start = process.hrtime();
+  return () => {
+    const [seconds, nanoseconds] = process.hrtime(start);
+    return (seconds * 1e3) + (nanoseconds / 1e6);
+  };
+}
+
+/**
+ * Receives timings and counts from the bindings, `Analysis` and `writeTests`, and re-emits them as events.
+ *
+ * Pass an instance via the `instrumentation` bindings or `writeTests` option to enable instrumentation.
+ * When no instance is passed, no timings are taken.
+ */
+export default class Instrumentation extends EventEmitter {
+
+  /** Report an API request */
+  public request(event: RequestEvent): void {
+    this.emit('request', event);
+  }
+
+  /** Report a polling attempt */
+  public poll(event: PollEvent): void {
+    this.emit('poll', event);
+  }
+
+  /** Report the time an analysis spent queued */
+  public queue(event: QueueEvent): void {
+    this.emit('queue', event);
+  }
+
+  /** Report a test file being written */
+  public write(event: WriteEvent): void {
+    this.emit('write', event);
+  }
+
+  /** Listen for API requests */
+  public onRequest(listener: (event: RequestEvent) => void): this {
+    return this.on('request', listener);
+  }
+
+  /** Listen for polling attempts */
+  public onPoll(listener: (event: PollEvent) => void): this {
+    return this.on('poll', listener);
+  }
+
+  /** Listen for analyses leaving the queue */
+  public onQueue(listener: (event: QueueEvent) => void): this {
+    return this.on('queue', listener);
+  }
+
+  /** Listen for test files being written */
+  public onWrite(listener: (event: WriteEvent) => void): this {
+    return this.on('write', listener);
+  }
+}
@@ -0,0 +1,213 @@
+// Copyright 2019 Diffblue Limited. All Rights Reserved.
+
+import { createServer, IncomingMessage, Server, ServerResponse } from 'http';
+
+import Instrumentation, { PollEvent, QueueEvent, RequestEvent, WriteEvent } from './instrumentation';
+
+export const dependencies = {
+  createServer: createServer,
+};
+
+/** Labels identifying a single series of a metric */
+export interface MetricLabels {
+  [name: string]: string;
+}
+
+/** Snapshot of a single histogram series */
+export interface HistogramSnapshot {
+  labels: MetricLabels;
+  /** Cumulative counts, one per bucket upper bound */
+  buckets: number[];
+  count: number;
+  sum: number;
+}
+
+/** Bucket upper bounds for durations, in seconds */
+export const durationBuckets = [0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60];
+/** Bucket upper bounds for sizes, in bytes */
+export const byteBuckets = [256, 1024, 4096, 16384, 65536, 262144, 1048576, 4194304, 16777216, 67108864];
+/** Bucket upper bounds for counts of results */
+export const countBuckets = [0, 1, 5, 10, 50, 100, 500, 1000, 5000, 10000];
+
+/** Serialize labels in Prometheus text format, e.g. `{route="results"}` */
+function formatLabels(labels: MetricLabels): string {
+  const pairs = Object.keys(labels).sort().map((name) => {
+    const value = labels[name].replace(/\\/g, '\\\\').replace(/\n/g, '\\n').replace(/"/g, '\\"');
+    return `${name}="${value}"`;
+  });
+  return pairs.length ? `{${pairs.join(',')}}` : '';
+}
+
+/** In-memory histogram, holding one series per distinct set of labels */
+export class Histogram {
+
+  public readonly name: string;
+  public readonly help: string;
+  public readonly bounds: number[];
+  private readonly series = new Map<string, HistogramSnapshot>();
+
+  public constructor(name: string, help: string, bounds: number[]) {
+    this.name = name;
+    this.help = help;
+    this.bounds = bounds;
+  }
+
+  /** Record a single value */
+  public observe(value: number, labels: MetricLabels = {}): void {
+    const key = formatLabels(labels);
+    let series = this.series.get(key);
+    if (!series) {
+      series = { labels: { ...labels }, buckets: this.bounds.map(() => 0), count: 0, sum: 0 };
+      this.series.set(key, series);
+    }
+    for (let index = this.bounds.length - 1; index >= 0 && value <= this.bounds[index]; index--) {
+      series.buckets[index] += 1;
+    }
+    series.count += 1;
+    series.sum += value;
+  }
+
+  /** Get a copy of the current state of every series */
+  public snapshot(): HistogramSnapshot[] {
+    return [...this.series.values()].map((series) => ({ ...series, buckets: [...series.buckets] }));
+  }
+
+  /** Serialize in Prometheus text exposition format */
+  public toPrometheus(): string {
+    const lines = [`# HELP ${this.name} ${this.help}`, `# TYPE ${this.name} histogram`];
+    [...this.series.entries()].sort(([a], [b]) => a.localeCompare(b)).forEach(([key, series]) => {
+      series.buckets.forEach((count, index) => {
+        const bucketLabels = formatLabels({ ...series.labels, le: String(this.bounds[index]) });
+        lines.push(`${this.name}_bucket${bucketLabels} ${count}`);
+      });
+      lines.push(`${this.name}_bucket${formatLabels({ ...series.labels, le: '+Inf' })} ${series.count}`);
+      lines.push(`${this.name}_sum${key} ${series.sum}`);
+      lines.push(`${this.name}_count${key} ${series.count}`);
+    });
+    return lines.join('\n');
+  }
+
+  /** Remove all recorded values */
+  public reset(): void {
+    this.series.clear();
+  }
+}
+
+/**
+ * Collects events emitted by an `Instrumentation` instance into in-memory histograms.
+ *
+ * Durations are recorded in seconds, following Prometheus conventions.
+ */
+export default class MetricsCollector {
+
+  public readonly requestDuration = new Histogram(
+    'cover_client_request_duration_seconds', 'Duration of API requests', durationBuckets,
+  );
+  public readonly requestSentBytes = new Histogram(
+    'cover_client_request_sent_bytes', 'Size of API request bodies', byteBuckets,
+  );
+  public readonly requestReceivedBytes = new Histogram(
+    'cover_client_request_received_bytes', 'Size of API response bodies', byteBuckets,
+  );
+  public readonly pollResults = new Histogram(
+    'cover_client_poll_results', 'Number of new results returned by each poll', countBuckets,
+  );
+  public readonly pollDuration = new Histogram(
+    'cover_client_poll_duration_seconds', 'Duration of each poll for results', durationBuckets,
+  );
+  public readonly queueDuration = new Histogram(
+    'cover_client_queue_duration_seconds', 'Time from starting an analysis until it left the queue', durationBuckets,
+  );
+  public readonly writeDuration = new Histogram(
+    'cover_client_write_duration_seconds', 'Time spent writing each test file, by stage', durationBuckets,
+  );
+  public readonly writeBytes = new Histogram(
+    'cover_client_write_bytes', 'Size of each test file written', byteBuckets,
+  );
+
+  /** Subscribe to the events of an `Instrumentation` instance */
+  public attach(instrumentation: Instrumentation): this {
+    instrumentation.onRequest((event) => this.recordRequest(event));
+    instrumentation.onPoll((event) => this.recordPoll(event));
+    instrumentation.onQueue((event) => this.recordQueue(event));
+    instrumentation.onWrite((event) => this.recordWrite(event));
+    return this;
+  }
+
+  /** Record an API request */
+  public recordRequest({ route, method, durationMilliseconds, sentBytes, receivedBytes, error }: RequestEvent): void {
+    const labels = { route: route, method: method, outcome: error ? 'error' : 'success' };
+    this.requestDuration.observe(durationMilliseconds / 1e3, labels);
+    this.requestSentBytes.observe(sentBytes, labels);
+    this.requestReceivedBytes.observe(receivedBytes, labels);
+  }
+
+  /** Record a polling attempt */
+  public recordPoll({ results, durationMilliseconds }: PollEvent): void {
+    this.pollResults.observe(results);
+    this.pollDuration.observe(durationMilliseconds / 1e3);
+  }
+
+  /** Record the time an analysis spent queued */
+  public recordQueue({ durationMilliseconds }: QueueEvent): void {
+    this.queueDuration.observe(durationMilliseconds / 1e3);
+  }
+
+  /** Record a test file being written */
+  public recordWrite(event: WriteEvent): void {
+    const stages: Array<[string, number]> = [
+      ['read', event.readMilliseconds],
+      ['combine', event.combineMilliseconds],
+      ['write', event.writeMilliseconds],
+    ];
+    stages.forEach(([stage, milliseconds]) => {
+      this.writeDuration.observe(milliseconds / 1e3, { operation: event.operation, stage: stage });
+    });
+    this.writeBytes.observe(event.bytes, { operation: event.operation });
+  }
+
+  /** All histograms held by the collector */
+  public get histograms(): Histogram[] {
+    return [
+      this.requestDuration,
+      this.requestSentBytes,
+      this.requestReceivedBytes,
+      this.pollResults,
+      this.pollDuration,
+      this.queueDuration,
+      this.writeDuration,
+      this.writeBytes,
+    ];
+  }
+
+  /** Serialize all histograms in Prometheus text exposition format */
+  public toPrometheus(): string {
+    return `${this.histograms.map((histogram) => histogram.toPrometheus()).join('\n')}\n`;
+  }
+
+  /** Remove all recorded values */
+  public reset(): void {
+    this.histograms.forEach((histogram) => histogram.reset());
+  }
+}
+
+/**
+ * Serve the metrics of a collector in Prometheus text format at `/metrics`.
+ *
+ * Binds to the loopback interface by default, since metrics are intended to be scraped locally.
+ */
+export async function serveMetrics(collector: MetricsCollector, port: number, host = '127.0.0.1'): Promise<Server> {
+  const server = dependencies.createServer((request: IncomingMessage, response: ServerResponse) => {
+    if (request.method === 'GET' && request.url === '/metrics') {
+      response.writeHead(200, { 'Content-Type': 'text/plain; version=0.0.4' });
+      response.end(collector.toPrometheus());
+    } else {
+      response.writeHead(404);
+      response.end();
+    }
+  });
+  return new Promise<Server>((resolve, reject) => {
+    server.once('error', reject);
+    server.listen(port, host, () => resolve(server));
+  });
+}
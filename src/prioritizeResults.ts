@@ -0,0 +1,131 @@
+// Copyright 2019 Diffblue Limited. All Rights Reserved.
+
+import { flatten, groupBy } from 'lodash';
+
+import { AnalysisResult } from './types/types';
+
+/** Options controlling how results are scored and how many are kept for each class */
+export interface ResultPriorityOptions {
+  /** Score added for each tag a result has (default: `defaultTagWeights`) */
+  tagWeights?: { [tag: string]: number };
+  /** Score subtracted for each phase after the first, so results from earlier phases are preferred (default: 1) */
+  phaseWeight?: number;
+  /** Results scoring less than this are always dropped (default: none) */
+  minimumScore?: number;
+  /** Once the scores of the results kept for a class add up to this, further results for it are dropped */
+  classBudget?: number;
+}
+
+/** Default tag weights, preferring highly rated tests without mocking */
+export const defaultTagWeights: { [tag: string]: number } = {
+  five_star: 50,
+  four_star: 40,
+  three_star: 30,
+  two_star: 20,
+  one_star: 10,
+  no_mocking: 5,
+  assertions: 5,
+  no_reflection: 2,
+  no_nulls: 1,
+  no_exceptions: 1,
+};
+
+const phaseTagPattern = /^phase_(\d+)$/;
+
+/** Get the phase a result was produced in, from its `phase_N` tag */
+export function getResultPhase(result: AnalysisResult): number | undefined {
+  for (const tag of result.tags) {
+    const match = phaseTagPattern.exec(tag);
+    if (match) {
+      return Number(match[1]);
+    }
+  }
+  return undefined;
+}
+
+/** Score the quality of a result from its tags */
+export function scoreResult(result: AnalysisResult, options: ResultPriorityOptions = {}): number {
+  const tagWeights = options.tagWeights || defaultTagWeights;
+  const phaseWeight = options.phaseWeight === undefined ? 1 : options.phaseWeight;
+  const tagScore = result.tags.reduce((score, tag) => score + (tagWeights[tag] || 0), 0);
+  const phase = getResultPhase(result);
+  return phase === undefined ? tagScore : tagScore - (Math.max(phase - 1, 0) * phaseWeight);
+}
+
+/** A result with its score and original position */
+interface ScoredResult {
+  result: AnalysisResult;
+  score: number;
+  index: number;
+}
+
+/** Order scored results by descending score, then by original position */
+function compareScoredResults(a: ScoredResult, b: ScoredResult): number {
+  return (b.score - a.score) || (a.index - b.index);
+}
+
+/**
+ * Orders results so the highest quality results for each class come first,
+ * and drops results once the quality budget for their class has been met.
+ *
+ * The budget spent on each class is remembered between calls to `select`,
+ * so results arriving in several batches (e.g. from successive polls) share a single budget.
+ */
+export class ResultPrioritizer {
+
+  public readonly options: ResultPriorityOptions;
+  /** Number of results dropped so far */
+  public dropped = 0;
+  private readonly spent = new Map<string, number>();
+
+  public constructor(options: ResultPriorityOptions = {}) {
+    this.options = options;
+  }
+
+  /** Get the highest score of a set of results */
+  public topScore(results: AnalysisResult[]): number {
+    return results.reduce((top, result) => Math.max(top, scoreResult(result, this.options)), -Infinity);
+  }
+
+  /**
+   * Select the results to keep, grouped by class in priority order.
+   *
+   * Classes are ordered by their highest scoring result.
+   */
+  public select(results: AnalysisResult[]): AnalysisResult[] {
+    const scored = results.map((result, index) => {
+      return { result: result, score: scoreResult(result, this.options), index: index };
+    });
+    const groups = Object.entries(groupBy(scored, ({ result }) => result.sourceFilePath))
+    .map(([sourceFilePath, group]) => this.selectForClass(sourceFilePath, group.sort(compareScoredResults)))
+    .filter((group) => group.length)
+    .sort((a, b) => compareScoredResults(a[0], b[0]));
+    const selected = flatten(groups).map(({ result }) => result);
+    this.dropped += results.length - selected.length;
+    return selected;
+  }
+
+  /** Select results for a single class, already sorted by priority, within its remaining budget */
+  private selectForClass(sourceFilePath: string, sorted: ScoredResult[]): ScoredResult[] {
+    const { classBudget, minimumScore = -Infinity } = this.options;
+    let spent = this.spent.get(sourceFilePath) || 0;
+    const selected: ScoredResult[] = [];
+    for (const scoredResult of sorted) {
+      const withinBudget = classBudget === undefined || spent < classBudget;
+      if (withinBudget && scoredResult.score >= minimumScore) {
+        spent += Math.max(scoredResult.score, 0);
+        selected.push(scoredResult);
+      }
+    }
+    this.spent.set(sourceFilePath, spent);
+    return selected;
+  }
+}
+
+/** Order and drop results according to the priority options, treating them as a single batch */
+export default function prioritizeResults(
+  results: AnalysisResult[],
+  options: ResultPriorityOptions = {},
+): AnalysisResult[] {
+  return new ResultPrioritizer(options).select(results);
+}
@@ -0,0 +1,300 @@
+// Copyright 2019 Diffblue Limited. All Rights Reserved.
+
+import axios, { CancelToken, CancelTokenSource } from 'axios';
+import { parse } from 'url';
+
+import { ApiError, CoverClientError, ResilienceError, ResilienceErrorCode } from './errors';
+
+export const dependencies = {
+  clearTimeout: clearTimeout,
+  now: Date.now,
+  random: Math.random,
+  setTimeout: setTimeout,
+};
+
+/** Options for retrying idempotent requests which fail with a transient error */
+export interface RetryOptions {
+  /** Maximum number of retries after the first attempt (default: 3) */
+  retries?: number;
+  /** Backoff before the first retry, doubled for each subsequent retry (default: 250) */
+  minDelayMilliseconds?: number;
+  /** Maximum backoff before any retry (default: 10000) */
+  maxDelayMilliseconds?: number;
+}
+
+/** Options for hedging slow idempotent requests */
+export interface HedgeOptions {
+  /** Time after which a second identical request is made, if the first has not completed */
+  delayMilliseconds: number;
+}
+
+/** Options for the circuit breaker shared by all requests to the same server */
+export interface CircuitBreakerOptions {
+  /** Number of consecutive transient failures after which the circuit opens (default: 5) */
+  failureThreshold?: number;
+  /** Time for which the circuit stays open before a trial request is allowed (default: 30000) */
+  resetMilliseconds?: number;
+}
+
+/** Resilience options accepted by the bindings via the `resilience` option */
+export interface ResilienceOptions {
+  retry?: RetryOptions;
+  hedge?: HedgeOptions;
+  circuitBreaker?: CircuitBreakerOptions;
+}
+
+/** States of a circuit breaker */
+export enum CircuitState {
+  CLOSED = 'CLOSED',
+  OPEN = 'OPEN',
+  HALF_OPEN = 'HALF_OPEN',
+}
+
+/**
+ * Whether an error is likely to be transient, so the request is worth retrying.
+ *
+ * Server errors, rate limiting and errors without a response (e.g. connection resets) are transient.
+ * Other API errors, errors raised by the client itself and canceled requests are not.
+ */
+export function isTransientError(error: Error): boolean {
+  if (axios.isCancel(error)) {
+    return false;
+  }
+  if (error instanceof ApiError) {
+    return error.status === undefined || error.status >= 500 || error.status === 429;
+  }
+  return !(error instanceof CoverClientError);
+}
+
+/**
+ * Tracks consecutive transient failures of requests to a server.
+ *
+ * Once `failureThreshold` is reached the circuit opens and requests are rejected without being made.
+ * After `resetMilliseconds` a single trial request is allowed, which closes the circuit if it succeeds,
+ * or opens it again if it fails.
+ */
+export class CircuitBreaker {
+
+  public readonly failureThreshold: number;
+  public readonly resetMilliseconds: number;
+  private failures = 0;
+  private openedTime?: number;
+  private trialInProgress = false;
+
+  public constructor({ failureThreshold = 5, resetMilliseconds = 30000 }: CircuitBreakerOptions = {}) {
+    this.failureThreshold = failureThreshold;
+    this.resetMilliseconds = resetMilliseconds;
+  }
+
+  /** The current state of the circuit */
+  public get state(): CircuitState {
+    if (this.openedTime === undefined) {
+      return CircuitState.CLOSED;
+    }
+    const openMilliseconds = dependencies.now() - this.openedTime;
+    return openMilliseconds < this.resetMilliseconds ? CircuitState.OPEN : CircuitState.HALF_OPEN;
+  }
+
+  /** Whether a request may be made, reserving the trial request if the circuit is half open */
+  public allowRequest(): boolean {
+    const state = this.state;
+    if (state === CircuitState.CLOSED) {
+      return true;
+    }
+    if (state === CircuitState.HALF_OPEN && !this.trialInProgress) {
+      this.trialInProgress = true;
+      return true;
+    }
+    return false;
+  }
+
+  /** Record a request which reached the server and was handled */
+  public recordSuccess(): void {
+    this.failures = 0;
+    this.openedTime = undefined;
+    this.trialInProgress = false;
+  }
+
+  /** Record a canceled request, which says nothing about the server, releasing the trial request if it was one */
+  public recordCanceled(): void {
+    this.trialInProgress = false;
+  }
+
+  /** Record a request which failed with a transient error */
+  public recordFailure(): void {
+    this.failures += 1;
+    if (this.trialInProgress || this.failures >= this.failureThreshold) {
+      this.openedTime = dependencies.now();
+    }
+    this.trialInProgress = false;
+  }
+}
+
+const circuitBreakers = new Map<string, CircuitBreaker>();
+
+/** Get the key identifying the server of an API URL */
+function getServerKey(api: string): string {
+  const { protocol, host } = parse(api);
+  return protocol && host ? `${protocol}//${host}` : api;
+}
+
+/**
+ * Get the circuit breaker for the server of an API URL, which is shared by every request to that server.
+ *
+ * The options are only used when the circuit breaker is first created.
+ */
+export function getCircuitBreaker(api: string, options?: CircuitBreakerOptions): CircuitBreaker {
+  const key = getServerKey(api);
+  let breaker = circuitBreakers.get(key);
+  if (!breaker) {
+    breaker = new CircuitBreaker(options);
+    circuitBreakers.set(key, breaker);
+  }
+  return breaker;
+}
+
+/** Remove all circuit breakers, closing every circuit */
+export function resetCircuitBreakers(): void {
+  circuitBreakers.clear();
+}
+
+/** Get the backoff before a retry, using exponential backoff with full jitter */
+export function getBackoff(
+  retry: number,
+  { minDelayMilliseconds = 250, maxDelayMilliseconds = 10000 }: RetryOptions,
+): number {
+  return dependencies.random() * Math.min(maxDelayMilliseconds, minDelayMilliseconds * (2 ** retry));
+}
+
+/** Wait for the specified time, rejecting with the cancellation as soon as a cancel token is canceled */
+async function sleep(milliseconds: number, cancelToken?: CancelToken): Promise<void> {
+  if (cancelToken) {
+    cancelToken.throwIfRequested();
+  }
+  return new Promise<void>((resolve, reject) => {
+    const timer = dependencies.setTimeout(resolve, milliseconds);
+    if (cancelToken) {
+      cancelToken.promise.then((cancel) => {
+        dependencies.clearTimeout(timer);
+        reject(cancel);
+      }, () => undefined);
+    }
+  });
+}
+
+/** Create a cancel token source which is also canceled when a parent token is canceled */
+function createLinkedCancelTokenSource(parent?: CancelToken): CancelTokenSource {
+  const source = axios.CancelToken.source();
+  if (parent) {
+    parent.promise.then((cancel) => source.cancel(cancel.message), () => undefined);
+  }
+  return source;
+}
+
+/**
+ * Make a request, and make a second identical request if the first has not completed after a delay.
+ *
+ * Each request is sent with its own cancel token, which is canceled if `cancelToken` is canceled.
+ * Resolves with whichever response arrives first, canceling the other request,
+ * and only rejects once every request made has failed.
+ */
+export async function hedge<Response>(
+  send: (cancelToken: CancelToken) => Promise<Response>,
+  delayMilliseconds: number,
+  cancelToken?: CancelToken,
+): Promise<Response> {
+  return new Promise<Response>((resolve, reject) => {
+    let settled = false;
+    let inFlight = 0;
+    let timer: NodeJS.Timeout | undefined;
+    const sources: CancelTokenSource[] = [];
+    const launch = () => {
+      const source = createLinkedCancelTokenSource(cancelToken);
+      sources.push(source);
+      inFlight += 1;
+      send(source.token).then((response) => {
+        if (!settled) {
+          settled = true;
+          if (timer) {
+            dependencies.clearTimeout(timer);
+          }
+          sources.filter((other) => other !== source).forEach((other) => other.cancel('Hedged request lost'));
+          resolve(response);
+        }
+      }, (error: Error) => {
+        inFlight -= 1;
+        if (!settled && !inFlight) {
+          settled = true;
+          if (timer) {
+            dependencies.clearTimeout(timer);
+          }
+          reject(error);
+        }
+      });
+    };
+    timer = dependencies.setTimeout(() => {
+      timer = undefined;
+      if (!settled) {
+        launch();
+      }
+    }, delayMilliseconds);
+    launch();
+  });
+}
+
+/**
+ * Make a request to the specified API, applying the resilience options.
+ *
+ * Only idempotent requests are retried or hedged, but every request is subject to the circuit breaker.
+ * If no options are set the request is made directly.
+ *
+ * `send` is passed the cancel token to make the request with: `cancelToken`,
+ * or when hedging, a token of its own which is canceled if `cancelToken` is, or if the other request wins.
+ */
+export default async function resilient<Response>(
+  api: string,
+  idempotent: boolean,
+  options: ResilienceOptions | undefined,
+  send: (cancelToken?: CancelToken) => Promise<Response>,
+  cancelToken?: CancelToken,
+): Promise<Response> {
+  if (!options) {
+    return send(cancelToken);
+  }
+  const breaker = options.circuitBreaker ? getCircuitBreaker(api, options.circuitBreaker) : undefined;
+  const attempt = async (attemptCancelToken?: CancelToken) => {
+    if (!breaker) {
+      return send(attemptCancelToken);
+    }
+    if (!breaker.allowRequest()) {
+      throw new ResilienceError(`Circuit open for ${getServerKey(api)}`, ResilienceErrorCode.CIRCUIT_OPEN);
+    }
+    try {
+      const response = await send(attemptCancelToken);
+      breaker.recordSuccess();
+      return response;
+    } catch (error) {
+      if (axios.isCancel(error)) {
+        breaker.recordCanceled();
+      } else if (isTransientError(error)) {
+        breaker.recordFailure();
+      } else {
+        breaker.recordSuccess();
+      }
+      throw error;
+    }
+  };
+  const hedgeOptions = idempotent ? options.hedge : undefined;
+  const retryOptions = idempotent ? options.retry : undefined;
+  const retries = retryOptions && retryOptions.retries !== undefined ? retryOptions.retries : 3;
+  for (let retry = 0; ; retry++) {
+    try {
+      return await (hedgeOptions ? hedge(attempt, hedgeOptions.delayMilliseconds, cancelToken) : attempt(cancelToken));
+    } catch (error) {
+      if (!retryOptions || retry >= retries || !isTransientError(error) || (cancelToken && cancelToken.reason)) {
+        throw error;
+      }
+      await sleep(getBackoff(retry, retryOptions), cancelToken);
+    }
+  }
+}
@@ -0,0 +1,144 @@
+// Copyright 2019 Diffblue Limited. All Rights Reserved.
+
+import { createHash } from 'crypto';
+import { readFile, writeFile } from 'fs';
+import { cloneDeep } from 'lodash';
+import * as mkdirp from 'mkdirp';
+import { join } from 'path';
+import { promisify } from 'util';
+
+export const dependencies = {
+  mkdirp: promisify(mkdirp),
+  now: Date.now,
+  readFile: promisify(readFile),
+  writeFile: promisify(writeFile),
+};
+
+/** Options accepted by `ResponseCache` */
+export interface ResponseCacheOptions {
+  /** Time for which a response is used without revalidating it (default: 300000, i.e. 5 minutes) */
+  ttlMilliseconds?: number;
+  /** Directory in which to also store responses, so they are shared between processes */
+  directory?: string;
+}
+
+/** A response received from the server, or `notModified` if it matched the supplied ETag */
+export interface CacheableResponse<Data> {
+  notModified: boolean;
+  data?: Data;
+  etag?: string;
+}
+
+/** A cached response */
+export interface CacheEntry<Data> {
+  data: Data;
+  etag?: string;
+  expires: number;
+}
+
+/** Get the path of the file in which a key is stored on disk */
+function getCachePath(directory: string, key: string): string {
+  return join(directory, `${createHash('sha256').update(key).digest('hex')}.json`);
+}
+
+/**
+ * Caches API responses which rarely change, such as the API version and default settings.
+ *
+ * Concurrent requests for the same key share a single request to the server.
+ * Once an entry has expired it is revalidated using its ETag, so an unchanged response is not downloaded again.
+ * Every caller receives its own copy of the cached data, so it may be modified freely.
+ */
+export default class ResponseCache {
+
+  public readonly ttlMilliseconds: number;
+  public readonly directory?: string;
+  private readonly entries = new Map<string, CacheEntry<object>>();
+  private readonly inFlight = new Map<string, Promise<CacheEntry<object>>>();
+
+  public constructor({ ttlMilliseconds = 300000, directory }: ResponseCacheOptions = {}) {
+    this.ttlMilliseconds = ttlMilliseconds;
+    this.directory = directory;
+  }
+
+  /**
+   * Get the data for a key, from the cache if it has not expired, otherwise using `fetch`.
+   *
+   * `fetch` is passed the ETag of any expired entry, and should resolve with `notModified` if it still matches.
+   */
+  public async get<Data extends object>(
+    key: string,
+    fetch: (etag?: string) => Promise<CacheableResponse<Data>>,
+  ): Promise<Data> {
+    const entry = this.entries.get(key);
+    if (entry && entry.expires > dependencies.now()) {
+      return cloneDeep(entry.data as Data);
+    }
+    let request = this.inFlight.get(key);
+    if (!request) {
+      const refresh = async () => {
+        try {
+          return await this.refresh(key, entry, fetch);
+        } finally {
+          this.inFlight.delete(key);
+        }
+      };
+      request = refresh();
+      this.inFlight.set(key, request);
+    }
+    return cloneDeep((await request).data as Data);
+  }
+
+  /** Remove every entry from the in-memory cache */
+  public clear(): void {
+    this.entries.clear();
+  }
+
+  /** Fetch or revalidate an entry, and store it */
+  private async refresh<Data extends object>(
+    key: string,
+    entry: CacheEntry<object> | undefined,
+    fetch: (etag?: string) => Promise<CacheableResponse<Data>>,
+  ): Promise<CacheEntry<object>> {
+    const existing = entry || await this.readFromDisk(key);
+    if (existing && existing.expires > dependencies.now()) {
+      this.entries.set(key, existing);
+      return existing;
+    }
+    const response = await fetch(existing && existing.etag);
+    const expires = dependencies.now() + this.ttlMilliseconds;
+    const updated = existing && response.notModified
+      ? { ...existing, expires: expires }
+      : { data: response.data as Data, etag: response.etag, expires: expires };
+    this.entries.set(key, updated);
+    await this.writeToDisk(key, updated);
+    return updated;
+  }
+
+  /** Read an entry from disk, if there is a directory and a readable entry in it */
+  private async readFromDisk(key: string): Promise<CacheEntry<object> | undefined> {
+    if (!this.directory) {
+      return undefined;
+    }
+    try {
+      return JSON.parse((await dependencies.readFile(getCachePath(this.directory, key))).toString());
+    } catch (error) {
+      return undefined;  // A missing or corrupt file is treated as a cache miss
+    }
+  }
+
+  /** Write an entry to disk, if there is a directory */
+  private async writeToDisk(key: string, entry: CacheEntry<object>): Promise<void> {
+    if (!this.directory) {
+      return;
+    }
+    try {
+      await dependencies.mkdirp(this.directory);
+      await dependencies.writeFile(getCachePath(this.directory, key), JSON.stringify(entry));
+    } catch (error) {
+      // The disk cache is an optimization, so failing to write to it is not an error
+    }
+  }
+}
+
+/** A cache shared by the whole process, which can be passed as the `responseCache` bindings option */
+export const sharedResponseCache = new ResponseCache();
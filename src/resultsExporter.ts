@@ -0,0 +1,289 @@
+// Copyright 2019 Diffblue Limited. All Rights Reserved.
+
+import { createWriteStream } from 'fs';
+import { Writable } from 'stream';
+import { createGzip } from 'zlib';
+
+import { WriterError, WriterErrorCode } from './errors';
+import { AnalysisResult } from './types/types';
+import SerialQueue from './utils/serialQueue';
+
+export const dependencies = {
+  createGzip: createGzip,
+  createWriteStream: createWriteStream,
+};
+
+/** Format of an export: one JSON result per line, or one dictionary encoded batch of columns per line */
+export type ExportFormat = 'ndjson' | 'columnar';
+
+/** Options accepted by `ResultsExporter` */
+export interface ResultsExporterOptions {
+  /** Format of the export (default: 'ndjson') */
+  format?: ExportFormat;
+  /** Compress the export with gzip (default: false) */
+  gzip?: boolean;
+}
+
+/** Result properties exported as they are */
+type RawField = 'createdTime' | 'testBody' | 'testId' | 'testName';
+/** Result properties exported as an index into the string dictionary */
+type InternedField = 'sourceFilePath' | 'testedFunction';
+/** Result properties exported as an array of indexes into the string dictionary */
+type InternedListField = 'classAnnotations' | 'classRules' | 'coveredLines' | 'imports' | 'staticImports' | 'tags';
+
+const rawFields: RawField[] = ['createdTime', 'testBody', 'testId', 'testName'];
+const internedFields: InternedField[] = ['sourceFilePath', 'testedFunction'];
+const internedListFields: InternedListField[] = [
+  'classAnnotations',
+  'classRules',
+  'coveredLines',
+  'imports',
+  'staticImports',
+  'tags',
+];
+
+/** Header line of a columnar export */
+export const columnarHeader = { format: 'cover-results-columnar', version: 1 };
+
+/**
+ * A batch of results in columnar form, with one array per result property.
+ *
+ * Repeated strings are interned in a dictionary shared by every batch of an export.
+ * Each batch holds only the `strings` it added to the dictionary, which follow those added by earlier batches.
+ */
+export type ColumnarBatch = { count: number; strings: string[] }
+  & { [Field in RawField]: string[] }
+  & { [Field in InternedField]: number[] }
+  & { [Field in InternedListField]: number[][] };
+
+/** Encodes batches of results into columns, interning repeated strings */
+export class ColumnarEncoder {
+
+  private readonly dictionary = new Map<string, number>();
+
+  /** Encode a batch of results, adding any new strings to the dictionary */
+  public encode(results: AnalysisResult[]): ColumnarBatch {
+    const strings: string[] = [];
+    const intern = (value: string) => {
+      let index = this.dictionary.get(value);
+      if (index === undefined) {
+        index = this.dictionary.size;
+        this.dictionary.set(value, index);
+        strings.push(value);
+      }
+      return index;
+    };
+    const batch = { count: results.length, strings: strings } as ColumnarBatch;
+    rawFields.forEach((field) => {
+      batch[field] = results.map((result) => result[field]);
+    });
+    internedFields.forEach((field) => {
+      batch[field] = results.map((result) => intern(result[field]));
+    });
+    internedListFields.forEach((field) => {
+      batch[field] = results.map((result) => result[field].map(intern));
+    });
+    return batch;
+  }
+}
+
+/** Decodes the batches of a columnar export, in the order they were encoded */
+export class ColumnarDecoder {
+
+  private readonly strings: string[] = [];
+
+  /** Decode a batch of results, adding its strings to the dictionary */
+  public decode(batch: ColumnarBatch): AnalysisResult[] {
+    this.strings.push(...batch.strings);
+    const lookup = (index: number) => this.strings[index];
+    return Array.from({ length: batch.count }, (_, row) => {
+      const result = {} as AnalysisResult;
+      rawFields.forEach((field) => {
+        result[field] = batch[field][row];
+      });
+      internedFields.forEach((field) => {
+        result[field] = lookup(batch[field][row]);
+      });
+      internedListFields.forEach((field) => {
+        result[field] = batch[field][row].map(lookup);
+      });
+      return result;
+    });
+  }
+}
+
+/** Parse a line of a columnar export */
+function parseLine(line: string, lineNumber: number): unknown {
+  try {
+    return JSON.parse(line);
+  } catch (error) {
+    throw new WriterError(
+      `Line ${lineNumber} of the export is not valid JSON: ${error.message}`,
+      WriterErrorCode.EXPORT_INVALID,
+    );
+  }
+}
+
+/** Check a parsed line of a columnar export is a batch, with a value in every column for each result */
+function isColumnarBatch(value: unknown): value is ColumnarBatch {
+  if (!value || typeof value !== 'object') {
+    return false;
+  }
+  const batch = value as ColumnarBatch;
+  const isColumn = (column: unknown[]) => Array.isArray(column) && column.length === batch.count;
+  return typeof batch.count === 'number'
+    && Array.isArray(batch.strings)
+    && [...rawFields, ...internedFields, ...internedListFields].every((field) => isColumn(batch[field]))
+    && internedListFields.every((field) => batch[field].every((indexes) => Array.isArray(indexes)));
+}
+
+/**
+ * Decode the content of an uncompressed columnar export
+ *
+ * Throws a `WriterError` with code `EXPORT_INVALID` if the content is not a columnar export, or is malformed,
+ * or with code `EXPORT_UNSUPPORTED` if it is a version of the format which cannot be decoded.
+ */
+export function decodeColumnar(content: string): AnalysisResult[] {
+  const [header, ...lines] = content.split('\n').filter(Boolean);
+  if (header === undefined) {
+    throw new WriterError('The export is empty.', WriterErrorCode.EXPORT_INVALID);
+  }
+  const { format, version } = (parseLine(header, 1) || {}) as { format?: unknown; version?: unknown };
+  if (format !== columnarHeader.format) {
+    throw new WriterError(`The export is not a columnar export (format ${format}).`, WriterErrorCode.EXPORT_INVALID);
+  }
+  if (version !== columnarHeader.version) {
+    throw new WriterError(
+      `The export has an unsupported version of the columnar format (version ${version}).`,
+      WriterErrorCode.EXPORT_UNSUPPORTED,
+    );
+  }
+  const decoder = new ColumnarDecoder();
+  return ([] as AnalysisResult[]).concat(...lines.map((line, index) => {
+    const batch = parseLine(line, index + 2);
+    if (!isColumnarBatch(batch)) {
+      throw new WriterError(`Line ${index + 2} of the export is not a valid batch.`, WriterErrorCode.EXPORT_INVALID);
+    }
+    return decoder.decode(batch);
+  }));
+}
+
+/**
+ * Exports results to a file, a batch at a time, for loading into other tools.
+ *
+ * The `ndjson` format writes one JSON result per line.
+ * The `columnar` format writes a header line, then one `ColumnarBatch` per line,
+ * interning the tested function, source file path, tags, imports and other repeated strings,
+ * so the export is a fraction of the size of the raw JSON. It can be read with `decodeColumnar`.
+ *
+ * Each batch is serialized and written on its own, so the whole set of results is never serialized at once,
+ * and writes wait for the file to keep up. `close` must be called once every batch has been written.
+ */
+export default class ResultsExporter {
+
+  public readonly path: string;
+  public readonly format: ExportFormat;
+  public readonly gzip: boolean;
+  /** Number of results written */
+  public exported = 0;
+  private readonly file: Writable;
+  private readonly output: Writable;
+  private readonly encoder?: ColumnarEncoder;
+  private started = false;
+  private closed = false;
+  private error?: Error;
+  private readonly queue = new SerialQueue();
+
+  public constructor(path: string, options: ResultsExporterOptions = {}) {
+    this.path = path;
+    this.format = options.format || 'ndjson';
+    this.gzip = Boolean(options.gzip);
+    const onError = (error: Error) => {
+      this.error = this.error || error;
+    };
+    const file = dependencies.createWriteStream(path);
+    file.on('error', onError);
+    this.file = file;
+    if (this.gzip) {
+      const gzip = dependencies.createGzip();
+      gzip.on('error', onError);
+      gzip.pipe(file);
+      this.output = gzip;
+    } else {
+      this.output = file;
+    }
+    if (this.format === 'columnar') {
+      this.encoder = new ColumnarEncoder();
+    }
+  }
+
+  /** Write a batch of results, once every earlier batch has been written */
+  public async write(results: AnalysisResult[]): Promise<void> {
+    return this.queue.enqueue(async () => {
+      await this.start();
+      if (!results.length) {
+        return;
+      }
+      if (this.encoder) {
+        await this.writeChunk(`${JSON.stringify(this.encoder.encode(results))}\n`);
+      } else {
+        await this.writeChunk(results.map((result) => `${JSON.stringify(result)}\n`).join(''));
+      }
+      this.exported += results.length;
+    });
+  }
+
+  /** Finish the export, resolving once the file has been closed */
+  public async close(): Promise<void> {
+    return this.queue.enqueue(async () => {
+      if (this.closed) {
+        return;
+      }
+      await this.start();
+      await new Promise<void>((resolve, reject) => {
+        if (this.error) {
+          // Release the file, which is never closed once the gzip stream has failed
+          this.output.destroy();
+          this.file.destroy();
+          reject(this.error);
+          return;
+        }
+        this.file.on('close', () => resolve());
+        this.file.on('error', reject);
+        this.output.end();
+      });
+      this.closed = true;
+    });
+  }
+
+  /** Write the header of a columnar export, if it has not been written */
+  private async start(): Promise<void> {
+    if (!this.started) {
+      this.started = true;
+      if (this.encoder) {
+        await this.writeChunk(`${JSON.stringify(columnarHeader)}\n`);
+      }
+    }
+  }
+
+  /** Write a chunk, resolving once it has been handled by the output stream, or rejecting if either stream fails */
+  private async writeChunk(chunk: string): Promise<void> {
+    return new Promise<void>((resolve, reject) => {
+      if (this.error) {
+        reject(this.error);
+        return;
+      }
+      const streams = this.output === this.file ? [this.file] : [this.output, this.file];
+      const settle = (error?: Error | null) => {
+        streams.forEach((stream) => stream.removeListener('error', settle));
+        if (error) {
+          reject(error);
+        } else {
+          resolve();
+        }
+      };
+      streams.forEach((stream) => stream.once('error', settle));
+      this.output.write(chunk, settle);
+    });
+  }
+}
@@ -0,0 +1,202 @@
+// Copyright 2019 Diffblue Limited. All Rights Reserved.
+
+import { close, mkdtemp, open, read, rmdir, unlink, write } from 'fs';
+import { tmpdir } from 'os';
+import { join } from 'path';
+import { promisify } from 'util';
+
+import { AnalysisResult } from './types/types';
+import SerialQueue from './utils/serialQueue';
+
+export const dependencies = {
+  close: promisify(close),
+  mkdtemp: promisify(mkdtemp),
+  open: promisify(open),
+  read: promisify(read),
+  rmdir: promisify(rmdir),
+  unlink: promisify(unlink),
+  write: promisify(write),
+};
+
+/** Default approximate size of the results held in memory before they are spilled to disk */
+export const defaultMaxMemoryBytes = 64 * 1024 * 1024;
+
+/** Options accepted by `ResultsStore` */
+export interface ResultsStoreOptions {
+  /** Approximate size of the results held in memory, as JSON, before they are spilled to disk (default: 64 MB) */
+  maxMemoryBytes?: number;
+  /** Directory in which a temporary directory for the spill file is created (default: the OS temporary directory) */
+  directory?: string;
+}
+
+/** The location in the spill file of a run of results for one source file */
+interface Segment {
+  offset: number;
+  length: number;
+}
+
+/** The spill file, opened on the first spill */
+interface SpillFile {
+  directory: string;
+  path: string;
+  fd: number;
+  length: number;
+}
+
+/** Approximate overhead of each property of a result as JSON, for its name, quotes and separators */
+const propertyOverhead = 20;
+
+/**
+ * Estimate the size of a result as JSON, without serializing it
+ *
+ * Values are converted to strings, as the API may return some properties, such as `createdTime`, as numbers.
+ */
+function estimateSize(result: AnalysisResult): number {
+  return Object.values(result).reduce((total: number, value: unknown) => {
+    const values: unknown[] = Array.isArray(value) ? value : [value];
+    return values.reduce((size: number, item) => size + String(item).length + 3, total + propertyOverhead);
+  }, 0);
+}
+
+/** Parse a segment of newline delimited JSON results */
+function parseSegment(buffer: Buffer): AnalysisResult[] {
+  return buffer.toString().split('\n').filter(Boolean).map((line) => JSON.parse(line));
+}
+
+/**
+ * A store of analysis results with a memory budget.
+ *
+ * Results are held in memory, grouped by `sourceFilePath`, until their approximate size exceeds `maxMemoryBytes`.
+ * They are then spilled to a temporary file as newline delimited JSON, each group written as one segment,
+ * with an index of the segments for each `sourceFilePath`.
+ * Reading a group reads only its segments, so results can be written one class at a time within a fixed memory cap.
+ *
+ * `close` must be called to delete the spill file once the results are no longer needed.
+ */
+export default class ResultsStore {
+
+  public readonly maxMemoryBytes: number;
+  public readonly directory: string;
+  /** Total number of results in the store */
+  public size = 0;
+  /** Number of results which have been spilled to disk */
+  public spilled = 0;
+  private memory = new Map<string, AnalysisResult[]>();
+  private memoryBytes = 0;
+  private readonly index = new Map<string, Segment[]>();
+  private file?: SpillFile;
+  private readonly queue = new SerialQueue();
+
+  public constructor(options: ResultsStoreOptions = {}) {
+    this.maxMemoryBytes = options.maxMemoryBytes === undefined ? defaultMaxMemoryBytes : options.maxMemoryBytes;
+    this.directory = options.directory || tmpdir();
+  }
+
+  /** Add results, spilling the results in memory to disk if they exceed the memory budget */
+  public async add(results: AnalysisResult[]): Promise<void> {
+    return this.queue.enqueue(async () => {
+      results.forEach((result) => {
+        const group = this.memory.get(result.sourceFilePath);
+        if (group) {
+          group.push(result);
+        } else {
+          this.memory.set(result.sourceFilePath, [result]);
+        }
+        this.memoryBytes += estimateSize(result);
+      });
+      this.size += results.length;
+      if (this.memoryBytes > this.maxMemoryBytes) {
+        await this.spill();
+      }
+    });
+  }
+
+  /** Get the `sourceFilePath` of every group of results, in the order they were first added */
+  public sourceFilePaths(): string[] {
+    return [...new Set([...this.index.keys(), ...this.memory.keys()])];
+  }
+
+  /** Get the results for a `sourceFilePath`, in the order they were added */
+  public async getGroup(sourceFilePath: string): Promise<AnalysisResult[]> {
+    // A group may be split between spilled segments and memory. Both are read here, before any await,
+    // and `spill` updates them together, so no result is read twice or missed.
+    const file = this.file;
+    const segments = this.index.get(sourceFilePath) || [];
+    const inMemory = (this.memory.get(sourceFilePath) || []).slice();
+    if (!file || !segments.length) {
+      return inMemory;
+    }
+    const spilled = await Promise.all(segments.map(async ({ offset, length }) => {
+      const buffer = Buffer.alloc(length);
+      await dependencies.read(file.fd, buffer, 0, length, offset);
+      return parseSegment(buffer);
+    }));
+    return ([] as AnalysisResult[]).concat(...spilled, inMemory);
+  }
+
+  /**
+   * Get every result in the store, grouped by `sourceFilePath`
+   *
+   * Every result is then held in memory, so prefer reading one group at a time with `getGroup`.
+   * Groups are read one at a time, so that at most one read of the spill file is in progress.
+   */
+  public async getAll(): Promise<AnalysisResult[]> {
+    const groups: AnalysisResult[][] = [];
+    for (const sourceFilePath of this.sourceFilePaths()) {
+      groups.push(await this.getGroup(sourceFilePath));
+    }
+    return ([] as AnalysisResult[]).concat(...groups);
+  }
+
+  /** Remove every result, and delete the spill file */
+  public async close(): Promise<void> {
+    return this.queue.enqueue(async () => {
+      const file = this.file;
+      this.file = undefined;
+      this.memory = new Map();
+      this.memoryBytes = 0;
+      this.index.clear();
+      this.size = 0;
+      this.spilled = 0;
+      if (file) {
+        await dependencies.close(file.fd);
+        await dependencies.unlink(file.path);
+        await dependencies.rmdir(file.directory);
+      }
+    });
+  }
+
+  /** Create and open the spill file, if it is not already open */
+  private async openFile(): Promise<SpillFile> {
+    if (!this.file) {
+      const directory = await dependencies.mkdtemp(join(this.directory, 'cover-client-results-'));
+      const path = join(directory, 'results.ndjson');
+      this.file = { directory: directory, path: path, fd: await dependencies.open(path, 'w+'), length: 0 };
+    }
+    return this.file;
+  }
+
+  /** Append every group in memory to the spill file */
+  private async spill(): Promise<void> {
+    const file = await this.openFile();
+    const written: Array<[string, Segment]> = [];
+    for (const [sourceFilePath, results] of this.memory) {
+      const buffer = Buffer.from(results.map((result) => `${JSON.stringify(result)}\n`).join(''));
+      await dependencies.write(file.fd, buffer, 0, buffer.length, file.length);
+      written.push([sourceFilePath, { offset: file.length, length: buffer.length }]);
+      file.length += buffer.length;
+    }
+    // Update the index and memory together, so that readers never see a group twice
+    written.forEach(([sourceFilePath, segment]) => {
+      const segments = this.index.get(sourceFilePath);
+      if (segments) {
+        segments.push(segment);
+      } else {
+        this.index.set(sourceFilePath, [segment]);
+      }
+    });
+    this.spilled += [...this.memory.values()].reduce((total, results) => total + results.length, 0);
+    this.memory = new Map();
+    this.memoryBytes = 0;
+  }
+}
@@ -0,0 +1,310 @@
+// Copyright 2019 Diffblue Limited. All Rights Reserved.
+
+import { map } from 'bluebird';
+import { createReadStream, readFile } from 'fs';
+import { Agent as HttpAgent } from 'http';
+import { Agent as HttpsAgent } from 'https';
+import { dirname, resolve } from 'path';
+import { Readable } from 'stream';
+import { promisify } from 'util';
+
+import Analysis from '../analysis';
+import Instrumentation from '../instrumentation';
+import ResponseCache from '../responseCache';
+import { AnalysisFiles, AnalysisSettings, BindingsOptions } from '../types/types';
+import { Options } from '../utils/argvParser';
+import commandLineRunner, { ExpectedError } from '../utils/commandLineRunner';
+import multiline from '../utils/multiline';
+import { parseNumberOption } from '../utils/parseOptions';
+
+export const dependencies = {
+  clearInterval: clearInterval,
+  createReadStream: createReadStream,
+  now: Date.now,
+  readFile: promisify(readFile),
+  setInterval: setInterval,
+  writeProgress: (line: string) => process.stderr.write(`${line}\n`),
+};
+
+export const components = {
+  Analysis: Analysis,
+  runBatch: runBatch,
+};
+
+/** A single analysis listed in a batch manifest. Paths are relative to the manifest. */
+export interface BatchEntry {
+  build: string;
+  dependenciesBuild?: string;
+  baseBuild?: string;
+  /** Analysis settings, or the path of a JSON file containing them (default: the server's default settings) */
+  settings?: AnalysisSettings | string;
+  outputTests: string;
+}
+
+/** A batch manifest, listing the analyses to run */
+export interface BatchManifest {
+  apiUrl?: string;
+  concurrency?: number;
+  pollingInterval?: number;
+  analyses: BatchEntry[];
+}
+
+/** Options accepted by `runBatch` */
+export interface BatchOptions {
+  apiUrl: string;
+  /** Maximum number of analyses in progress at once */
+  concurrency: number;
+  pollingInterval?: number;
+  progressIntervalMilliseconds: number;
+  /** Directory from which the paths in each entry are resolved */
+  baseDirectory: string;
+  allowUnauthorizedHttps?: boolean;
+}
+
+/** Counts reported while a batch is running */
+export interface BatchProgress {
+  elapsedMilliseconds: number;
+  total: number;
+  running: number;
+  completed: number;
+  failed: number;
+  testsWritten: number;
+  bytesWritten: number;
+}
+
+/** Outcome of a single analysis in a batch */
+export interface BatchEntryReport {
+  build: string;
+  outputTests: string;
+  analysisId?: string;
+  status?: string;
+  results: number;
+  error?: string;
+}
+
+/** Machine readable batch output */
+export interface BatchReport {
+  durationSeconds: number;
+  completed: number;
+  failed: number;
+  testsWritten: number;
+  bytesWritten: number;
+  analyses: BatchEntryReport[];
+}
+
+const description = multiline`
+  Runs every analysis listed in a JSON manifest, at most --concurrency at a time,
+  writing tests for each as results arrive, and reports the outcome of each analysis as JSON.
+  Progress and throughput are reported on stderr while the batch runs.
+
+  The manifest lists the analyses to run, with paths relative to the manifest:
+    { "apiUrl": "https://cover.example.com/api", "concurrency": 4, "analyses": [
+      { "build": "app/build.jar", "settings": "app/settings.json", "outputTests": "app/src/test/java" }
+    ] }
+
+  Options:
+    --api-url=URL             Cover API URL (default: "apiUrl" from the manifest)
+    --concurrency=4           Maximum number of analyses in progress at once (default: manifest, or 4)
+    --polling-interval=60     Polling interval of each analysis in seconds (default: manifest, or 60)
+    --progress-interval=5     Interval between progress reports in seconds (default: 5)
+    --allow-unauthorized-https  Do not reject the server's certificate
+`;
+
+const byteUnits = ['B', 'KB', 'MB', 'GB'];
+
+/** Format a number of bytes for display */
+export function formatBytes(bytes: number): string {
+  let value = bytes;
+  let unit = 0;
+  while (value >= 1024 && unit < byteUnits.length - 1) {
+    value /= 1024;
+    unit += 1;
+  }
+  return `${unit ? value.toFixed(1) : value} ${byteUnits[unit]}`;
+}
+
+/** Format a progress report as a single line */
+export function formatProgress(progress: BatchProgress): string {
+  const seconds = progress.elapsedMilliseconds / 1000;
+  const rate = (count: number) => seconds ? count / seconds : 0;
+  return [
+    `${seconds.toFixed(1)}s`,
+    `${progress.completed + progress.failed}/${progress.total} analyses finished (${progress.failed} failed)`,
+    `${progress.running} running`,
+    `${progress.testsWritten} tests written (${rate(progress.testsWritten).toFixed(1)} tests/s)`,
+    `${formatBytes(progress.bytesWritten)} written (${formatBytes(rate(progress.bytesWritten))}/s)`,
+  ].join(', ');
+}
+
+/** Read the settings for an entry, if they are in a file */
+async function loadSettings(entry: BatchEntry, baseDirectory: string): Promise<AnalysisSettings | undefined> {
+  if (typeof entry.settings !== 'string') {
+    return entry.settings;
+  }
+  return JSON.parse((await dependencies.readFile(resolve(baseDirectory, entry.settings))).toString());
+}
+
+/** Open the build files for an entry */
+function openFiles(entry: BatchEntry, baseDirectory: string): AnalysisFiles {
+  const open = (path: string) => dependencies.createReadStream(resolve(baseDirectory, path));
+  const files: AnalysisFiles = { build: open(entry.build) };
+  if (entry.dependenciesBuild) {
+    files.dependenciesBuild = open(entry.dependenciesBuild);
+  }
+  if (entry.baseBuild) {
+    files.baseBuild = open(entry.baseBuild);
+  }
+  return files;
+}
+
+/** Destroy the streams of an entry's build files, which are left open if the analysis fails before uploading them */
+function closeFiles(files: AnalysisFiles): void {
+  [files.build, files.dependenciesBuild, files.baseBuild].forEach((file) => {
+    if (file instanceof Readable) {
+      file.destroy();
+    }
+  });
+}
+
+/**
+ * Run every analysis in a batch, at most `concurrency` at a time, resolving with a report once all have ended.
+ *
+ * Every analysis shares the same keep-alive connection pool and cached default settings,
+ * and writes tests after each poll, so partial results are on disk if the batch is interrupted.
+ * An analysis failing is recorded in the report rather than stopping the batch.
+ */
+export async function runBatch(entries: BatchEntry[], options: BatchOptions): Promise<BatchReport> {
+  const startTime = dependencies.now();
+  const progress: BatchProgress = {
+    elapsedMilliseconds: 0,
+    total: entries.length,
+    running: 0,
+    completed: 0,
+    failed: 0,
+    testsWritten: 0,
+    bytesWritten: 0,
+  };
+  const instrumentation = new Instrumentation().onWrite(({ results, bytes }) => {
+    progress.testsWritten += results;
+    progress.bytesWritten += bytes;
+  });
+  const maxSockets = options.concurrency * 2;  // Leaves headroom for overlapping requests, e.g. when hedging
+  const httpAgent = new HttpAgent({ keepAlive: true, maxSockets: maxSockets });
+  const httpsAgent = new HttpsAgent({ keepAlive: true, maxSockets: maxSockets });
+  const bindingsOptions: BindingsOptions = {
+    allowUnauthorizedHttps: options.allowUnauthorizedHttps,
+    httpAgent: httpAgent,
+    httpsAgent: httpsAgent,
+    instrumentation: instrumentation,
+    responseCache: new ResponseCache(),
+  };
+  const report = () => {
+    progress.elapsedMilliseconds = dependencies.now() - startTime;
+    dependencies.writeProgress(formatProgress(progress));
+  };
+
+  const runEntry = async (entry: BatchEntry): Promise<BatchEntryReport> => {
+    const analysis = new components.Analysis(options.apiUrl, bindingsOptions);
+    const outcome = () => ({
+      build: entry.build,
+      outputTests: entry.outputTests,
+      analysisId: analysis.analysisId,
+      status: analysis.status,
+      results: analysis.results.length,
+    });
+    let files: AnalysisFiles | undefined;
+    progress.running += 1;
+    try {
+      const settings = await loadSettings(entry, options.baseDirectory);
+      files = openFiles(entry, options.baseDirectory);
+      await analysis.run(files, settings, {
+        outputTests: resolve(options.baseDirectory, entry.outputTests),
+        pollingInterval: options.pollingInterval,
+        writeIncrementally: true,
+      });
+      progress.completed += 1;
+      return outcome();
+    } catch (error) {
+      progress.failed += 1;
+      return { ...outcome(), error: String(error) };
+    } finally {
+      if (files) {
+        closeFiles(files);
+      }
+      progress.running -= 1;
+    }
+  };
+
+  const interval = dependencies.setInterval(report, options.progressIntervalMilliseconds);
+  try {
+    const analyses = await map(entries, runEntry, { concurrency: options.concurrency });
+    report();
+    return {
+      durationSeconds: progress.elapsedMilliseconds / 1000,
+      completed: progress.completed,
+      failed: progress.failed,
+      testsWritten: progress.testsWritten,
+      bytesWritten: progress.bytesWritten,
+      analyses: analyses,
+    };
+  } finally {
+    dependencies.clearInterval(interval);
+    httpAgent.destroy();
+    httpsAgent.destroy();
+  }
+}
+
+/** Read and validate a batch manifest */
+export async function readManifest(path: string): Promise<BatchManifest> {
+  let manifest: BatchManifest;
+  try {
+    manifest = JSON.parse((await dependencies.readFile(path)).toString());
+  } catch (error) {
+    throw new ExpectedError(`Could not read manifest "${path}": ${error.message}`);
+  }
+  const analyses = manifest && manifest.analyses;
+  if (!Array.isArray(analyses)) {
+    throw new ExpectedError('The manifest must have an "analyses" array');
+  }
+  analyses.forEach((entry, index) => {
+    if (!entry || typeof entry.build !== 'string' || typeof entry.outputTests !== 'string') {
+      throw new ExpectedError(`Analysis ${index} in the manifest must have "build" and "outputTests" paths`);
+    }
+  });
+  return manifest;
+}
+
+/** Parse command line options and run the batch */
+export default async function batchAnalysis(args: string[], options: Options) {
+  const [manifestPath] = args;
+  if (!manifestPath) {
+    throw new ExpectedError('A manifest file must be specified');
+  }
+  const manifest = await readManifest(manifestPath);
+  const apiUrl = typeof options['api-url'] === 'string' ? options['api-url'] : manifest.apiUrl;
+  if (!apiUrl) {
+    throw new ExpectedError('An API URL must be specified with --api-url, or as "apiUrl" in the manifest');
+  }
+  const concurrency = parseNumberOption('concurrency', options.concurrency, manifest.concurrency || 4);
+  if (!concurrency) {
+    throw new ExpectedError('Option --concurrency must be at least 1');
+  }
+  const report = await components.runBatch(manifest.analyses, {
+    apiUrl: apiUrl,
+    concurrency: concurrency,
+    pollingInterval: parseNumberOption(
+      'polling-interval',
+      options['polling-interval'],
+      manifest.pollingInterval || 60,
+    ),
+    progressIntervalMilliseconds: parseNumberOption('progress-interval', options['progress-interval'], 5) * 1000,
+    baseDirectory: dirname(resolve(manifestPath)),
+    allowUnauthorizedHttps: Boolean(options['allow-unauthorized-https']),
+  });
+  return JSON.stringify(report, null, 2);
+}
+
+/* istanbul ignore next */
+if (require.main === module) {
+  commandLineRunner(description, '<manifest> [options]', process, batchAnalysis);
+}
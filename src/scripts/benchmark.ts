@@ -0,0 +1,272 @@
+// Copyright 2019 Diffblue Limited. All Rights Reserved.
+
+import { lstat, mkdtemp, readdir, readFile, rmdir, unlink, writeFile } from 'fs';
+import { max, mean, min } from 'lodash';
+import { tmpdir } from 'os';
+import { join } from 'path';
+import { promisify } from 'util';
+
+import { generateTestClass, groupResults, mergeIntoTestClass, prepareTestData } from '../combiner';
+import filterResults from '../filterResults';
+import { AnalysisResult } from '../types/types';
+import { Options } from '../utils/argvParser';
+import commandLineRunner, { ExpectedError } from '../utils/commandLineRunner';
+import multiline from '../utils/multiline';
+import { parseListOption, parseNumberOption } from '../utils/parseOptions';
+import syntheticResults from '../utils/syntheticResults';
+import writeTests from '../writeTests';
+
+export const dependencies = {
+  hrtime: process.hrtime,
+  lstat: promisify(lstat),
+  mkdtemp: promisify(mkdtemp),
+  readdir: promisify(readdir),
+  readFile: promisify(readFile),
+  rmdir: promisify(rmdir),
+  unlink: promisify(unlink),
+  writeFile: promisify(writeFile),
+};
+
+export const components = {
+  removeDirectory: removeDirectory,
+  syntheticResults: syntheticResults,
+};
+
+/** A function to be timed by a benchmark */
+export type TimedFunction = () => Promise<void> | void;
+
+/** Details of a benchmark */
+export interface Benchmark {
+  name: string;
+  /** Prepare any untimed state for the benchmark and return the function to be timed */
+  setup(results: AnalysisResult[], workingDirectory: string): Promise<TimedFunction>;
+}
+
+/** Timings of a single benchmark at a single size */
+export interface BenchmarkResult {
+  name: string;
+  size: number;
+  iterations: number;
+  meanMilliseconds: number;
+  minMilliseconds: number;
+  maxMilliseconds: number;
+  resultsPerSecond: number;
+}
+
+/** A benchmark whose mean time has increased by more than the threshold */
+export interface BenchmarkRegression {
+  name: string;
+  size: number;
+  baselineMilliseconds: number;
+  meanMilliseconds: number;
+  change: number;
+}
+
+/** Machine readable benchmark output */
+export interface BenchmarkReport {
+  nodeVersion: string;
+  threshold?: number;
+  benchmarks: BenchmarkResult[];
+  regressions: BenchmarkRegression[];
+}
+
+const defaultSizes = [1000, 10000, 100000];
+const defaultIterations = 5;
+const defaultThreshold = 0.1;
+
+const description = multiline`
+  Measures the time taken by the client's hot paths for synthetic results sets of different sizes,
+  and outputs the timings as JSON.
+
+  Options:
+    --sizes=1000,10000    Comma separated numbers of results to benchmark (default: ${defaultSizes.join(',')})
+    --iterations=5        Number of timed iterations per benchmark and size (default: ${defaultIterations})
+    --only=name,name      Comma separated names of benchmarks to run (default: all)
+    --output=file.json    Write the report to a file rather than printing it
+    --baseline=file.json  Compare against a previous report and fail if any benchmark has regressed
+    --threshold=0.1       Allowed fractional increase over the baseline mean (default: ${defaultThreshold})
+`;
+
+/** Split results into the first and second half of each group, keyed by source file path */
+function splitGroups(results: AnalysisResult[]): Array<[AnalysisResult[], AnalysisResult[]]> {
+  return Object.values(groupResults(results)).map((group): [AnalysisResult[], AnalysisResult[]] => {
+    const middle = Math.ceil(group.length / 2);
+    return [group.slice(0, middle), group.slice(middle)];
+  });
+}
+
+export const benchmarks: Benchmark[] = [
+  {
+    name: 'groupResults',
+    setup: async (results) => () => {
+      groupResults(results);
+    },
+  },
+  {
+    name: 'filterResults',
+    setup: async (results) => () => {
+      filterResults(results, { include: ['four_star', 'three_star'], exclude: ['mocking'] });
+    },
+  },
+  {
+    name: 'prepareTestData',
+    setup: async (results) => () => {
+      prepareTestData(results);
+    },
+  },
+  {
+    name: 'generateTestClass',
+    setup: async (results) => {
+      const groups = Object.values(groupResults(results));
+      return () => {
+        groups.forEach((group) => generateTestClass(group));
+      };
+    },
+  },
+  {
+    name: 'mergeIntoTestClass',
+    setup: async (results) => {
+      const groups = splitGroups(results)
+      .filter(([, newResults]) => newResults.length)
+      .map(([existingResults, newResults]): [string, AnalysisResult[]] => {
+        return [generateTestClass(existingResults), newResults];
+      });
+      return async () => {
+        for (const [existingClass, newResults] of groups) {
+          await mergeIntoTestClass(existingClass, newResults);
+        }
+      };
+    },
+  },
+  {
+    name: 'writeTests',
+    setup: async (results, workingDirectory) => {
+      let iteration = 0;
+      return async () => {
+        iteration += 1;
+        await writeTests(join(workingDirectory, `writeTests-${iteration}`), results);
+      };
+    },
+  },
+];
+
+/** Recursively remove a directory and its contents */
+export async function removeDirectory(directoryPath: string): Promise<void> {
+  const entries = await dependencies.readdir(directoryPath);
+  for (const entry of entries) {
+    const entryPath = join(directoryPath, entry);
+    if ((await dependencies.lstat(entryPath)).isDirectory()) {
+      await removeDirectory(entryPath);
+    } else {
+      await dependencies.unlink(entryPath);
+    }
+  }
+  await dependencies.rmdir(directoryPath);
+}
+
+/** Get the number of milliseconds elapsed since a time returned by `hrtime` */
+function elapsedMilliseconds(start: [number, number]): number {
+  const [seconds, nanoseconds] = dependencies.hrtime(start);
+  return (seconds * 1e3) + (nanoseconds / 1e6);
+}
+
+/** Time a benchmark for a set of results */
+export async function runBenchmark(
+  benchmark: Benchmark,
+  results: AnalysisResult[],
+  iterations: number,
+  workingDirectory: string,
+): Promise<BenchmarkResult> {
+  const timed = await benchmark.setup(results, workingDirectory);
+  const timings: number[] = [];
+  for (let iteration = 0; iteration < iterations; iteration++) {
+    const start = dependencies.hrtime();
+    await timed();
+    timings.push(elapsedMilliseconds(start));
+  }
+  const meanMilliseconds = mean(timings);
+  return {
+    name: benchmark.name,
+    size: results.length,
+    iterations: iterations,
+    meanMilliseconds: meanMilliseconds,
+    minMilliseconds: min(timings) as number,
+    maxMilliseconds: max(timings) as number,
+    resultsPerSecond: meanMilliseconds ? results.length / (meanMilliseconds / 1e3) : 0,
+  };
+}
+
+/** Find benchmarks whose mean time has increased relative to the baseline by more than the threshold */
+export function findRegressions(
+  baseline: BenchmarkResult[],
+  current: BenchmarkResult[],
+  threshold: number,
+): BenchmarkRegression[] {
+  return current.reduce((regressions: BenchmarkRegression[], result) => {
+    const previous = baseline.find(({ name, size }) => name === result.name && size === result.size);
+    if (previous && previous.meanMilliseconds) {
+      const change = (result.meanMilliseconds - previous.meanMilliseconds) / previous.meanMilliseconds;
+      if (change > threshold) {
+        regressions.push({
+          name: result.name,
+          size: result.size,
+          baselineMilliseconds: previous.meanMilliseconds,
+          meanMilliseconds: result.meanMilliseconds,
+          change: change,
+        });
+      }
+    }
+    return regressions;
+  }, []);
+}
+
+/** Run the benchmarks and output or compare the report */
+export default function benchmark(availableBenchmarks: Benchmark[]) {
+  return async (args: string[], options: Options) => {
+    const sizesOption = parseListOption(options.sizes);
+    const sizes = sizesOption ? sizesOption.map((size) => parseNumberOption('sizes', size, 0)) : defaultSizes;
+    const iterations = parseNumberOption('iterations', options.iterations, defaultIterations) || 1;
+    const only = parseListOption(options.only);
+    const selected = only ? availableBenchmarks.filter(({ name }) => only.includes(name)) : availableBenchmarks;
+    if (!selected.length) {
+      throw new ExpectedError(`No benchmarks matched --only=${options.only}`);
+    }
+
+    const workingDirectory = await dependencies.mkdtemp(join(tmpdir(), 'cover-client-benchmark-'));
+    const results: BenchmarkResult[] = [];
+    try {
+      for (const size of sizes) {
+        const sizeResults = components.syntheticResults(size);
+        for (const selectedBenchmark of selected) {
+          results.push(await runBenchmark(selectedBenchmark, sizeResults, iterations, workingDirectory));
+        }
+      }
+    } finally {
+      await components.removeDirectory(workingDirectory);
+    }
+
+    const report: BenchmarkReport = { nodeVersion: process.version, benchmarks: results, regressions: [] };
+    if (typeof options.baseline === 'string') {
+      const baseline: BenchmarkReport = JSON.parse((await dependencies.readFile(options.baseline)).toString());
+      report.threshold = parseNumberOption('threshold', options.threshold, defaultThreshold);
+      report.regressions = findRegressions(baseline.benchmarks, results, report.threshold);
+    }
+
+    const output = JSON.stringify(report, null, 2);
+    if (typeof options.output === 'string') {
+      await dependencies.writeFile(options.output, `${output}\n`);
+    }
+    if (report.regressions.length) {
+      const list = report.regressions.map(({ name, size, change }) => {
+        return `- ${name} (${size} results) is ${(change * 100).toFixed(1)}% slower than the baseline`;
+      });
+      throw new ExpectedError(`Performance regressions found:\n${list.join('\n')}`);
+    }
+    return typeof options.output === 'string' ? `Benchmark report written to ${options.output}` : output;
+  };
+}
+
+/* istanbul ignore next */
+if (require.main === module) {
+  commandLineRunner(description, '[options]', process, benchmark(benchmarks));
+}
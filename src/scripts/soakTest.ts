@@ -0,0 +1,177 @@
+// Copyright 2019 Diffblue Limited. All Rights Reserved.
+
+import { mkdtemp } from 'fs';
+import { tmpdir } from 'os';
+import { join } from 'path';
+import { promisify } from 'util';
+
+import Analysis from '../analysis';
+import { AnalysisResult } from '../types/types';
+import { Options } from '../utils/argvParser';
+import commandLineRunner, { ExpectedError } from '../utils/commandLineRunner';
+import MockApiServer, { MockApiServerOptions, MockApiServerStats } from '../utils/mockApiServer';
+import multiline from '../utils/multiline';
+import { parseNumberOption } from '../utils/parseOptions';
+
+export const dependencies = {
+  memoryUsage: process.memoryUsage,
+  mkdtemp: promisify(mkdtemp),
+  now: Date.now,
+};
+
+export const components = {
+  MockApiServer: MockApiServer,
+};
+
+/** Options accepted by `soakTest` */
+export interface SoakTestOptions {
+  analyses: number;
+  durationSeconds: number;
+  pollingInterval: number;
+  sampleIntervalMilliseconds: number;
+  outputTests?: string;
+  server: MockApiServerOptions;
+}
+
+/** Percentiles of a set of values */
+export interface Percentiles {
+  p50: number;
+  p95: number;
+  p99: number;
+  max: number;
+}
+
+/** Machine readable soak test output */
+export interface SoakTestReport {
+  analyses: number;
+  durationSeconds: number;
+  runsCompleted: number;
+  runsFailed: number;
+  resultsReceived: number;
+  heapUsedStartBytes: number;
+  heapUsedEndBytes: number;
+  heapUsedPeakBytes: number;
+  heapGrowthBytes: number;
+  peakOpenConnections: number;
+  resultLatencyMilliseconds: Percentiles;
+  server: MockApiServerStats;
+}
+
+const description = multiline`
+  Runs many concurrent analyses against a local mock Cover API for a period of time,
+  and reports memory growth, connections in use and result latency as JSON.
+
+  Options:
+    --analyses=100           Number of concurrent analyses (default: 100)
+    --duration=60            Duration of the test in seconds (default: 60)
+    --polling-interval=1     Polling interval of each analysis in seconds (default: 1)
+    --total-results=100      Results produced by each analysis (default: 100)
+    --results-per-second=10  Rate at which each analysis produces results (default: 10)
+    --result-bytes=0         Minimum size of each test body (default: unpadded)
+    --queue=0                Time each analysis spends queued in milliseconds (default: 0)
+    --latency=0              Server response delay in milliseconds (default: 0)
+    --jitter=0               Maximum additional random response delay in milliseconds (default: 0)
+    --error-rate=0           Fraction of server responses which fail (default: 0)
+    --write-tests            Write test files for each run to a temporary directory
+`;
+
+/** Calculate percentiles of an array of values */
+export function percentiles(values: number[]): Percentiles {
+  const sorted = [...values].sort((a, b) => a - b);
+  const at = (fraction: number) => {
+    return sorted.length ? sorted[Math.min(sorted.length - 1, Math.floor(sorted.length * fraction))] : 0;
+  };
+  return { p50: at(0.5), p95: at(0.95), p99: at(0.99), max: at(1) };
+}
+
+/** Run the soak test, resolving with a report once every analysis has finished */
+export async function runSoakTest(options: SoakTestOptions): Promise<SoakTestReport> {
+  const server = new components.MockApiServer(options.server);
+  const apiUrl = await server.start();
+  const latencies: number[] = [];
+  const heapUsedStartBytes = dependencies.memoryUsage().heapUsed;
+  let heapUsedPeakBytes = heapUsedStartBytes;
+  let runsCompleted = 0;
+  let runsFailed = 0;
+  const sampler = setInterval(() => {
+    heapUsedPeakBytes = Math.max(heapUsedPeakBytes, dependencies.memoryUsage().heapUsed);
+  }, options.sampleIntervalMilliseconds);
+  const deadline = dependencies.now() + (options.durationSeconds * 1000);
+
+  const onResults = (results: AnalysisResult[]) => {
+    const receivedTime = dependencies.now();
+    results.forEach(({ createdTime }) => latencies.push(receivedTime - Number(createdTime)));
+  };
+
+  const worker = async (index: number) => {
+    while (dependencies.now() < deadline) {
+      const analysis = new Analysis(apiUrl);
+      try {
+        await analysis.run({ build: Buffer.alloc(1024) }, undefined, {
+          pollingInterval: options.pollingInterval,
+          onResults: onResults,
+          outputTests: options.outputTests ? join(options.outputTests, `worker-${index}`) : undefined,
+        });
+        runsCompleted += 1;
+      } catch (error) {
+        runsFailed += 1;
+      }
+    }
+  };
+
+  try {
+    await Promise.all(Array.from({ length: options.analyses }, async (_, index) => worker(index)));
+  } finally {
+    clearInterval(sampler);
+    await server.stop();
+  }
+
+  const heapUsedEndBytes = dependencies.memoryUsage().heapUsed;
+  return {
+    analyses: options.analyses,
+    durationSeconds: options.durationSeconds,
+    runsCompleted: runsCompleted,
+    runsFailed: runsFailed,
+    resultsReceived: latencies.length,
+    heapUsedStartBytes: heapUsedStartBytes,
+    heapUsedEndBytes: heapUsedEndBytes,
+    heapUsedPeakBytes: Math.max(heapUsedPeakBytes, heapUsedEndBytes),
+    heapGrowthBytes: heapUsedEndBytes - heapUsedStartBytes,
+    peakOpenConnections: server.stats.peakOpenConnections,
+    resultLatencyMilliseconds: percentiles(latencies),
+    server: server.stats,
+  };
+}
+
+/** Parse command line options and run the soak test */
+export default async function soakTest(args: string[], options: Options) {
+  const analyses = parseNumberOption('analyses', options.analyses, 100);
+  if (!analyses) {
+    throw new ExpectedError('Option --analyses must be at least 1');
+  }
+  const outputTests = options['write-tests']
+    ? await dependencies.mkdtemp(join(tmpdir(), 'cover-client-soak-'))
+    : undefined;
+  const report = await runSoakTest({
+    analyses: analyses,
+    durationSeconds: parseNumberOption('duration', options.duration, 60),
+    pollingInterval: parseNumberOption('polling-interval', options['polling-interval'], 1),
+    sampleIntervalMilliseconds: 1000,
+    outputTests: outputTests,
+    server: {
+      totalResults: parseNumberOption('total-results', options['total-results'], 100),
+      resultsPerSecond: parseNumberOption('results-per-second', options['results-per-second'], 10),
+      resultBodyBytes: parseNumberOption('result-bytes', options['result-bytes'], 0),
+      queueMilliseconds: parseNumberOption('queue', options.queue, 0),
+      latencyMilliseconds: parseNumberOption('latency', options.latency, 0),
+      latencyJitterMilliseconds: parseNumberOption('jitter', options.jitter, 0),
+      errorRate: parseNumberOption('error-rate', options['error-rate'], 0),
+    },
+  });
+  return JSON.stringify(report, null, 2);
+}
+
+/* istanbul ignore next */
+if (require.main === module) {
+  commandLineRunner(description, '[options]', process, soakTest);
+}
@@ -0,0 +1,249 @@
+// Copyright 2019 Diffblue Limited. All Rights Reserved.
+
+import Analysis from './analysis';
+import { AnalysisError, AnalysisErrorCode } from './errors';
+import { ResultPrioritizer } from './prioritizeResults';
+import {
+  AnalysisFiles,
+  AnalysisResult,
+  AnalysisSettings,
+  BindingsOptions,
+  RunAnalysisOptions,
+} from './types/types';
+import CancellableDelay from './utils/CancellableDelay';
+import writeTests from './writeTests';
+
+export const dependencies = {
+  now: Date.now,
+};
+
+export const components = {
+  Analysis: Analysis,
+  writeTests: writeTests,
+};
+
+/** Options accepted by `ShardedAnalysis.run` */
+export interface ShardedAnalysisOptions extends RunAnalysisOptions {
+  /** Number of shards to split the analysis into (default: number of servers x `concurrencyPerServer`) */
+  shards?: number;
+  /** Maximum number of shards run on each server at once (default: 1) */
+  concurrencyPerServer?: number;
+  /**
+   * Once there are no shards left to start, a server with a free slot takes over any shard
+   * which has been QUEUED on another server for at least this many seconds (default: never).
+   * Free slots check for such shards every `pollingInterval` until every shard has completed.
+   */
+  rebalanceAfter?: number;
+}
+
+/** A part of a sharded analysis, and the analysis currently running it */
+export interface Shard {
+  index: number;
+  settings: AnalysisSettings;
+  apiUrl?: string;
+  analysis?: Analysis;
+  startTime?: number;
+  completed: boolean;
+}
+
+/** Settings properties which can be partitioned, in order of preference */
+const partitionableSettings: Array<'entryPointsInclude' | 'cover'> = ['entryPointsInclude', 'cover'];
+
+const defaultPollingInterval = 60;  // seconds
+
+/**
+ * Split analysis settings into at most `count` settings,
+ * by partitioning the `entryPointsInclude` list (or failing that, the `cover` list) between them.
+ *
+ * Entries are sorted and dealt round robin, so each shard gets a similar number of classes
+ * from across the project. No shard is empty, so fewer settings may be returned.
+ */
+export function partitionSettings(settings: AnalysisSettings, count: number): AnalysisSettings[] {
+  const property = partitionableSettings.find((name) => Boolean((settings[name] || []).length));
+  if (!property) {
+    throw new AnalysisError(
+      'Settings must include `entryPointsInclude` or `cover` to be split between servers.',
+      AnalysisErrorCode.SHARDING_UNPARTITIONABLE,
+    );
+  }
+  const entries = [...new Set(settings[property])].sort();
+  const partitions: string[][] = Array.from({ length: Math.min(Math.max(count, 1), entries.length) }, () => []);
+  entries.forEach((entry, index) => partitions[index % partitions.length].push(entry));
+  return partitions.map((partition) => {
+    const shardSettings = { ...settings };
+    shardSettings[property] = partition;
+    return shardSettings;
+  });
+}
+
+/** Check that every file is a buffer, which can be uploaded by every shard */
+function checkBufferFiles({ build, dependenciesBuild, baseBuild }: AnalysisFiles): void {
+  const streams = [build, dependenciesBuild, baseBuild].filter((file) => file !== undefined && !Buffer.isBuffer(file));
+  if (streams.length) {
+    throw new AnalysisError(
+      'Every shard uploads the same files, so they must be buffers rather than streams.',
+      AnalysisErrorCode.SHARDING_STREAM_FILES,
+    );
+  }
+}
+
+/**
+ * Runs one logical analysis split across several servers.
+ *
+ * The settings are partitioned into shards, which are run concurrently as separate analyses,
+ * with each server taking the next shard as soon as it has a free slot.
+ * Results from every shard are passed to the same `onResults` callback,
+ * and written together to `outputTests` once every shard has completed
+ * (prioritized according to the `priority` option, if it is specified).
+ *
+ * Every shard uploads the same files, so they must be buffers rather than streams.
+ */
+export default class ShardedAnalysis {
+
+  public readonly apiUrls: string[];
+  public readonly bindingsOptions: BindingsOptions;
+  public shards: Shard[] = [];
+  public results: AnalysisResult[] = [];
+  public pollingStopped?: boolean;
+  private readonly idleDelays = new Set<CancellableDelay<void>>();
+
+  public constructor(apiUrls: string[], bindingsOptions: BindingsOptions = {}) {
+    if (!apiUrls.length) {
+      throw new AnalysisError('At least one API URL must be supplied.', AnalysisErrorCode.SHARDING_NO_SERVERS);
+    }
+    this.apiUrls = apiUrls;
+    this.bindingsOptions = bindingsOptions;
+  }
+
+  /**
+   * Run the analysis across every server, resolving with the results of every shard once all have completed.
+   *
+   * If any shard fails, every other shard stops polling, and the error is thrown,
+   * or passed to the `onError` callback option if it is provided.
+   * An error is also thrown if any of the files is a stream, since a stream can only be uploaded once.
+   */
+  public async run(
+    files: AnalysisFiles,
+    settings: AnalysisSettings,
+    options: ShardedAnalysisOptions = {},
+  ): Promise<AnalysisResult[]> {
+    try {
+      checkBufferFiles(files);
+      this.pollingStopped = false;
+      const concurrencyPerServer = options.concurrencyPerServer || 1;
+      const shardCount = options.shards || (this.apiUrls.length * concurrencyPerServer);
+      this.shards = partitionSettings(settings, shardCount).map((shardSettings, index) => ({
+        index: index,
+        settings: shardSettings,
+        completed: false,
+      }));
+      const pending = [...this.shards];
+      const slots = this.apiUrls.reduce<string[]>((allSlots, apiUrl) => {
+        return [...allSlots, ...Array.from({ length: concurrencyPerServer }, () => apiUrl)];
+      }, []);
+      await Promise.all(slots.map(async (apiUrl) => this.runSlot(apiUrl, pending, files, options)));
+      if (options.outputTests) {
+        await components.writeTests(options.outputTests, this.results, {
+          concurrency: options.writingConcurrency,
+          filter: options.writingFilter,
+          prioritizer: options.priority && new ResultPrioritizer(options.priority),
+          instrumentation: this.bindingsOptions.instrumentation,
+        });
+      }
+    } catch (error) {
+      this.stopPolling();
+      if (options.onError) {
+        options.onError(error);
+      } else {
+        throw error;
+      }
+    }
+    return this.results;
+  }
+
+  /** Stop starting shards, and stop every shard polling for results */
+  public stopPolling(): void {
+    this.pollingStopped = true;
+    this.idleDelays.forEach((delay) => delay.cancel());
+    this.shards.forEach(({ analysis }) => analysis && analysis.stopPolling());
+  }
+
+  /**
+   * Run shards on a server one after another, until there are none left.
+   *
+   * If the `rebalanceAfter` option is set, a slot with no shard to run waits, checking for a shard to take over
+   * every `pollingInterval`, until every shard has completed.
+   */
+  private async runSlot(
+    apiUrl: string,
+    pending: Shard[],
+    files: AnalysisFiles,
+    options: ShardedAnalysisOptions,
+  ): Promise<void> {
+    while (!this.pollingStopped) {
+      const shard = pending.shift() || this.findQueuedShard(apiUrl, options.rebalanceAfter);
+      if (shard) {
+        await this.runShard(shard, apiUrl, files, options);
+      } else if (options.rebalanceAfter === undefined || this.shards.every(({ completed }) => completed)) {
+        return;
+      } else {
+        await this.waitIdle(options.pollingInterval || defaultPollingInterval);
+      }
+    }
+  }
+
+  /** Wait for a polling interval, or until polling is stopped */
+  private async waitIdle(pollingInterval: number): Promise<void> {
+    const delay = new CancellableDelay<void>(pollingInterval * 1000, undefined);
+    this.idleDelays.add(delay);
+    await delay.promise;
+    this.idleDelays.delete(delay);
+  }
+
+  /** Find a shard which has been queued on another server for too long */
+  private findQueuedShard(apiUrl: string, rebalanceAfter?: number): Shard | undefined {
+    if (rebalanceAfter === undefined) {
+      return undefined;
+    }
+    const now = dependencies.now();
+    return this.shards.find(({ analysis, apiUrl: shardApiUrl, completed, startTime = now }) => {
+      const queued = !completed && analysis !== undefined && analysis.isQueued();
+      return queued && shardApiUrl !== apiUrl && now - startTime >= rebalanceAfter * 1000;
+    });
+  }
+
+  /** Run a shard on a server, taking it over from another server if it was already started */
+  private async runShard(
+    shard: Shard,
+    apiUrl: string,
+    files: AnalysisFiles,
+    options: ShardedAnalysisOptions,
+  ): Promise<void> {
+    const previous = shard.analysis;
+    const analysis = new components.Analysis(apiUrl, this.bindingsOptions);
+    shard.analysis = analysis;
+    shard.apiUrl = apiUrl;
+    shard.startTime = dependencies.now();
+    if (previous) {
+      previous.stopPolling();
+      await previous.cancel().catch(() => undefined);  // The shard is run here regardless
+    }
+    const onResults = options.onResults;
+    const results = await analysis.run(files, shard.settings, {
+      pollingInterval: options.pollingInterval,
+      resultsPagination: options.resultsPagination,
+      onResultsConcurrency: options.onResultsConcurrency,
+      onResults: onResults && (async (resultGroup, filename) => {
+        if (shard.analysis === analysis) {
+          await onResults(resultGroup, filename);
+        }
+      }),
+    });
+    if (shard.analysis === analysis) {
+      shard.completed = true;
+      this.results = [...this.results, ...results];
+      // Wake any free slots, which stop waiting once every shard has completed
+      this.idleDelays.forEach((delay) => delay.cancel());
+    }
+  }
+}
@@ -0,0 +1,118 @@
+// Copyright 2019 Diffblue Limited. All Rights Reserved.
+
+import { parse } from 'path';
+
+import { AnalysisResult } from './types/types';
+
+/** Parsed form of the `testedFunction` of a result */
+export interface FunctionSymbol {
+  packageName: string;
+  className: string;
+  methodName: string;
+  signature: string;
+}
+
+/** Parsed form of the `sourceFilePath` of a result */
+export interface SourceFileSymbol {
+  directory: string;
+  className: string;
+}
+
+/** Symbols referenced by a single result */
+export interface ResultSymbols {
+  testedFunction: FunctionSymbol;
+  sourceFile: SourceFileSymbol;
+}
+
+const prefixRegexp = /^java::/;
+
+/**
+ * Parses a function full name.
+ *
+ * Function name should be the fully qualified name of a Java function,
+ * optionally prefixed with 'java::' and suffixed with a JVM descriptor
+ * e.g. 'java::com.diffblue.javademo.TicTacToe.checkTicTacToePosition:([I)I'
+ * => { packageName: 'com.diffblue.javademo', className: 'TicTacToe',
+ *      methodName: 'checkTicTacToePosition', signature: '([I)I' }
+ */
+export function parseFunctionName(functionName: string): FunctionSymbol {
+  const unprefixed = functionName.replace(prefixRegexp, '');
+  const signatureIndex = unprefixed.indexOf(':');
+  const qualifiedName = signatureIndex === -1 ? unprefixed : unprefixed.slice(0, signatureIndex);
+  const signature = signatureIndex === -1 ? '' : unprefixed.slice(signatureIndex + 1);
+  const methodIndex = qualifiedName.lastIndexOf('.');
+  const classIndex = qualifiedName.lastIndexOf('.', methodIndex - 1);
+  return {
+    packageName: classIndex === -1 ? '' : qualifiedName.slice(0, classIndex),
+    className: methodIndex === -1 ? '' : qualifiedName.slice(classIndex + 1, methodIndex),
+    methodName: qualifiedName.slice(methodIndex + 1),
+    signature: signature,
+  };
+}
+
+/**
+ * Parses a source file path.
+ *
+ * e.g. com/diffblue/javademo/TicTacToe.java
+ * => { directory: 'com/diffblue/javademo', className: 'TicTacToe' }
+ */
+export function parseSourceFilePath(sourceFilePath: string): SourceFileSymbol {
+  const { dir, name } = parse(sourceFilePath);
+  return { directory: dir, className: name };
+}
+
+/**
+ * Table of parsed `testedFunction` and `sourceFilePath` values.
+ *
+ * Each distinct value is parsed once, and every result referencing it shares the same symbol object,
+ * so a table should live for the duration of a run and be passed to anything that needs to parse results.
+ */
+export default class SymbolTable {
+
+  private readonly functions = new Map<string, FunctionSymbol>();
+  private readonly sourceFiles = new Map<string, SourceFileSymbol>();
+  private readonly results = new WeakMap<AnalysisResult, ResultSymbols>();
+
+  /** Get the parsed symbol for a function name */
+  public getFunction(functionName: string): FunctionSymbol {
+    let symbol = this.functions.get(functionName);
+    if (!symbol) {
+      symbol = Object.freeze(parseFunctionName(functionName));
+      this.functions.set(functionName, symbol);
+    }
+    return symbol;
+  }
+
+  /** Get the parsed symbol for a source file path */
+  public getSourceFile(sourceFilePath: string): SourceFileSymbol {
+    let symbol = this.sourceFiles.get(sourceFilePath);
+    if (!symbol) {
+      symbol = Object.freeze(parseSourceFilePath(sourceFilePath));
+      this.sourceFiles.set(sourceFilePath, symbol);
+    }
+    return symbol;
+  }
+
+  /** Get references to the symbols for a result, without modifying the result */
+  public getResult(result: AnalysisResult): ResultSymbols {
+    let symbols = this.results.get(result);
+    if (!symbols) {
+      symbols = {
+        testedFunction: this.getFunction(result.testedFunction),
+        sourceFile: this.getSourceFile(result.sourceFilePath),
+      };
+      this.results.set(result, symbols);
+    }
+    return symbols;
+  }
+
+  /** Number of distinct function names parsed */
+  public get functionCount(): number {
+    return this.functions.size;
+  }
+
+  /** Number of distinct source file paths parsed */
+  public get sourceFileCount(): number {
+    return this.sourceFiles.size;
+  }
+}
@@ -1,5 +1,16 @@
 // Copyright 2019 Diffblue Limited. All Rights Reserved.
 
+import { CancelToken } from 'axios';
+import { Agent as HttpAgent } from 'http';
+import { Agent as HttpsAgent } from 'https';
+
+import Instrumentation from '../instrumentation';
+import { ResultPrioritizer, ResultPriorityOptions } from '../prioritizeResults';
+import { ResilienceOptions } from '../resilience';
+import ResponseCache from '../responseCache';
+import ResultsExporter from '../resultsExporter';
+import ResultsStore from '../resultsStore';
+
 /** Possible analysis statuses */
 export enum AnalysisStatus {
   QUEUED = 'QUEUED',
@@ -160,6 +171,16 @@ export interface AnalysisResultsApiResponse {
   cursor: number;
   status: AnalysisStatusApiResponse;
   results: AnalysisResult[];
+  /** Total number of results produced by the analysis so far, if reported by the server */
+  total?: number;
+}
+
+/** Options for downloading results in pages */
+export interface ResultsPaginationOptions {
+  /** Maximum number of results requested in each page */
+  pageSize: number;
+  /** Maximum number of pages requested at once, if the server reports the total number of results (default: 4) */
+  concurrency?: number;
 }
 
 /** Version object returned by the API */
@@ -173,8 +194,25 @@ export interface RunAnalysisOptions {
   writingConcurrency?: number;
   writingFilter?: ResultsFilter;
   pollingInterval?: number; // polling interval in seconds
-  /** Called once for each results group returned when polling */
-  onResults?(results: AnalysisResult[], filename: string): void;
+  onResultsConcurrency?: number; // maximum number of concurrent onResults calls
+  /** If set, results are downloaded in pages, several at once when catching up with a large backlog */
+  resultsPagination?: ResultsPaginationOptions;
+  /** If set with `outputTests`, tests are written in priority order after each poll, within a quality budget */
+  priority?: ResultPriorityOptions;
+  /** If set with `outputTests`, tests are written after each poll rather than when the analysis ends */
+  writeIncrementally?: boolean;
+  /**
+   * If set, results are kept in this store rather than `results`, which then holds only the latest poll's results.
+   * `run` also resolves with only the latest poll's results, so every result must be read from the store.
+   */
+  resultsStore?: ResultsStore;
+  /** If set, the results returned by each poll are written to this exporter, which the caller must close */
+  resultsExporter?: ResultsExporter;
+  /**
+   * Called once for each results group returned when polling.
+   * If a promise is returned, polling waits for it to settle.
+   */
+  onResults?(results: AnalysisResult[], filename: string): void | Promise<void>;
   /** Called With error instance if run throws any error */
   onError?(error: Error): void;
 }
@@ -198,9 +236,21 @@ export type ResultsFilter = ResultTagFilterArray | ResultTagFilterObject | Resul
 export interface WriteTestsOptions {
   concurrency?: number;
   filter?: ResultsFilter;
+  instrumentation?: Instrumentation;
+  prioritizer?: ResultPrioritizer;
+  /** If canceled, no further test files are read, combined or written */
+  cancelToken?: CancelToken;
 }
 
 /** Options accepted by low level bindings */
 export interface BindingsOptions {
   allowUnauthorizedHttps?: boolean;
+  /** If canceled, requests in progress are aborted, releasing their sockets and upload streams */
+  cancelToken?: CancelToken;
+  /** Agents used for every request, e.g. to share a pool of keep-alive connections between analyses */
+  httpAgent?: HttpAgent;
+  httpsAgent?: HttpsAgent;
+  instrumentation?: Instrumentation;
+  resilience?: ResilienceOptions;
+  responseCache?: ResponseCache;
 }
@@ -0,0 +1,257 @@
+// Copyright 2019 Diffblue Limited. All Rights Reserved.
+
+import { createServer, IncomingMessage, Server, ServerResponse } from 'http';
+import { AddressInfo, Socket } from 'net';
+import { parse } from 'url';
+
+import { RouteName } from '../instrumentation';
+import { AnalysisResult, AnalysisStatus, ComputedAnalysisSettings } from '../types/types';
+import syntheticResults from './syntheticResults';
+
+export const dependencies = {
+  createServer: createServer,
+  now: Date.now,
+  random: Math.random,
+  setTimeout: setTimeout,
+};
+
+/** Options accepted by `MockApiServer` */
+export interface MockApiServerOptions {
+  /** Number of results produced by each analysis (default: 100) */
+  totalResults?: number;
+  /** Rate at which each analysis produces results once running (default: 100) */
+  resultsPerSecond?: number;
+  /** Minimum size of each result's `testBody`, padded with a comment (default: unpadded) */
+  resultBodyBytes?: number;
+  /** Time each analysis spends QUEUED before RUNNING, in milliseconds (default: 0) */
+  queueMilliseconds?: number;
+  /** Delay before every response, in milliseconds (default: 0) */
+  latencyMilliseconds?: number;
+  /** Maximum additional random delay before every response, in milliseconds (default: 0) */
+  latencyJitterMilliseconds?: number;
+  /** Fraction of requests which fail with a 502 response (default: 0) */
+  errorRate?: number;
+  /** Routes to which `errorRate` applies (default: all routes) */
+  errorRoutes?: RouteName[];
+}
+
+/** Request counts and sizes recorded by `MockApiServer` */
+export interface MockApiServerStats {
+  requests: { [route: string]: number };
+  injectedErrors: number;
+  bytesReceived: number;
+  bytesSent: number;
+  analysesStarted: number;
+  openConnections: number;
+  peakOpenConnections: number;
+}
+
+/** State of a single analysis held by the mock server */
+export interface MockAnalysis {
+  startTime: number;
+  /** Time at which the analysis was canceled, after which it produces no more results */
+  canceledTime?: number;
+}
+
+/** A matched route and any analysis id in its path */
+export interface MatchedRoute {
+  route: RouteName;
+  id?: string;
+}
+
+const defaultSettings: ComputedAnalysisSettings = {
+  phases: {
+    phase1: { phase1: { timeout: 60 }},
+  },
+};
+
+/** Match a request to one of the API routes */
+export function matchRoute(method: string | undefined, path: string): MatchedRoute | undefined {
+  const parts = path.split('/').filter(Boolean);
+  if (method === 'GET' && parts.length === 1 && parts[0] === 'version') {
+    return { route: 'version' };
+  }
+  if (method === 'GET' && parts.length === 1 && parts[0] === 'default-settings') {
+    return { route: 'defaultSettings' };
+  }
+  if (parts[0] !== 'analysis') {
+    return undefined;
+  }
+  if (method === 'POST' && parts.length === 1) {
+    return { route: 'start' };
+  }
+  if (method === 'GET' && parts.length === 2) {
+    return { route: 'results', id: parts[1] };
+  }
+  if (method === 'GET' && parts.length === 3 && parts[2] === 'status') {
+    return { route: 'status', id: parts[1] };
+  }
+  if (method === 'POST' && parts.length === 3 && parts[2] === 'cancel') {
+    return { route: 'cancel', id: parts[1] };
+  }
+  return undefined;
+}
+
+/**
+ * A local stand-in for the Diffblue Cover API, for load and soak testing the client.
+ *
+ * Implements every route used by the bindings. Each analysis produces the same synthetic results
+ * at a configurable rate, and responses can be delayed or failed to simulate a struggling server.
+ */
+export default class MockApiServer {
+
+  public readonly options: MockApiServerOptions;
+  public readonly stats: MockApiServerStats = {
+    requests: {},
+    injectedErrors: 0,
+    bytesReceived: 0,
+    bytesSent: 0,
+    analysesStarted: 0,
+    openConnections: 0,
+    peakOpenConnections: 0,
+  };
+  public server?: Server;
+  private readonly analyses = new Map<string, MockAnalysis>();
+  private readonly results: AnalysisResult[];
+  private readonly sockets = new Set<Socket>();
+
+  public constructor(options: MockApiServerOptions = {}) {
+    this.options = options;
+    const padding = options.resultBodyBytes ? '\n// '.padEnd(options.resultBodyBytes, '-') : '';
+    this.results = syntheticResults(options.totalResults === undefined ? 100 : options.totalResults)
+    .map((result) => padding ? { ...result, testBody: `${result.testBody}${padding}` } : result);
+  }
+
+  /** Start listening on the loopback interface, resolving with the API URL */
+  public async start(port = 0): Promise<string> {
+    const server = dependencies.createServer((request, response) => this.handle(request, response));
+    server.on('connection', (socket: Socket) => {
+      this.sockets.add(socket);
+      this.stats.openConnections = this.sockets.size;
+      this.stats.peakOpenConnections = Math.max(this.stats.peakOpenConnections, this.sockets.size);
+      socket.on('close', () => {
+        this.sockets.delete(socket);
+        this.stats.openConnections = this.sockets.size;
+      });
+    });
+    this.server = server;
+    await new Promise<void>((resolve, reject) => {
+      server.once('error', reject);
+      server.listen(port, '127.0.0.1', () => resolve());
+    });
+    return `http://127.0.0.1:${(server.address() as AddressInfo).port}`;
+  }
+
+  /** Stop listening and close any open connections */
+  public async stop(): Promise<void> {
+    const server = this.server;
+    if (!server) {
+      return;
+    }
+    this.sockets.forEach((socket) => socket.destroy());
+    await new Promise<void>((resolve) => server.close(() => resolve()));
+    this.server = undefined;
+  }
+
+  /** Get the status of an analysis, as of the current time */
+  public getStatus(analysis: MockAnalysis): AnalysisStatus {
+    if (analysis.canceledTime !== undefined) {
+      return AnalysisStatus.CANCELED;
+    }
+    const elapsed = dependencies.now() - analysis.startTime;
+    if (elapsed < (this.options.queueMilliseconds || 0)) {
+      return AnalysisStatus.QUEUED;
+    }
+    return this.getAvailableCount(analysis) < this.results.length ? AnalysisStatus.RUNNING : AnalysisStatus.COMPLETED;
+  }
+
+  /** Get the number of results an analysis has produced, as of the current time */
+  public getAvailableCount(analysis: MockAnalysis): number {
+    const endTime = analysis.canceledTime === undefined ? dependencies.now() : analysis.canceledTime;
+    const runningMilliseconds = endTime - analysis.startTime - (this.options.queueMilliseconds || 0);
+    const resultsPerSecond = this.options.resultsPerSecond || 100;
+    const produced = Math.floor((Math.max(runningMilliseconds, 0) / 1000) * resultsPerSecond);
+    return Math.min(produced, this.results.length);
+  }
+
+  /** Get at most `limit` results of an analysis from a cursor, with `createdTime` set to when each was produced */
+  private getResults(analysis: MockAnalysis, cursor: number, limit: number): AnalysisResult[] {
+    const available = Math.min(this.getAvailableCount(analysis), cursor + limit);
+    const producedStart = analysis.startTime + (this.options.queueMilliseconds || 0);
+    const resultsPerSecond = this.options.resultsPerSecond || 100;
+    return this.results.slice(cursor, available).map((result, index) => ({
+      ...result,
+      createdTime: String(Math.round(producedStart + (((cursor + index + 1) / resultsPerSecond) * 1000))),
+    }));
+  }
+
+  /** Handle a matched route, returning the status code and body */
+  private respond(matched: MatchedRoute, query: { [key: string]: string | string[] | undefined }): [number, object] {
+    if (matched.route === 'version') {
+      return [200, { version: 'mock' }];
+    }
+    if (matched.route === 'defaultSettings') {
+      return [200, defaultSettings];
+    }
+    if (matched.route === 'start') {
+      const id = `mock-${this.stats.analysesStarted}-${dependencies.now()}`;
+      this.stats.analysesStarted += 1;
+      this.analyses.set(id, { startTime: dependencies.now() });
+      return [200, { id: id, settings: defaultSettings }];
+    }
+    const analysis = this.analyses.get(matched.id as string);
+    if (!analysis) {
+      return [404, { code: 'notFound', message: `Analysis ${matched.id} not found` }];
+    }
+    if (matched.route === 'cancel') {
+      const status = this.getStatus(analysis);
+      if (status === AnalysisStatus.QUEUED || status === AnalysisStatus.RUNNING) {
+        analysis.canceledTime = dependencies.now();
+      }
+      return [200, { message: 'Analysis canceled', status: { status: this.getStatus(analysis) }}];
+    }
+    const status = { status: this.getStatus(analysis) };
+    if (matched.route === 'status') {
+      return [200, status];
+    }
+    const cursor = Number(query.cursor) || 0;
+    const limit = query.limit === undefined ? Infinity : Number(query.limit);
+    const results = this.getResults(analysis, cursor, limit);
+    const total = this.getAvailableCount(analysis);
+    return [200, { cursor: cursor + results.length, status: status, results: results, total: total }];
+  }
+
+  /** Handle an incoming request */
+  private handle(request: IncomingMessage, response: ServerResponse): void {
+    const { pathname, query } = parse(request.url || '', true);
+    request.on('data', (chunk: Buffer) => {
+      this.stats.bytesReceived += chunk.length;
+    });
+    request.on('end', () => {
+      const matched = matchRoute(request.method, pathname || '');
+      let statusCode: number;
+      let body: object;
+      if (!matched) {
+        [statusCode, body] = [404, { code: 'notFound', message: `No route for ${request.method} ${pathname}` }];
+      } else {
+        this.stats.requests[matched.route] = (this.stats.requests[matched.route] || 0) + 1;
+        const errorRoutes = this.options.errorRoutes;
+        const errorApplies = !errorRoutes || errorRoutes.includes(matched.route);
+        if (errorApplies && dependencies.random() < (this.options.errorRate || 0)) {
+          this.stats.injectedErrors += 1;
+          [statusCode, body] = [502, { code: 'badGateway', message: 'Injected error' }];
+        } else {
+          [statusCode, body] = this.respond(matched, query);
+        }
+      }
+      const data = JSON.stringify(body);
+      const delay = (this.options.latencyMilliseconds || 0)
+        + (dependencies.random() * (this.options.latencyJitterMilliseconds || 0));
+      dependencies.setTimeout(() => {
+        this.stats.bytesSent += Buffer.byteLength(data);
+        response.writeHead(statusCode, { 'Content-Type': 'application/json' });
+        response.end(data);
+      }, delay);
+    });
+  }
+}
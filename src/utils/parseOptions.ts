@@ -0,0 +1,23 @@
+// Copyright 2019 Diffblue Limited. All Rights Reserved.
+
+import { ExpectedError } from './commandLineRunner';
+
+/** Parse a comma separated list option */
+export function parseListOption(option: string | boolean | undefined): string[] | undefined {
+  if (typeof option !== 'string') {
+    return undefined;
+  }
+  return option.split(',').map((value) => value.trim()).filter(Boolean);
+}
+
+/** Parse a numeric option, throwing if it is not a non-negative number */
+export function parseNumberOption(name: string, option: string | boolean | undefined, defaultValue: number): number {
+  if (typeof option !== 'string') {
+    return defaultValue;
+  }
+  const value = Number(option);
+  if (!(value >= 0)) {
+    throw new ExpectedError(`Option --${name} must be a non-negative number, got "${option}"`);
+  }
+  return value;
+}
@@ -19,14 +19,21 @@ export const convertError = (err: AxiosError) => {
     throw new ApiError(statusText, 'requestError', status);
   }
 
-  // Give up and just throw the Axios error
+  // Give up and just throw the Axios error, or the Cancel if the request was canceled
   throw err;
 };
 
+/** Accept successful and Not Modified responses */
+const validateStatus = (status: number) => (status >= 200 && status < 300) || status === 304;
+
 const request = {
   get: async (path: string, config?: AxiosRequestConfig) => {
     return axios.get(path, config).then((response: AxiosResponse) => response.data).catch(convertError);
   },
+  /** Make a GET request which resolves with the whole response, including 304 Not Modified responses */
+  getResponse: async (path: string, config?: AxiosRequestConfig): Promise<AxiosResponse> => {
+    return axios.get(path, { ...config, validateStatus: validateStatus }).catch(convertError);
+  },
   post: async (path: string, data?: FormData, config?: AxiosRequestConfig) => {
     return axios.post(path, data, config).then((response: AxiosResponse) => response.data).catch(convertError);
   },
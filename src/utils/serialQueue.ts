@@ -0,0 +1,14 @@
+// Copyright 2019 Diffblue Limited. All Rights Reserved.
+
+/** Runs asynchronous operations one at a time, in the order they were enqueued */
+export default class SerialQueue {
+
+  private pending: Promise<void> = Promise.resolve();
+
+  /** Run an operation once every earlier operation has settled */
+  public async enqueue(operation: () => Promise<void>): Promise<void> {
+    const result = this.pending.then(operation);
+    this.pending = result.catch(() => undefined);
+    return result;
+  }
+}
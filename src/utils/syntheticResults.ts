@@ -0,0 +1,76 @@
+// Copyright 2019 Diffblue Limited. All Rights Reserved.
+
+import { AnalysisResult } from '../types/types';
+
+/** Options accepted by `syntheticResults` */
+export interface SyntheticResultsOptions {
+  classesPerPackage?: number;
+  functionsPerClass?: number;
+  testsPerFunction?: number;
+}
+
+const baseImports = [
+  'org.junit.Assert',
+  'org.junit.Rule',
+  'org.junit.Test',
+  'org.junit.rules.ExpectedException',
+  'org.junit.rules.Timeout',
+];
+const timeoutRule = [
+  '@org.junit.Rule public final org.junit.rules.Timeout globalTimeout = ',
+  'new org.junit.rules.Timeout(10000);',
+].join('');
+const qualityTags = [
+  ['no_reflection', 'no_mocking', 'assertions', 'four_star', 'no_nulls', 'no_exceptions'],
+  ['no_reflection', 'no_mocking', 'assertions', 'three_star', 'no_exceptions'],
+  ['no_reflection', 'mocking', 'assertions', 'two_star'],
+];
+const phaseCount = 3;
+
+/**
+ * Generate an array of analysis results, modeled on results produced by the Diffblue Cover API.
+ *
+ * Results are deterministic for a given count and options,
+ * and are ordered so that results for the same tested function and class are adjacent.
+ */
+export default function syntheticResults(count: number, options: SyntheticResultsOptions = {}): AnalysisResult[] {
+  const classesPerPackage = options.classesPerPackage || 10;
+  const functionsPerClass = options.functionsPerClass || 5;
+  const testsPerFunction = options.testsPerFunction || 4;
+  return Array.from({ length: count }, (_, index): AnalysisResult => {
+    const functionIndex = Math.floor(index / testsPerFunction);
+    const classIndex = Math.floor(functionIndex / functionsPerClass);
+    const packageName = `com.diffblue.synthetic.p${Math.floor(classIndex / classesPerPackage)}`;
+    const className = `Class${classIndex}`;
+    const methodName = `method${functionIndex % functionsPerClass}`;
+    const testName = `${methodName}Output${index}`;
+    const testId = `${testName}${index.toString(16).padStart(8, '0')}`;
+    const sourceFilePath = `${packageName.replace(/\./g, '/')}/${className}.java`;
+    return {
+      classAnnotations: [],
+      classRules: [timeoutRule],
+      coveredLines: ['java/lang/Object.java:38', `${sourceFilePath}:5,${12 + (index % 10)}`],
+      createdTime: `${1568883943523 + index}`,
+      imports: [`${packageName}.${className}`, ...baseImports],
+      sourceFilePath: sourceFilePath,
+      staticImports: [],
+      tags: [...qualityTags[index % qualityTags.length], `phase_${(index % phaseCount) + 1}`],
+      testBody: [
+        '// Test written by Diffblue Cover.',
+        '@org.junit.Test',
+        `public void ${testId}() {`,
+        '',
+        '  // Arrange',
+        `  final ${packageName}.${className} objectUnderTest = new ${packageName}.${className}();`,
+        '',
+        '  // Act and Assert result',
+        `  Assert.assertFalse(objectUnderTest.${methodName}("${index}"));`,
+        '',
+        '}',
+      ].join('\n'),
+      testedFunction: `java::${packageName}.${className}.${methodName}:(Ljava/lang/String;)Z`,
+      testId: testId,
+      testName: testName,
+    };
+  });
+}
@@ -0,0 +1,51 @@
+// Copyright 2019 Diffblue Limited. All Rights Reserved.
+
+import { createWriteStream } from 'fs';
+
+export const dependencies = {
+  createWriteStream: createWriteStream,
+};
+
+/** Default number of characters encoded and written at a time */
+export const defaultChunkLength = 64 * 1024;
+
+/** Get the end of the chunk starting at `start`, without splitting a UTF-16 surrogate pair between chunks */
+function getChunkEnd(content: string, start: number, chunkLength: number): number {
+  const end = Math.min(start + chunkLength, content.length);
+  const lastCode = content.charCodeAt(end - 1);
+  const isHighSurrogate = lastCode >= 0xd800 && lastCode <= 0xdbff;
+  return end < content.length && isHighSurrogate && end - 1 > start ? end - 1 : end;
+}
+
+/**
+ * Write a string to a file through a stream, encoding it as UTF-8 a chunk at a time.
+ *
+ * `fs.writeFile` encodes the whole string into a single buffer before writing it,
+ * so this keeps the memory used when writing a large file to the string itself plus one chunk.
+ * Resolves once the file has been closed.
+ */
+export default async function writeInChunks(
+  filePath: string,
+  content: string,
+  chunkLength = defaultChunkLength,
+): Promise<void> {
+  const stream = dependencies.createWriteStream(filePath);
+  return new Promise<void>((resolve, reject) => {
+    let start = 0;
+    const writeChunks = () => {
+      while (start < content.length) {
+        const end = getChunkEnd(content, start, chunkLength);
+        const chunk = content.slice(start, end);
+        start = end;
+        if (!stream.write(chunk)) {
+          stream.once('drain', writeChunks);
+          return;
+        }
+      }
+      stream.end();
+    };
+    stream.on('error', reject);
+    stream.on('close', () => resolve());
+    writeChunks();
+  });
+}
@@ -0,0 +1,317 @@
+// Copyright 2019 Diffblue Limited. All Rights Reserved.
+
+import { readFile, Stats, unwatchFile, watchFile } from 'fs';
+import { promisify } from 'util';
+
+import Analysis from './analysis';
+import { AnalysisError, AnalysisErrorCode } from './errors';
+import { AnalysisFiles, AnalysisSettings, BindingsOptions, ResultsFilter } from './types/types';
+import writeTests from './writeTests';
+
+export const dependencies = {
+  clearTimeout: clearTimeout,
+  readFile: promisify(readFile),
+  setTimeout: setTimeout,
+  unwatchFile: unwatchFile,
+  watchFile: watchFile,
+};
+
+export const components = {
+  Analysis: Analysis,
+  writeTests: writeTests,
+};
+
+/** Options accepted by `WatchAnalysis` */
+export interface WatchAnalysisOptions {
+  /** Directory that tests for changed classes are merged into */
+  outputTests: string;
+  /** Settings for each analysis, which are limited to the changed classes (default: the server's default settings) */
+  settings?: AnalysisSettings;
+  /** Path to a dependencies JAR, which is read again for each analysis */
+  dependenciesBuild?: string;
+  /** How long the build must be unchanged before it is read, in milliseconds (default: 1000) */
+  debounceMilliseconds?: number;
+  /** How often the build is checked for changes, in milliseconds (default: 1000) */
+  watchIntervalMilliseconds?: number;
+  pollingInterval?: number;
+  writingConcurrency?: number;
+  writingFilter?: ResultsFilter;
+  /** Called with the changed classes, before an analysis of them is started */
+  onChange?(changedClasses: string[]): void;
+  /** Called with the paths of the test files written after an analysis completes */
+  onTestsWritten?(paths: string[]): void;
+  /** Called with any error reading the build, running an analysis, or writing tests */
+  onError?(error: Error): void;
+}
+
+/** Summary of the entries in a JAR, mapping each entry name to its CRC and size */
+export type JarEntries = Map<string, string>;
+
+/** A build and the entries in it */
+export interface WatchedBuild {
+  jar: Buffer;
+  entries: JarEntries;
+}
+
+const endOfCentralDirectorySignature = 0x06054b50;
+const centralDirectoryHeaderSignature = 0x02014b50;
+const endOfCentralDirectoryLength = 22;
+const centralDirectoryHeaderLength = 46;
+const maxCommentLength = 0xffff;
+
+/** Find the offset of the end of central directory record of a zip file */
+function findEndOfCentralDirectory(jar: Buffer): number {
+  const lowest = Math.max(jar.length - endOfCentralDirectoryLength - maxCommentLength, 0);
+  for (let offset = jar.length - endOfCentralDirectoryLength; offset >= lowest; offset--) {
+    if (jar.readUInt32LE(offset) === endOfCentralDirectorySignature) {
+      return offset;
+    }
+  }
+  throw new AnalysisError('The build is not a valid JAR file.', AnalysisErrorCode.WATCH_INVALID_BUILD);
+}
+
+/**
+ * Read the name, CRC and size of every entry in a JAR from its central directory,
+ * without decompressing any entries.
+ *
+ * Zip64 archives are not supported.
+ */
+export function readJarEntries(jar: Buffer): JarEntries {
+  const endOfCentralDirectory = findEndOfCentralDirectory(jar);
+  const count = jar.readUInt16LE(endOfCentralDirectory + 10);
+  const entries: JarEntries = new Map();
+  let offset = jar.readUInt32LE(endOfCentralDirectory + 16);
+  for (let index = 0; index < count; index++) {
+    const isHeader = offset + centralDirectoryHeaderLength <= jar.length
+      && jar.readUInt32LE(offset) === centralDirectoryHeaderSignature;
+    if (!isHeader) {
+      throw new AnalysisError('The build has a corrupt central directory.', AnalysisErrorCode.WATCH_INVALID_BUILD);
+    }
+    const crc = jar.readUInt32LE(offset + 16);
+    const size = jar.readUInt32LE(offset + 24);
+    const nameLength = jar.readUInt16LE(offset + 28);
+    const extraLength = jar.readUInt16LE(offset + 30);
+    const commentLength = jar.readUInt16LE(offset + 32);
+    const nameStart = offset + centralDirectoryHeaderLength;
+    entries.set(jar.toString('utf8', nameStart, nameStart + nameLength), `${crc}:${size}`);
+    offset = nameStart + nameLength + extraLength + commentLength;
+  }
+  return entries;
+}
+
+/**
+ * Get the name of the top level class compiled to a JAR entry, or undefined if it is not a class file.
+ *
+ * e.g. com/example/Foo$Bar.class => com.example.Foo
+ */
+export function getClassName(entryName: string): string | undefined {
+  const match = /^(?!META-INF\/)(.+?)(\$.*)?\.class$/.exec(entryName);
+  if (!match || match[1] === 'module-info' || match[1] === 'package-info') {
+    return undefined;
+  }
+  return match[1].replace(/\//g, '.');
+}
+
+/** Get the sorted names of the classes which were added or changed between two builds */
+export function getChangedClasses(previous: JarEntries, current: JarEntries): string[] {
+  const changed = new Set<string>();
+  current.forEach((summary, entryName) => {
+    const className = getClassName(entryName);
+    if (className && previous.get(entryName) !== summary) {
+      changed.add(className);
+    }
+  });
+  return [...changed].sort();
+}
+
+/**
+ * Watches a build JAR, and analyzes only the classes changed by each rebuild.
+ *
+ * Once the build has been unchanged for `debounceMilliseconds`, its class files are compared with those
+ * of the last build that was analyzed. An analysis is started with `entryPointsInclude` limited to the changed
+ * classes, and the last analyzed build uploaded as the `baseBuild`. When it completes, tests are merged into
+ * `outputTests`, so only the test files for the changed classes are written.
+ *
+ * If the build changes again while an analysis is running, that analysis is canceled,
+ * and a new one is started for every class changed since the last analyzed build.
+ */
+export default class WatchAnalysis {
+
+  public readonly apiUrl: string;
+  public readonly buildPath: string;
+  public readonly options: WatchAnalysisOptions;
+  public readonly bindingsOptions: BindingsOptions;
+  /** The last build analyzed, which later builds are compared with */
+  public baseline?: WatchedBuild;
+  /** The analysis currently running, if any */
+  public analysis?: Analysis;
+  private debounceTimer?: NodeJS.Timeout;
+  private running = false;
+  private pending = false;
+  private stopped = true;
+  private readonly listener = (current: Stats, previous: Stats) => {
+    if (current.mtimeMs !== previous.mtimeMs || current.size !== previous.size) {
+      this.scheduleCheck();
+    }
+  };
+
+  public constructor(
+    apiUrl: string,
+    buildPath: string,
+    options: WatchAnalysisOptions,
+    bindingsOptions: BindingsOptions = {},
+  ) {
+    this.apiUrl = apiUrl;
+    this.buildPath = buildPath;
+    this.options = options;
+    this.bindingsOptions = bindingsOptions;
+  }
+
+  /** Read the current build as the baseline, and start watching it for changes */
+  public async start(): Promise<void> {
+    this.baseline = await this.readBuild();
+    this.stopped = false;
+    dependencies.watchFile(this.buildPath, { interval: this.options.watchIntervalMilliseconds || 1000 }, this.listener);
+  }
+
+  /** Stop watching the build, and cancel any running analysis */
+  public async stop(): Promise<void> {
+    this.stopped = true;
+    dependencies.unwatchFile(this.buildPath, this.listener);
+    if (this.debounceTimer) {
+      dependencies.clearTimeout(this.debounceTimer);
+      this.debounceTimer = undefined;
+    }
+    await this.cancelAnalysis();
+  }
+
+  /**
+   * Analyze the classes changed since the baseline, and merge the tests for them.
+   *
+   * Resolves with the changed classes, which are empty if no classes have changed.
+   */
+  public async analyzeChanges(): Promise<string[]> {
+    const build = await this.readBuild();
+    const baseline = this.baseline;
+    const changedClasses = baseline ? getChangedClasses(baseline.entries, build.entries) : [];
+    if (!baseline || !changedClasses.length) {
+      this.baseline = baseline || build;
+      return changedClasses;
+    }
+    if (this.options.onChange) {
+      this.options.onChange(changedClasses);
+    }
+    const analysis = new components.Analysis(this.apiUrl, this.bindingsOptions);
+    this.analysis = analysis;
+    try {
+      const settings = await this.getSettings(analysis, changedClasses);
+      if (this.analysis !== analysis) {
+        // Superseded by a newer build before the analysis was started
+        return changedClasses;
+      }
+      const results = await analysis.run(await this.getFiles(build, baseline), settings, {
+        pollingInterval: this.options.pollingInterval,
+      });
+      if (this.analysis !== analysis) {
+        // Superseded by a newer build, which will be analyzed instead.
+        // Cancel again in case it was superseded before it had started.
+        if (analysis.isInProgress()) {
+          await analysis.cancel().catch(() => undefined);
+        }
+        return changedClasses;
+      }
+      if (!analysis.isCompleted()) {
+        throw new AnalysisError(`Analysis ended with ${analysis.status} status.`, AnalysisErrorCode.RUN_ERRORED);
+      }
+      const paths = await components.writeTests(this.options.outputTests, results, {
+        concurrency: this.options.writingConcurrency,
+        filter: this.options.writingFilter,
+        instrumentation: this.bindingsOptions.instrumentation,
+      });
+      this.baseline = build;
+      if (this.options.onTestsWritten) {
+        this.options.onTestsWritten(paths);
+      }
+      return changedClasses;
+    } finally {
+      if (this.analysis === analysis) {
+        this.analysis = undefined;
+      }
+    }
+  }
+
+  /** Check the build for changes once it has stopped changing */
+  private scheduleCheck(): void {
+    if (this.debounceTimer) {
+      dependencies.clearTimeout(this.debounceTimer);
+    }
+    this.debounceTimer = dependencies.setTimeout(async () => {
+      this.debounceTimer = undefined;
+      await this.check();
+    }, this.options.debounceMilliseconds === undefined ? 1000 : this.options.debounceMilliseconds);
+  }
+
+  /** Analyze the changes, or if an analysis is already running, cancel it and analyze them once it has stopped */
+  private async check(): Promise<void> {
+    if (this.running) {
+      this.pending = true;
+      await this.cancelAnalysis();
+      return;
+    }
+    this.running = true;
+    try {
+      do {
+        this.pending = false;
+        try {
+          await this.analyzeChanges();
+        } catch (error) {
+          this.reportError(error);
+        }
+      } while (this.pending && !this.stopped);
+    } finally {
+      this.running = false;
+    }
+  }
+
+  /** Stop the running analysis polling, and cancel it */
+  private async cancelAnalysis(): Promise<void> {
+    const analysis = this.analysis;
+    if (analysis) {
+      this.analysis = undefined;
+      analysis.stopPolling();
+      try {
+        await analysis.cancel();
+      } catch (error) {
+        // The analysis may already have ended, and its results are discarded regardless
+      }
+    }
+  }
+
+  /** Pass an error to the `onError` callback */
+  private reportError(error: Error): void {
+    if (this.options.onError) {
+      this.options.onError(error);
+    }
+  }
+
+  /** Read the build and its entries */
+  private async readBuild(): Promise<WatchedBuild> {
+    const jar = await dependencies.readFile(this.buildPath);
+    return { jar: jar, entries: readJarEntries(jar) };
+  }
+
+  /** Get the files to upload, with the baseline as the base build */
+  private async getFiles(build: WatchedBuild, baseline: WatchedBuild): Promise<AnalysisFiles> {
+    const files: AnalysisFiles = { build: build.jar, baseBuild: baseline.jar };
+    if (this.options.dependenciesBuild) {
+      files.dependenciesBuild = await dependencies.readFile(this.options.dependenciesBuild);
+    }
+    return files;
+  }
+
+  /** Get the `settings` option, or the server's default settings, limited to the changed classes */
+  private async getSettings(analysis: Analysis, changedClasses: string[]): Promise<AnalysisSettings> {
+    const settings = this.options.settings || await analysis.getDefaultSettings();
+    return { ...settings, entryPointsInclude: changedClasses };
+  }
+}
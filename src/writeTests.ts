@@ -1,21 +1,26 @@
 // Copyright 2019 Diffblue Limited. All Rights Reserved.
 
+import axios from 'axios';
 import { map } from 'bluebird';
 import { readFile, writeFile } from 'fs';
 import { isEmpty } from 'lodash';
 import * as mkdirp from 'mkdirp';
-import { join, parse } from 'path';
+import { join } from 'path';
 import { promisify } from 'util';
 
 import {
   generateTestClass,
   getFileNameForResult,
-  groupResults,
+  groupResultsAsync,
   mergeIntoTestClass,
 } from './combiner';
 import { WriterError, WriterErrorCode } from './errors';
 import filterResults from './filterResults';
+import { startTimer } from './instrumentation';
+import ResultsStore from './resultsStore';
+import SymbolTable from './symbolTable';
 import { AnalysisResult, WriteTestsOptions } from './types/types';
+import writeInChunks from './utils/writeInChunks';
 
 export const dependencies = {
   map: map,
@@ -28,21 +33,50 @@ export const components = {
   generateTestClass: generateTestClass,
   getFileNameForResult: getFileNameForResult,
   mergeIntoTestClass: mergeIntoTestClass,
+  writeInChunks: writeInChunks,
 };
 
+/** Test classes at least this many characters long are streamed to disk rather than encoded in one go */
+export const streamingThreshold = 1024 * 1024;
+
+/** Write a test class to a file, streaming it if it is large */
+async function writeTestClass(filePath: string, testClass: string): Promise<void> {
+  if (testClass.length >= streamingThreshold) {
+    await components.writeInChunks(filePath, testClass);
+  } else {
+    await dependencies.writeFile(filePath, testClass);
+  }
+}
+
 /**
  * Write test files to the specified directory.
  *
  * Checks if test file already exists in the directory for the tested class.
  * If it does, new tests are merged in, otherwise a new file is created.
+ *
+ * If a `prioritizer` option is supplied, the highest quality results for each class are written first,
+ * and results beyond each class's quality budget are dropped before they are combined.
+ *
+ * If results are read from a `ResultsStore`, only the groups being written are held in memory,
+ * and classes are written in the order their results were first stored.
+ *
+ * If the `cancelToken` option is canceled, classes which have not yet been read or combined are not written,
+ * and the returned promise rejects with the cancellation.
  */
 export default async function writeTests(
   directoryPath: string,
-  results: AnalysisResult[],
+  results: AnalysisResult[] | ResultsStore,
   options: WriteTestsOptions = {},
 ): Promise<string[]> {
   const defaultConcurrency = 20;
   const concurrency = options.concurrency || defaultConcurrency;
+  const cancelToken = options.cancelToken;
+  const throwIfCanceled = () => {
+    if (cancelToken) {
+      cancelToken.throwIfRequested();
+    }
+  };
+  throwIfCanceled();
   try {
     await dependencies.mkdirp(directoryPath);
   } catch (error) {
@@ -52,48 +86,86 @@ export default async function writeTests(
     );
   }
 
-  const groupedResults = groupResults(results);
+  const symbols = new SymbolTable();
   const successPaths: string[] = [];
   const errors: { [sourceFilePath: string]: Error } = {};
 
+  const instrumentation = options.instrumentation;
+  const prioritizer = options.prioritizer;
+
   const writeTestGroup = async ([sourceFilePath, results]: [string, AnalysisResult[]]) => {
-    const filteredResults = filterResults(results, options.filter);
+    throwIfCanceled();
+    const unprioritizedResults = filterResults(results, options.filter);
+    const filteredResults = prioritizer ? prioritizer.select(unprioritizedResults) : unprioritizedResults;
     if (filteredResults.length) {
       try {
-        const packagePath = parse(sourceFilePath).dir;
+        const timer = instrumentation ? startTimer() : () => 0;
+        const packagePath = symbols.getSourceFile(sourceFilePath).directory;
         const testDirectoryPath = join(directoryPath, packagePath);
         await dependencies.mkdirp(testDirectoryPath);
-        const fileName = components.getFileNameForResult(results[0]);
+        const fileName = components.getFileNameForResult(results[0], symbols);
         const filePath = join(testDirectoryPath, fileName);
-        let existingClass: Buffer | undefined;
+        let existingClass: string | undefined;
         let testClass: string;
         try {
-          existingClass = await dependencies.readFile(filePath);
+          existingClass = await dependencies.readFile(filePath, 'utf8');
         } catch (error) {
           // Ignore the error if the file does not exist, and later call generateTestClass not mergeIntoTestClass
           if (error.code !== 'ENOENT') {
             throw error;
           }
         }
-        if (existingClass) {
-          testClass = await components.mergeIntoTestClass(existingClass.toString(), filteredResults);
+        const readTime = timer();
+        const merging = existingClass !== undefined;
+        if (existingClass !== undefined) {
+          testClass = await components.mergeIntoTestClass(existingClass, filteredResults, symbols);
         } else {
-          testClass = components.generateTestClass(filteredResults);
+          testClass = components.generateTestClass(filteredResults, symbols);
         }
-        await dependencies.writeFile(filePath, testClass);
+        const combineTime = timer();
+        throwIfCanceled();
+        await writeTestClass(filePath, testClass);
         successPaths.push(filePath);
+        if (instrumentation) {
+          instrumentation.write({
+            sourceFilePath: sourceFilePath,
+            operation: merging ? 'merge' : 'generate',
+            results: filteredResults.length,
+            readMilliseconds: readTime,
+            combineMilliseconds: combineTime - readTime,
+            writeMilliseconds: timer() - combineTime,
+            bytes: Buffer.byteLength(testClass),
+          });
+        }
       } catch (error) {
+        if (axios.isCancel(error)) {
+          throw error;
+        }
         errors[sourceFilePath] = error;
         return;
       }
     }
   };
 
-  await dependencies.map(
-    Object.entries(groupedResults),
-    writeTestGroup,
-    { concurrency: concurrency },
-  );
+  if (results instanceof ResultsStore) {
+    const store = results;
+    await dependencies.map(
+      store.sourceFilePaths(),
+      async (sourceFilePath) => writeTestGroup([sourceFilePath, await store.getGroup(sourceFilePath)]),
+      { concurrency: concurrency },
+    );
+  } else {
+    const groups = Object.entries(await groupResultsAsync(results));
+    if (prioritizer) {
+      // Write the classes with the highest quality results first
+      groups.sort(([, a], [, b]) => prioritizer.topScore(b) - prioritizer.topScore(a));
+    }
+    await dependencies.map(
+      groups,
+      writeTestGroup,
+      { concurrency: concurrency },
+    );
+  }
   if (!isEmpty(errors)) {
     const errorList = Object.entries(errors).map(([sourceFilePath, error]) => {
       return `sourceFilePath: ${sourceFilePath}\n${error.message}\n`;
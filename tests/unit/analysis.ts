@@ -1,10 +1,22 @@
 // Copyright 2019 Diffblue Limited. All Rights Reserved.
 
 import { clone } from 'lodash';
+import { SinonSandbox, SinonStub } from 'sinon';
 
 import Analysis, { components } from '../../src/analysis';
 import { AnalysisError, AnalysisErrorCode } from '../../src/errors';
-import { AnalysisSettings, AnalysisStatus, ComputedAnalysisSettings } from '../../src/types/types';
+import Instrumentation from '../../src/instrumentation';
+import { ResultPrioritizer } from '../../src/prioritizeResults';
+import ResultsExporter from '../../src/resultsExporter';
+import ResultsStore from '../../src/resultsStore';
+import {
+  AnalysisResult,
+  AnalysisSettings,
+  AnalysisStatus,
+  BindingsOptions,
+  ComputedAnalysisSettings,
+  WriteTestsOptions,
+} from '../../src/types/types';
 import assert from '../../src/utils/assertExtra';
 import sinonTestFactory from '../../src/utils/sinonTest';
 
@@ -35,6 +47,11 @@ const sampleResult = {
 };
 const sampleBindingOptions = { allowUnauthorizedHttps: true };
 
+/** Get the bindings options passed to requests by a run, with the cancel token of the run */
+function runOptions(analysis: Analysis): BindingsOptions {
+  return { cancelToken: analysis.cancellation && analysis.cancellation.requests.token };
+}
+
 describe('analysis', () => {
   describe('Analysis object', () => {
     describe('instantiation', () => {
@@ -127,11 +144,12 @@ describe('analysis', () => {
           cursor: resultsResponse.cursor,
           results: resultsResponse.results,
           pollingStopped: false,
+          cancellation: analysis.cancellation,
           error: undefined,
         };
         assert.deepStrictEqual(returnValue, resultsResponse.results);
-        assert.calledOnceWith(startAnalysis, [apiUrl, files, settings, {}]);
-        assert.calledOnceWith(getAnalysisResults, [apiUrl, analysisId, undefined, {}]);
+        assert.calledOnceWith(startAnalysis, [apiUrl, files, settings, runOptions(analysis)]);
+        assert.calledOnceWith(getAnalysisResults, [apiUrl, analysisId, undefined, runOptions(analysis)]);
         assert.changedProperties(baseAnalysis, analysis, changes);
       }));
 
@@ -153,12 +171,13 @@ describe('analysis', () => {
           cursor: resultsResponse.cursor,
           results: resultsResponse.results,
           pollingStopped: false,
+          cancellation: analysis.cancellation,
           error: undefined,
         };
         assert.deepStrictEqual(returnValue, resultsResponse.results);
-        assert.calledOnceWith(getDefaultSettings, [apiUrl, {}]);
-        assert.calledOnceWith(startAnalysis, [apiUrl, files, defaultSettings, {}]);
-        assert.calledOnceWith(getAnalysisResults, [apiUrl, analysisId, undefined, {}]);
+        assert.calledOnceWith(getDefaultSettings, [apiUrl, runOptions(analysis)]);
+        assert.calledOnceWith(startAnalysis, [apiUrl, files, defaultSettings, runOptions(analysis)]);
+        assert.calledOnceWith(getAnalysisResults, [apiUrl, analysisId, undefined, runOptions(analysis)]);
         assert.changedProperties(baseAnalysis, analysis, changes);
       }));
 
@@ -169,8 +188,8 @@ describe('analysis', () => {
         const writeTests = sinon.stub(analysis, 'writeTests');
         const options = { pollingInterval: 0.0001, outputTests: '/test/path' };
         await analysis.run(files, settings, options);
-        assert.calledOnceWith(startAnalysis, [apiUrl, files, settings, {}]);
-        assert.calledOnceWith(getAnalysisResults, [apiUrl, analysisId, undefined, {}]);
+        assert.calledOnceWith(startAnalysis, [apiUrl, files, settings, runOptions(analysis)]);
+        assert.calledOnceWith(getAnalysisResults, [apiUrl, analysisId, undefined, runOptions(analysis)]);
         assert.calledOnceWith(writeTests, ['/test/path', { concurrency: undefined, filter: undefined }]);
       }));
 
@@ -181,8 +200,8 @@ describe('analysis', () => {
         const writeTests = sinon.stub(analysis, 'writeTests');
         const options = { pollingInterval: 0.0001, outputTests: '/test/path', writingConcurrency: 1 };
         await analysis.run(files, settings, options);
-        assert.calledOnceWith(startAnalysis, [apiUrl, files, settings, {}]);
-        assert.calledOnceWith(getAnalysisResults, [apiUrl, analysisId, undefined, {}]);
+        assert.calledOnceWith(startAnalysis, [apiUrl, files, settings, runOptions(analysis)]);
+        assert.calledOnceWith(getAnalysisResults, [apiUrl, analysisId, undefined, runOptions(analysis)]);
         assert.calledOnceWith(writeTests, ['/test/path', { concurrency: 1, filter: undefined }]);
       }));
 
@@ -193,11 +212,76 @@ describe('analysis', () => {
         const writeTests = sinon.stub(analysis, 'writeTests');
         const options = { pollingInterval: 0.0001, outputTests: '/test/path', writingFilter: ['verified'] };
         await analysis.run(files, settings, options);
-        assert.calledOnceWith(startAnalysis, [apiUrl, files, settings, {}]);
-        assert.calledOnceWith(getAnalysisResults, [apiUrl, analysisId, undefined, {}]);
+        assert.calledOnceWith(startAnalysis, [apiUrl, files, settings, runOptions(analysis)]);
+        assert.calledOnceWith(getAnalysisResults, [apiUrl, analysisId, undefined, runOptions(analysis)]);
         assert.calledOnceWith(writeTests, ['/test/path', { concurrency: undefined, filter: ['verified'] }]);
       }));
 
+      it('Can write test files as results are returned', sinonTestWithTimers(async (sinon) => {
+        sinon.stub(components, 'startAnalysis').resolves(startResponse);
+        sinon.stub(components, 'getAnalysisResults').resolves(resultsResponse);
+        const componentsWriteTests = sinon.stub(components, 'writeTests').resolves([]);
+        const analysis = new Analysis(apiUrl);
+        const writeTests = sinon.stub(analysis, 'writeTests');
+        const options = { pollingInterval: 0.0001, outputTests: '/test/path', writeIncrementally: true };
+        await analysis.run(files, settings, options);
+        assert.calledOnceWith(componentsWriteTests, ['/test/path', resultsResponse.results, {
+          concurrency: undefined,
+          filter: undefined,
+          prioritizer: undefined,
+          instrumentation: undefined,
+          cancelToken: analysis.cancellation && analysis.cancellation.writing.token,
+        }]);
+        assert.notCalled(writeTests);
+      }));
+
+      it('Can write prioritized test files as results are returned', sinonTestWithTimers(async (sinon) => {
+        sinon.stub(components, 'startAnalysis').resolves(startResponse);
+        sinon.stub(components, 'getAnalysisResults').resolves(resultsResponse);
+        const componentsWriteTests = sinon.stub(components, 'writeTests').resolves([]);
+        const analysis = new Analysis(apiUrl);
+        const writeTests = sinon.stub(analysis, 'writeTests');
+        const options = { pollingInterval: 0.0001, outputTests: '/test/path', priority: { classBudget: 100 }};
+        await analysis.run(files, settings, options);
+        assert.calledOnceStartingWith(componentsWriteTests, ['/test/path', resultsResponse.results]);
+        const writeOptions = componentsWriteTests.getCall(0).args[2];
+        assert.ok(writeOptions.prioritizer instanceof ResultPrioritizer);
+        assert.deepStrictEqual(writeOptions.prioritizer.options, options.priority);
+        assert.notCalled(writeTests);
+      }));
+
+      it('Can keep results in a results store, and write test files from it', sinonTestWithTimers(async (sinon) => {
+        sinon.stub(components, 'startAnalysis').resolves(startResponse);
+        sinon.stub(components, 'getAnalysisResults').resolves(resultsResponse);
+        const writeTests = sinon.stub(components, 'writeTests').resolves([]);
+        const analysis = new Analysis(apiUrl);
+        const store = new ResultsStore();
+        const options = { pollingInterval: 0.0001, outputTests: '/test/path', resultsStore: store };
+        const getAll = sinon.spy(store, 'getAll');
+        const runResults = await analysis.run(files, settings, options);
+        assert.strictEqual(analysis.resultsStore, store);
+        assert.notCalled(getAll);
+        assert.deepStrictEqual(runResults, resultsResponse.results);
+        assert.deepStrictEqual(await store.getAll(), resultsResponse.results);
+        assert.deepStrictEqual(analysis.results, resultsResponse.results);
+        assert.calledOnceWith(writeTests, [
+          '/test/path',
+          store,
+          { concurrency: undefined, filter: undefined, cancelToken: runOptions(analysis).cancelToken },
+        ]);
+      }));
+
+      it('Can write the results of each poll to a results exporter', sinonTestWithTimers(async (sinon) => {
+        sinon.stub(components, 'startAnalysis').resolves(startResponse);
+        sinon.stub(components, 'getAnalysisResults').resolves(resultsResponse);
+        const exporter = sinon.createStubInstance(ResultsExporter);
+        exporter.write.resolves();
+        const analysis = new Analysis(apiUrl);
+        const options = { pollingInterval: 0.0001, resultsExporter: exporter as unknown as ResultsExporter };
+        await analysis.run(files, settings, options);
+        assert.calledOnceWith(exporter.write, [resultsResponse.results]);
+      }));
+
       it('Can pass new result groups to onResults callback when polling', sinonTestWithTimers(async (sinon) => {
         const startAnalysis = sinon.stub(components, 'startAnalysis').resolves(startResponse);
         const otherResult = {
@@ -213,8 +297,8 @@ describe('analysis', () => {
         const onResults = sinon.spy();
         const analysis = new Analysis(apiUrl);
         await analysis.run(files, settings, { pollingInterval: 0.0001, onResults: onResults });
-        assert.calledOnceWith(startAnalysis, [apiUrl, files, settings, {}]);
-        assert.calledOnceWith(getAnalysisResults, [apiUrl, analysisId, undefined, {}]);
+        assert.calledOnceWith(startAnalysis, [apiUrl, files, settings, runOptions(analysis)]);
+        assert.calledOnceWith(getAnalysisResults, [apiUrl, analysisId, undefined, runOptions(analysis)]);
         assert.calledWith(
           onResults,
           [
@@ -224,6 +308,53 @@ describe('analysis', () => {
         );
       }));
 
+      it('Waits for promises returned by the onResults callback', sinonTestWithTimers(async (sinon) => {
+        sinon.stub(components, 'startAnalysis').resolves(startResponse);
+        const otherResult = {
+          ...sampleResult,
+          testedFunction: 'com.diffblue.javademo.OtherClass.otherFunction',
+          sourceFilePath: 'com/diffblue/javademo/OtherClass.java',
+        };
+        const response = { ...resultsResponse, results: [sampleResult, otherResult] };
+        sinon.stub(components, 'getAnalysisResults').resolves(response);
+        const calls: string[] = [];
+        const onResults = async (results: AnalysisResult[], fileName: string) => {
+          calls.push(`start ${fileName}`);
+          await new Promise((resolve) => setTimeout(resolve, 5));
+          calls.push(`end ${fileName}`);
+        };
+        const analysis = new Analysis(apiUrl);
+        await analysis.run(files, settings, { pollingInterval: 0.0001, onResults: onResults });
+        assert.deepStrictEqual(calls, [
+          'start TicTacToeTest.java',
+          'end TicTacToeTest.java',
+          'start OtherClassTest.java',
+          'end OtherClassTest.java',
+        ]);
+      }));
+
+      it('Can call the onResults callback concurrently', sinonTestWithTimers(async (sinon) => {
+        sinon.stub(components, 'startAnalysis').resolves(startResponse);
+        const otherResult = {
+          ...sampleResult,
+          testedFunction: 'com.diffblue.javademo.OtherClass.otherFunction',
+          sourceFilePath: 'com/diffblue/javademo/OtherClass.java',
+        };
+        const response = { ...resultsResponse, results: [sampleResult, otherResult] };
+        sinon.stub(components, 'getAnalysisResults').resolves(response);
+        const calls: string[] = [];
+        const onResults = async (results: AnalysisResult[], fileName: string) => {
+          calls.push(`start ${fileName}`);
+          await new Promise((resolve) => setTimeout(resolve, 5));
+          calls.push(`end ${fileName}`);
+        };
+        const analysis = new Analysis(apiUrl);
+        const options = { pollingInterval: 0.0001, onResults: onResults, onResultsConcurrency: 2 };
+        await analysis.run(files, settings, options);
+        assert.deepStrictEqual(calls.slice(0, 2), ['start TicTacToeTest.java', 'start OtherClassTest.java']);
+        assert.strictEqual(calls.length, 4);
+      }));
+
       it('Does not call the onResults callback when polling if no new results', sinonTestWithTimers(async (sinon) => {
         const startAnalysis = sinon.stub(components, 'startAnalysis').resolves(startResponse);
         const response = {
@@ -234,8 +365,8 @@ describe('analysis', () => {
         const onResults = sinon.spy();
         const analysis = new Analysis(apiUrl);
         await analysis.run(files, settings, { pollingInterval: 0.0001, onResults: onResults });
-        assert.calledOnceWith(startAnalysis, [apiUrl, files, settings, {}]);
-        assert.calledOnceWith(getAnalysisResults, [apiUrl, analysisId, undefined, {}]);
+        assert.calledOnceWith(startAnalysis, [apiUrl, files, settings, runOptions(analysis)]);
+        assert.calledOnceWith(getAnalysisResults, [apiUrl, analysisId, undefined, runOptions(analysis)]);
         assert.notCalled(onResults);
       }));
 
@@ -249,8 +380,8 @@ describe('analysis', () => {
         const options = { pollingInterval: 0.0001, outputTests: '/test/path', onError: onError };
         const returnValue = await analysis.run(files, settings, options);
         assert.deepStrictEqual(returnValue, resultsResponse.results);
-        assert.calledOnceWith(startAnalysis, [apiUrl, files, settings, {}]);
-        assert.calledOnceWith(getAnalysisResults, [apiUrl, analysisId, undefined, {}]);
+        assert.calledOnceWith(startAnalysis, [apiUrl, files, settings, runOptions(analysis)]);
+        assert.calledOnceWith(getAnalysisResults, [apiUrl, analysisId, undefined, runOptions(analysis)]);
         assert.calledOnceWith(writeTests, ['/test/path', { concurrency: undefined, filter: undefined }]);
         assert.calledOnceWith(onError, [writeTestsError]);
       }));
@@ -272,11 +403,27 @@ describe('analysis', () => {
             return (err instanceof AnalysisError) && err.code === AnalysisErrorCode.RUN_ERRORED;
           },
         );
-        assert.calledOnceWith(startAnalysis, [apiUrl, files, settings, {}]);
-        assert.calledOnceWith(getAnalysisResults, [apiUrl, analysisId, undefined, {}]);
+        assert.calledOnceWith(startAnalysis, [apiUrl, files, settings, runOptions(analysis)]);
+        assert.calledOnceWith(getAnalysisResults, [apiUrl, analysisId, undefined, runOptions(analysis)]);
         assert.notCalled(writeTests);
       }));
 
+      it('Reports polls and queue time when the instrumentation option is set', sinonTestWithTimers(async (sinon) => {
+        sinon.stub(components, 'startAnalysis').resolves(startResponse);
+        sinon.stub(components, 'getAnalysisResults').resolves(resultsResponse);
+        const instrumentation = new Instrumentation();
+        const onPoll = sinon.spy();
+        const onQueue = sinon.spy();
+        instrumentation.onPoll(onPoll).onQueue(onQueue);
+        const analysis = new Analysis(apiUrl, { instrumentation: instrumentation });
+        await analysis.run(files, settings, { pollingInterval: 0.0001 });
+        assert.calledOnce(onPoll);
+        assert.strictEqual(onPoll.getCall(0).args[0].analysisId, analysisId);
+        assert.strictEqual(onPoll.getCall(0).args[0].results, 1);
+        assert.calledOnce(onQueue);
+        assert.strictEqual(onQueue.getCall(0).args[0].analysisId, analysisId);
+      }));
+
       it('Calling forceStop stops polling (after polling occurs)', sinonTestWithTimers(async (sinon) => {
         const startAnalysis = sinon.stub(components, 'startAnalysis').resolves(startResponse);
         const getAnalysisResults = sinon.stub(components, 'getAnalysisResults');
@@ -293,8 +440,8 @@ describe('analysis', () => {
         const returnValue = await analysis.run(files, settings, { pollingInterval: 0.0001 });
         assert.deepStrictEqual(returnValue, resultsResponse.results);
         assert.strictEqual(analysis.status, AnalysisStatus.RUNNING);
-        assert.calledOnceWith(startAnalysis, [apiUrl, files, settings, {}]);
-        sinon.assert.calledWith(getAnalysisResults, apiUrl, analysisId, undefined, {});
+        assert.calledOnceWith(startAnalysis, [apiUrl, files, settings, runOptions(analysis)]);
+        sinon.assert.calledWith(getAnalysisResults, apiUrl, analysisId, undefined, runOptions(analysis));
       }));
 
       it('Calling forceStop stops polling (before polling occurs)', sinonTestWithTimers(async (sinon) => {
@@ -311,9 +458,120 @@ describe('analysis', () => {
         const returnValue = await analysis.run(files, settings, { pollingInterval: 10 });
         assert.deepStrictEqual(returnValue, []);
         assert.strictEqual(analysis.status, AnalysisStatus.QUEUED);
-        assert.calledOnceWith(startAnalysis, [apiUrl, files, settings, {}]);
+        assert.calledOnceWith(startAnalysis, [apiUrl, files, settings, runOptions(analysis)]);
         assert.notCalled(getAnalysisResults);
       }));
+
+      it('Calling stopPolling aborts a request in progress', sinonTestWithTimers(async (sinon) => {
+        sinon.stub(components, 'startAnalysis').resolves(startResponse);
+        const analysis = new Analysis(apiUrl);
+        const getAnalysisResults = sinon.stub(components, 'getAnalysisResults').callsFake(
+          async (api: string, id: string, cursor?: number, options?: BindingsOptions) => {
+            const cancelToken = options && options.cancelToken;
+            if (!cancelToken) {
+              throw new Error('The request was made without a cancel token');
+            }
+            analysis.stopPolling();
+            return cancelToken.promise.then((cancel) => {
+              throw cancel;
+            });
+          },
+        );
+        const returnValue = await analysis.run(files, settings, { pollingInterval: 0.0001 });
+        assert.deepStrictEqual(returnValue, []);
+        assert.strictEqual(analysis.status, AnalysisStatus.QUEUED);
+        assert.calledOnceWith(getAnalysisResults, [apiUrl, analysisId, undefined, runOptions(analysis)]);
+        assert.ok(analysis.cancellation && analysis.cancellation.requests.token.reason);
+      }));
+
+      it('Writes tests for fetched results when stopPolling aborts a request', sinonTestWithTimers(async (sinon) => {
+        sinon.stub(components, 'startAnalysis').resolves(startResponse);
+        const analysis = new Analysis(apiUrl);
+        const getAnalysisResults = sinon.stub(components, 'getAnalysisResults');
+        getAnalysisResults.onFirstCall().resolves({ ...resultsResponse, status: { status: AnalysisStatus.RUNNING }});
+        getAnalysisResults.onSecondCall().callsFake(
+          async (api: string, id: string, cursor?: number, options?: BindingsOptions) => {
+            analysis.stopPolling();
+            throw options && options.cancelToken && options.cancelToken.reason;
+          },
+        );
+        const writeTests = sinon.stub(analysis, 'writeTests').resolves([]);
+        const returnValue = await analysis.run(files, settings, { pollingInterval: 0.0001, outputTests: '/test/path' });
+        assert.deepStrictEqual(returnValue, resultsResponse.results);
+        assert.strictEqual(getAnalysisResults.callCount, 2);
+        assert.calledOnceWith(writeTests, ['/test/path', { concurrency: undefined, filter: undefined }]);
+      }));
+
+      it('Calling cancel stops writing test files', sinonTestWithTimers(async (sinon) => {
+        sinon.stub(components, 'startAnalysis').resolves(startResponse);
+        sinon.stub(components, 'getAnalysisResults').resolves({
+          ...resultsResponse,
+          status: { status: AnalysisStatus.COMPLETED },
+        });
+        const cancelAnalysis = sinon.stub(components, 'cancelAnalysis').resolves({
+          message: 'Analysis cancelled successfully',
+          status: { status: AnalysisStatus.STOPPING },
+        });
+        const analysis = new Analysis(apiUrl);
+        const writeTests = sinon.stub(components, 'writeTests').callsFake(
+          async (directoryPath: string, results: AnalysisResult[] | ResultsStore, options?: WriteTestsOptions) => {
+            await analysis.cancel();
+            if (options && options.cancelToken) {
+              options.cancelToken.throwIfRequested();
+            }
+            return [];
+          },
+        );
+        const returnValue = await analysis.run(files, settings, { pollingInterval: 0.0001, outputTests: '/test/path' });
+        assert.deepStrictEqual(returnValue, resultsResponse.results);
+        assert.calledOnce(writeTests);
+        assert.calledOnceWith(cancelAnalysis, [apiUrl, analysisId, {}]);
+        assert.strictEqual(analysis.pollingStopped, true);
+      }));
+    });
+
+    describe('exportResults', () => {
+      /** Stub the exporter created by `exportResults`, counting the results written to it */
+      function stubExporter(sinon: SinonSandbox): { create: SinonStub; write: SinonStub; close: SinonStub } {
+        const exporter = sinon.createStubInstance(ResultsExporter);
+        exporter.exported = 0;
+        exporter.write.callsFake(async (results: AnalysisResult[]) => {
+          exporter.exported += results.length;
+        });
+        exporter.close.resolves();
+        const create = sinon.stub(components, 'ResultsExporter').returns(exporter);
+        return { create: create, write: exporter.write, close: exporter.close };
+      }
+
+      it('Can export the current results', sinonTest(async (sinon) => {
+        const { create, write, close } = stubExporter(sinon);
+        const analysis = new Analysis(apiUrl);
+        analysis.results = [sampleResult, sampleResult];
+        const options = { format: 'columnar' as 'columnar', gzip: true };
+        assert.strictEqual(await analysis.exportResults('/test/results.columnar', options), 2);
+        assert.calledOnceWith(create, ['/test/results.columnar', options]);
+        assert.calledOnceWith(write, [analysis.results]);
+        assert.calledOnce(close);
+      }));
+
+      it('Can export results from a results store one source file at a time', sinonTest(async (sinon) => {
+        const { write } = stubExporter(sinon);
+        const otherResult = { ...sampleResult, sourceFilePath: 'com/diffblue/javademo/Other.java' };
+        const analysis = new Analysis(apiUrl);
+        analysis.resultsStore = new ResultsStore();
+        await analysis.resultsStore.add([sampleResult, otherResult, sampleResult]);
+        assert.strictEqual(await analysis.exportResults('/test/results.columnar'), 3);
+        assert.calledWith(write, [[[sampleResult, sampleResult]], [[otherResult]]]);
+      }));
+
+      it('Closes the exporter and rejects if writing fails', sinonTest(async (sinon) => {
+        const { write, close } = stubExporter(sinon);
+        const writeError = new Error('write failed');
+        write.rejects(writeError);
+        const analysis = new Analysis(apiUrl);
+        await assert.rejects(analysis.exportResults('/test/results.columnar'), writeError);
+        assert.calledOnce(close);
+      }));
     });
 
     describe('writeTests', () => {
@@ -340,6 +598,19 @@ describe('analysis', () => {
         assert.calledOnceWith(writeTests, ['/test/path', analysis.results, options]);
       }));
 
+      it('Passes instrumentation from the bindings options', sinonTest(async (sinon) => {
+        const instrumentation = new Instrumentation();
+        const analysis = new Analysis(apiUrl, { instrumentation: instrumentation });
+        analysis.results = [sampleResult];
+        const writeTests = sinon.stub(components, 'writeTests').resolves([]);
+        await analysis.writeTests('/test/path', { concurrency: 1 });
+        assert.calledOnceWith(writeTests, [
+          '/test/path',
+          analysis.results,
+          { concurrency: 1, instrumentation: instrumentation },
+        ]);
+      }));
+
       it('Rejects if test writing method rejects', sinonTest(async (sinon) => {
         const writeTestsError = new Error('writeTests failed');
         sinon.stub(components, 'writeTests').rejects(writeTestsError);
@@ -727,6 +998,22 @@ describe('analysis', () => {
         assert.changedProperties(startedAnalysis, analysis, changes);
       }));
 
+      it('Can get every result of an analysis in pages', sinonTest(async (sinon) => {
+        sinon.stub(components, 'startAnalysis').resolves(startResponse);
+        const getAnalysisResults = sinon.stub(components, 'getAnalysisResults');
+        const getAllAnalysisResults = sinon.stub(components, 'getAllAnalysisResults').resolves(resultsResponse);
+        const analysis = new Analysis(apiUrl);
+        await analysis.start(files, settings);
+        analysis.cursor = 98765;
+        const pagination = { pageSize: 100, concurrency: 2 };
+        const returnValue = await analysis.getResults(true, pagination);
+        assert.deepStrictEqual(returnValue, resultsResponse);
+        assert.calledOnceWith(getAllAnalysisResults, [apiUrl, analysisId, 98765, pagination, {}]);
+        assert.notCalled(getAnalysisResults);
+        assert.strictEqual(analysis.cursor, resultsResponse.cursor);
+        assert.deepStrictEqual(analysis.results, resultsResponse.results);
+      }));
+
       it('Can get the full results of an analysis', sinonTest(async (sinon) => {
         sinon.stub(components, 'startAnalysis').resolves(startResponse);
         const getAnalysisResults = sinon.stub(components, 'getAnalysisResults').resolves(resultsResponse);
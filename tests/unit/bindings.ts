@@ -1,16 +1,26 @@
 // Copyright 2019 Diffblue Limited. All Rights Reserved.
 
+import axios, { AxiosRequestConfig, AxiosResponse } from 'axios';
+import { Agent as HttpAgent } from 'http';
+import { Agent as HttpsAgent } from 'https';
+import { SinonSandbox } from 'sinon';
+import { PassThrough } from 'stream';
+
 import {
   cancelAnalysis,
   components,
   dependencies,
+  getAllAnalysisResults,
   getAnalysisResults,
   getAnalysisStatus,
   getApiVersion,
   getDefaultSettings,
   startAnalysis,
 } from '../../src/bindings';
-import { BindingsError, BindingsErrorCode } from '../../src/errors';
+import { ApiError, BindingsError, BindingsErrorCode } from '../../src/errors';
+import Instrumentation from '../../src/instrumentation';
+import { dependencies as resilienceDependencies, resetCircuitBreakers } from '../../src/resilience';
+import ResponseCache from '../../src/responseCache';
 import assert from '../../src/utils/assertExtra';
 import sinonTestFactory from '../../src/utils/sinonTest';
 
@@ -43,6 +53,18 @@ describe('api/bindings', () => {
       await getApiVersion(api, { allowUnauthorizedHttps: true });
       assert.calledOnceWith(get, [versionUrl, sampleConfig]);
     }));
+
+    it('Uses the httpAgent and httpsAgent options', sinonTest(async (sinon) => {
+      const get = sinon.stub(dependencies.request, 'get').resolves();
+      const httpAgent = new HttpAgent({ keepAlive: true });
+      const httpsAgent = new HttpsAgent({ keepAlive: true });
+      await getApiVersion(api, { httpAgent: httpAgent, httpsAgent: httpsAgent });
+      await getApiVersion(api, { httpsAgent: httpsAgent, allowUnauthorizedHttps: true });
+      assert.calledWith(get, [
+        [versionUrl, { httpAgent: httpAgent, httpsAgent: httpsAgent }],
+        [versionUrl, sampleConfig],
+      ]);
+    }));
   });
 
   describe('getDefaultSettings', () => {
@@ -177,6 +199,28 @@ describe('api/bindings', () => {
       const config = { ...sampleConfig, headers: headers, maxContentLength: 1024 * 1024 * 1024 * 2 };
       assert.calledOnceWith(post, [startUrl, formData, config]);
     }));
+
+    it('Destroys file streams if the upload is canceled', sinonTest(async (sinon) => {
+      const canceled = new axios.Cancel('Polling stopped');
+      sinon.stub(dependencies.request, 'post').rejects(canceled);
+      const buildStream = new PassThrough();
+      const dependenciesStream = new PassThrough();
+      const destroyBuild = sinon.spy(buildStream, 'destroy');
+      const destroyDependencies = sinon.spy(dependenciesStream, 'destroy');
+      const files = { build: buildStream, baseBuild: baseBuild, dependenciesBuild: dependenciesStream };
+      await assert.rejects(startAnalysis(api, files, settings), canceled);
+      assert.calledOnce(destroyBuild);
+      assert.calledOnce(destroyDependencies);
+    }));
+
+    it('Leaves file streams open if the upload fails', sinonTest(async (sinon) => {
+      const error = new ApiError('Server error', 'requestError', 500);
+      sinon.stub(dependencies.request, 'post').rejects(error);
+      const buildStream = new PassThrough();
+      const destroy = sinon.spy(buildStream, 'destroy');
+      await assert.rejects(startAnalysis(api, { build: buildStream }, settings), error);
+      assert.notCalled(destroy);
+    }));
   });
 
   describe('getAnalysisResults', () => {
@@ -229,6 +273,59 @@ describe('api/bindings', () => {
       const config = { ...sampleConfig, params: { cursor: undefined }};
       assert.calledOnceWith(get, [resultUrl, config]);
     }));
+
+    it('Sends the limit parameter', sinonTest(async (sinon) => {
+      const get = sinon.stub(dependencies.request, 'get').resolves();
+      await getAnalysisResults(api, 'ABCD-1234', 5, undefined, 10);
+      assert.calledOnceWith(get, [resultUrl, { params: { cursor: 5, limit: 10 }}]);
+    }));
+  });
+
+  describe('getAllAnalysisResults', () => {
+    const allResults = Array.from({ length: 25 }, (_, index) => ({ testId: `test-${index}` }));
+    const status = { status: 'RUNNING' };
+
+    /**
+     * Stub results requests with a fake server holding `count` results,
+     * which encodes offsets in cursors by adding `cursorBase`, and reports the total if `reportTotal` is set.
+     */
+    function stubResults(sinon: SinonSandbox, count: number, reportTotal: boolean, cursorBase = 0) {
+      return sinon.stub(dependencies.request, 'get').callsFake(async (url: string, config: AxiosRequestConfig) => {
+        const { cursor, limit } = config.params;
+        const offset = cursor === undefined ? 0 : cursor - cursorBase;
+        const results = allResults.slice(offset, Math.min(count, offset + limit));
+        const total = reportTotal ? { total: count } : {};
+        return { cursor: cursorBase + offset + results.length, results: results, status: status, ...total };
+      });
+    }
+
+    it('Requests the remaining pages in parallel if the server reports the total', sinonTest(async (sinon) => {
+      const get = stubResults(sinon, 25, true);
+      const response = await getAllAnalysisResults(api, 'ABCD-1234', undefined, { pageSize: 10 });
+      assert.deepStrictEqual(response, { cursor: 25, results: allResults, status: status, total: 25 });
+      assert.deepStrictEqual(get.getCalls().map(({ args }) => args[1].params.cursor), [undefined, 10, 20]);
+    }));
+
+    it('Requests pages one after another if the server does not report the total', sinonTest(async (sinon) => {
+      const get = stubResults(sinon, 20, false);
+      const response = await getAllAnalysisResults(api, 'ABCD-1234', 5, { pageSize: 10 });
+      assert.deepStrictEqual(response, { cursor: 20, results: allResults.slice(5, 20), status: status });
+      assert.deepStrictEqual(get.getCalls().map(({ args }) => args[1].params.cursor), [5, 15]);
+    }));
+
+    it('Stops when a page is empty', sinonTest(async (sinon) => {
+      const get = stubResults(sinon, 20, true);
+      const response = await getAllAnalysisResults(api, 'ABCD-1234', undefined, { pageSize: 10, concurrency: 1 });
+      assert.deepStrictEqual(response.results, allResults.slice(0, 20));
+      assert.deepStrictEqual(get.getCalls().map(({ args }) => args[1].params.cursor), [undefined, 10, 20]);
+    }));
+
+    it('Falls back to requesting pages one after another if cursors are not offsets', sinonTest(async (sinon) => {
+      const get = stubResults(sinon, 25, true, 1000);
+      const response = await getAllAnalysisResults(api, 'ABCD-1234', undefined, { pageSize: 10 });
+      assert.deepStrictEqual(response, { cursor: 1025, results: allResults, status: status, total: 25 });
+      assert.deepStrictEqual(get.getCalls().map(({ args }) => args[1].params.cursor), [undefined, 1010, 1020]);
+    }));
   });
 
   describe('cancelAnalysis', () => {
@@ -279,5 +376,142 @@ describe('api/bindings', () => {
       await getAnalysisStatus(api, 'ABCD-1234', { allowUnauthorizedHttps: true });
       assert.calledOnceWith(get, [statusUrl, sampleConfig]);
     }));
+
+    it('Passes the cancelToken option to the request', sinonTest(async (sinon) => {
+      const get = sinon.stub(dependencies.request, 'get').resolves();
+      const cancelToken = axios.CancelToken.source().token;
+      await getAnalysisStatus(api, 'ABCD-1234', { cancelToken: cancelToken });
+      assert.calledOnceWith(get, [statusUrl, { cancelToken: cancelToken }]);
+    }));
+  });
+
+  describe('instrumentation', () => {
+    const statusUrl = `${api}/analysis/ABCD-1234/status`;
+
+    it('Reports requests when the instrumentation option is set', sinonTest(async (sinon) => {
+      const instrumentation = new Instrumentation();
+      const onRequest = sinon.spy();
+      instrumentation.onRequest(onRequest);
+      const body = '{"status":"RUNNING"}';
+      const get = sinon.stub(dependencies.request, 'get').callsFake(async (url: string, config: any) => {
+        return config.transformResponse.reduce((data: any, transform: any) => transform(data), body);
+      });
+      const response = await getAnalysisStatus(api, 'ABCD-1234', { instrumentation: instrumentation });
+      assert.deepStrictEqual(response, { status: 'RUNNING' });
+      assert.strictEqual(get.getCall(0).args[0], statusUrl);
+      assert.calledOnce(onRequest);
+      const event = onRequest.getCall(0).args[0];
+      assert.strictEqual(event.route, 'status');
+      assert.strictEqual(event.method, 'get');
+      assert.strictEqual(event.sentBytes, 0);
+      assert.strictEqual(event.receivedBytes, body.length);
+      assert.strictEqual(event.error, undefined);
+    }));
+
+    it('Reports failed requests when the instrumentation option is set', sinonTest(async (sinon) => {
+      const instrumentation = new Instrumentation();
+      const onRequest = sinon.spy();
+      instrumentation.onRequest(onRequest);
+      const error = new ApiError('Bad gateway', 'requestError', 502);
+      sinon.stub(dependencies.request, 'get').rejects(error);
+      await assert.rejects(getApiVersion(api, { instrumentation: instrumentation }), error);
+      const event = onRequest.getCall(0).args[0];
+      assert.strictEqual(event.route, 'version');
+      assert.strictEqual(event.status, 502);
+      assert.strictEqual(event.error, error);
+    }));
+
+    it('Reports bytes sent when starting an analysis', sinonTest(async (sinon) => {
+      const instrumentation = new Instrumentation();
+      const onRequest = sinon.spy();
+      instrumentation.onRequest(onRequest);
+      sinon.stub(dependencies.request, 'post').callsFake(async (url: string, formData: any) => {
+        formData.emit('data', Buffer.from('abc'));
+        formData.emit('data', 'de');
+        return { id: '1234-ABCD', settings: {}};
+      });
+      await startAnalysis(api, { build: Buffer.from('foo') }, { phases: {}}, { instrumentation: instrumentation });
+      const event = onRequest.getCall(0).args[0];
+      assert.strictEqual(event.route, 'start');
+      assert.strictEqual(event.method, 'post');
+      assert.strictEqual(event.sentBytes, 5);
+    }));
+  });
+
+  describe('resilience', () => {
+    const statusUrl = `${api}/analysis/ABCD-1234/status`;
+    const serverError = new ApiError('Bad gateway', 'requestError', 502);
+
+    afterEach(() => resetCircuitBreakers());
+
+    it('Retries idempotent requests which fail with a transient error', sinonTest(async (sinon) => {
+      sinon.stub(resilienceDependencies, 'random').returns(0);
+      const get = sinon.stub(dependencies.request, 'get');
+      get.onFirstCall().rejects(serverError);
+      get.onSecondCall().resolves({ status: 'RUNNING' });
+      const response = await getAnalysisStatus(api, 'ABCD-1234', { resilience: { retry: {}}});
+      assert.deepStrictEqual(response, { status: 'RUNNING' });
+      assert.calledWith(get, [[statusUrl, {}], [statusUrl, {}]]);
+    }));
+
+    it('Does not retry requests which are not idempotent', sinonTest(async (sinon) => {
+      const post = sinon.stub(dependencies.request, 'post').rejects(serverError);
+      await assert.rejects(cancelAnalysis(api, 'ABCD-1234', { resilience: { retry: {}}}), serverError);
+      assert.calledOnce(post);
+    }));
+
+    it('Shares a circuit breaker between requests to the same server', sinonTest(async (sinon) => {
+      const get = sinon.stub(dependencies.request, 'get').rejects(serverError);
+      const options = { resilience: { circuitBreaker: { failureThreshold: 1 }}};
+      await assert.rejects(getAnalysisStatus(api, 'ABCD-1234', options), serverError);
+      await assert.rejectsWith(getApiVersion(`${api}/other`, options), /ResilienceError CIRCUIT_OPEN/);
+      assert.calledOnce(get);
+    }));
+  });
+
+  describe('responseCache', () => {
+    const versionUrl = `${api}/version`;
+    const defaultSettingsUrl = `${api}/default-settings`;
+
+    it('Caches the API version and default settings', sinonTest(async (sinon) => {
+      const getResponse = sinon.stub(dependencies.request, 'getResponse');
+      getResponse.withArgs(versionUrl).resolves({ status: 200, data: { version: '1.0.1' }, headers: {}});
+      getResponse.withArgs(defaultSettingsUrl).resolves({ status: 200, data: { phases: {}}, headers: {}});
+      const options = { responseCache: new ResponseCache() };
+
+      const versions = await Promise.all([getApiVersion(api, options), getApiVersion(api, options)]);
+      assert.deepStrictEqual(versions, [{ version: '1.0.1' }, { version: '1.0.1' }]);
+      assert.deepStrictEqual(await getDefaultSettings(api, options), { phases: {}});
+      assert.deepStrictEqual(await getDefaultSettings(api, options), { phases: {}});
+      assert.calledWith(getResponse, [[versionUrl, {}], [defaultSettingsUrl, {}]]);
+    }));
+
+    it('Revalidates expired responses with their ETag', sinonTest(async (sinon) => {
+      const getResponse = sinon.stub(dependencies.request, 'getResponse');
+      getResponse.onFirstCall().resolves({ status: 200, data: { version: '1.0.1' }, headers: { etag: '"v1"' }});
+      getResponse.onSecondCall().resolves({ status: 304, data: '', headers: { etag: '"v1"' }});
+      const options = { responseCache: new ResponseCache({ ttlMilliseconds: 0 }) };
+
+      assert.deepStrictEqual(await getApiVersion(api, options), { version: '1.0.1' });
+      assert.deepStrictEqual(await getApiVersion(api, options), { version: '1.0.1' });
+      assert.calledWith(getResponse, [[versionUrl, {}], [versionUrl, { headers: { 'If-None-Match': '"v1"' }}]]);
+    }));
+
+    it('Shares a cached request between callers, without aborting it if one is canceled', sinonTest(async (sinon) => {
+      let respond: (response: AxiosResponse) => void = () => undefined;
+      const response = new Promise<AxiosResponse>((resolve) => {
+        respond = resolve;
+      });
+      const getResponse = sinon.stub(dependencies.request, 'getResponse').returns(response);
+      const options = { responseCache: new ResponseCache() };
+      const source = axios.CancelToken.source();
+      const canceled = getApiVersion(api, { ...options, cancelToken: source.token });
+      const waiting = getApiVersion(api, options);
+      source.cancel('Polling stopped');
+      await assert.rejects(canceled, (error: Error) => axios.isCancel(error));
+      respond({ status: 200, statusText: 'OK', data: { version: '1.0.1' }, headers: {}, config: {}});
+      assert.deepStrictEqual(await waiting, { version: '1.0.1' });
+      assert.calledOnceWith(getResponse, [versionUrl, {}]);
+    }));
   });
 });
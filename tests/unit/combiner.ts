@@ -6,9 +6,13 @@ import {
   getFileNameForResult,
   GroupedResults,
   groupResults,
+  groupResultsAsync,
   mergeIntoTestClass,
+  prepareTestData,
 } from '../../src/combiner';
 import { CombinerError, CombinerErrorCode } from '../../src/errors';
+import ResultsStore from '../../src/resultsStore';
+import SymbolTable from '../../src/symbolTable';
 import assert from '../../src/utils/assertExtra';
 import sinonTestFactory from '../../src/utils/sinonTest';
 
@@ -64,6 +68,26 @@ describe('combiner', () => {
       assert.strictEqual(testClass, expectedTestClass);
     }));
 
+    it('Can generate a test class for results with prefixed tested functions', sinonTest(async (sinon) => {
+      const genTestClass = sinon.stub(dependencies, 'genTestClass').returns('test-class');
+      const prefixedResult = {
+        ...sampleResult,
+        testedFunction: 'java::com.diffblue.javademo.TicTacToe.checkTicTacToePosition:([I)I',
+      };
+      generateTestClass([prefixedResult]);
+      assert.calledOnceWith(genTestClass, [[sampleTestData], 'TicTacToeTest', 'com.diffblue.javademo']);
+    }));
+
+    it('Can share a symbol table between calls', sinonTest(async (sinon) => {
+      sinon.stub(dependencies, 'genTestClass').returns('test-class');
+      const symbols = new SymbolTable();
+      const otherResult = { ...sampleResult, testId: 'other-id' };
+      generateTestClass([sampleResult], symbols);
+      generateTestClass([otherResult], symbols);
+      assert.strictEqual(symbols.functionCount, 1);
+      assert.strictEqual(symbols.sourceFileCount, 1);
+    }));
+
     it('Fails if passed results with differing source file paths', () => {
       const otherResult = { ...sampleResult, sourceFilePath: '/other/path' };
       assert.throws(
@@ -213,6 +237,48 @@ describe('combiner', () => {
     });
   });
 
+  describe('prepareTestData', () => {
+    it('Maps results to test data', () => {
+      assert.deepStrictEqual(prepareTestData([sampleResult]), [sampleTestData]);
+    });
+
+    it('Passes imports and class rules to the combiner as they are', () => {
+      const result = {
+        ...sampleResult,
+        imports: ['org.junit.Test', 'org.junit.Rule', 'org.junit.Test'],
+        classRules: ['rule b', 'rule a'],
+      };
+      const [testData] = prepareTestData([result]);
+      assert.strictEqual(testData.imports, result.imports);
+      assert.strictEqual(testData.classRules, result.classRules);
+    });
+  });
+
+  describe('groupResultsAsync', () => {
+    it('Groups results in the same way as groupResults', async () => {
+      const otherResult = { ...sampleResult, sourceFilePath: 'other/path' };
+      const results = [sampleResult, otherResult, sampleResult];
+      assert.deepStrictEqual(await groupResultsAsync(results), groupResults(results));
+    });
+
+    it('Yields to the event loop after each chunk of results', sinonTest(async (sinon) => {
+      const setImmediate = sinon.stub(dependencies, 'setImmediate').callsFake((callback: () => void) => callback());
+      const results = Array.from({ length: 7 }, (_, index) => ({ ...sampleResult, testId: `id${index}` }));
+      const groupedResults = await groupResultsAsync(results, 3);
+      assert.deepStrictEqual(groupedResults, { [sampleResult.sourceFilePath]: results });
+      assert.strictEqual(setImmediate.callCount, 2);
+    }));
+
+    it('Groups results read from a results store', async () => {
+      const otherResult = { ...sampleResult, sourceFilePath: 'other/path' };
+      const results = [sampleResult, otherResult, sampleResult];
+      const store = new ResultsStore();
+      await store.add(results);
+      assert.deepStrictEqual(await groupResultsAsync(store), groupResults(results));
+      assert.deepStrictEqual(await groupResults(store), groupResults(results));
+    });
+  });
+
   describe('getFileNameForResult', () => {
     it('Returns a file name for a provided result object', () => {
       const fileName = getFileNameForResult(sampleResult);
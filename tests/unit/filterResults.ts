@@ -4,6 +4,7 @@ import { clone } from 'lodash';
 
 import { FilterResultsError, FilterResultsErrorCode } from '../../src/errors';
 import filterResults from '../../src/filterResults';
+import ResultsStore from '../../src/resultsStore';
 import { AnalysisResult, ResultTagFilterObject } from '../../src/types/types';
 import assert from '../../src/utils/assertExtra';
 import sinonTestFactory from '../../src/utils/sinonTest';
@@ -81,6 +82,16 @@ describe('filterResults', () => {
     assert.deepStrictEqual(returnValue, expectedReturn);
   }));
 
+  it('Can filter results read from a results store', sinonTest(async (sinon) => {
+    const verifiedResult = { ...sampleResult, tags: ['verified'] };
+    const otherResult = { ...verifiedResult, sourceFilePath: '/com/diffblue/javademo/Other.java' };
+    const store = new ResultsStore();
+    await store.add([verifiedResult, otherResult, sampleResult, verifiedResult]);
+    const returnValue = await filterResults(store, ['verified']);
+    assert.deepStrictEqual(returnValue, [verifiedResult, verifiedResult, otherResult]);
+    await store.close();
+  }));
+
   it('Throws if the filter has an unexpected data type', sinonTest(async (sinon) => {
     assert.throws(
       () => filterResults([sampleResult], 'invalid filter type' as any),
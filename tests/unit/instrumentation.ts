@@ -0,0 +1,57 @@
+// Copyright 2019 Diffblue Limited. All Rights Reserved.
+
+import Instrumentation, { startTimer } from '../../src/instrumentation';
+import assert from '../../src/utils/assertExtra';
+import sinonTestFactory from '../../src/utils/sinonTest';
+
+const sinonTest = sinonTestFactory({ useFakeTimers: false });
+
+describe('instrumentation', () => {
+  describe('startTimer', () => {
+    it('Returns the milliseconds elapsed since it was started', sinonTest(async (sinon) => {
+      const hrtime = sinon.stub(process, 'hrtime');
+      hrtime.onFirstCall().returns([10, 0]);
+      hrtime.onSecondCall().returns([1, 500000]);
+      const timer = startTimer();
+      assert.strictEqual(timer(), 1000.5);
+      assert.deepStrictEqual(hrtime.getCall(1).args, [[10, 0]]);
+    }));
+  });
+
+  describe('Instrumentation', () => {
+    it('Re-emits reported events to listeners', sinonTest(async (sinon) => {
+      const instrumentation = new Instrumentation();
+      const onRequest = sinon.spy();
+      const onPoll = sinon.spy();
+      const onQueue = sinon.spy();
+      const onWrite = sinon.spy();
+      instrumentation.onRequest(onRequest).onPoll(onPoll).onQueue(onQueue).onWrite(onWrite);
+      const requestEvent = {
+        route: 'status' as 'status',
+        method: 'get' as 'get',
+        durationMilliseconds: 1,
+        sentBytes: 0,
+        receivedBytes: 20,
+      };
+      const pollEvent = { analysisId: 'id', results: 2, durationMilliseconds: 3 };
+      const queueEvent = { analysisId: 'id', durationMilliseconds: 4 };
+      const writeEvent = {
+        sourceFilePath: 'com/diffblue/javademo/TicTacToe.java',
+        operation: 'generate' as 'generate',
+        results: 1,
+        readMilliseconds: 1,
+        combineMilliseconds: 2,
+        writeMilliseconds: 3,
+        bytes: 100,
+      };
+      instrumentation.request(requestEvent);
+      instrumentation.poll(pollEvent);
+      instrumentation.queue(queueEvent);
+      instrumentation.write(writeEvent);
+      assert.calledOnceWith(onRequest, [requestEvent]);
+      assert.calledOnceWith(onPoll, [pollEvent]);
+      assert.calledOnceWith(onQueue, [queueEvent]);
+      assert.calledOnceWith(onWrite, [writeEvent]);
+    }));
+  });
+});
@@ -0,0 +1,130 @@
+// Copyright 2019 Diffblue Limited. All Rights Reserved.
+
+import { get } from 'http';
+import { AddressInfo } from 'net';
+
+import Instrumentation from '../../src/instrumentation';
+import MetricsCollector, { Histogram, serveMetrics } from '../../src/metrics';
+import assert from '../../src/utils/assertExtra';
+
+/** Make a GET request to a local server and resolve with the status code and body */
+async function fetch(port: number, path: string): Promise<[number | undefined, string]> {
+  return new Promise<[number | undefined, string]>((resolve, reject) => {
+    get({ host: '127.0.0.1', port: port, path: path }, (response) => {
+      let body = '';
+      response.on('data', (chunk) => body += chunk);
+      response.on('end', () => resolve([response.statusCode, body]));
+    }).on('error', reject);
+  });
+}
+
+describe('metrics', () => {
+  describe('Histogram', () => {
+    it('Records cumulative bucket counts for each set of labels', () => {
+      const histogram = new Histogram('test_histogram', 'A test histogram', [1, 5, 10]);
+      histogram.observe(0.5, { route: 'status' });
+      histogram.observe(5, { route: 'status' });
+      histogram.observe(20, { route: 'status' });
+      histogram.observe(7, { route: 'results' });
+      assert.deepStrictEqual(histogram.snapshot(), [
+        { labels: { route: 'status' }, buckets: [1, 2, 2], count: 3, sum: 25.5 },
+        { labels: { route: 'results' }, buckets: [0, 0, 1], count: 1, sum: 7 },
+      ]);
+    });
+
+    it('Serializes in Prometheus text format', () => {
+      const histogram = new Histogram('test_histogram', 'A test histogram', [1, 5]);
+      histogram.observe(2, { route: 'sta"tus' });
+      assert.strictEqual(histogram.toPrometheus(), [
+        '# HELP test_histogram A test histogram',
+        '# TYPE test_histogram histogram',
+        'test_histogram_bucket{le="1",route="sta\\"tus"} 0',
+        'test_histogram_bucket{le="5",route="sta\\"tus"} 1',
+        'test_histogram_bucket{le="+Inf",route="sta\\"tus"} 1',
+        'test_histogram_sum{route="sta\\"tus"} 2',
+        'test_histogram_count{route="sta\\"tus"} 1',
+      ].join('\n'));
+    });
+
+    it('Can be reset', () => {
+      const histogram = new Histogram('test_histogram', 'A test histogram', [1]);
+      histogram.observe(2);
+      histogram.reset();
+      assert.deepStrictEqual(histogram.snapshot(), []);
+    });
+  });
+
+  describe('MetricsCollector', () => {
+    it('Collects events from an Instrumentation instance', () => {
+      const instrumentation = new Instrumentation();
+      const collector = new MetricsCollector().attach(instrumentation);
+      instrumentation.request({
+        route: 'results',
+        method: 'get',
+        durationMilliseconds: 20,
+        sentBytes: 0,
+        receivedBytes: 2000,
+      });
+      instrumentation.request({
+        route: 'results',
+        method: 'get',
+        durationMilliseconds: 30,
+        sentBytes: 0,
+        receivedBytes: 0,
+        status: 502,
+        error: new Error('Bad gateway'),
+      });
+      instrumentation.poll({ analysisId: 'id', results: 7, durationMilliseconds: 50 });
+      instrumentation.queue({ analysisId: 'id', durationMilliseconds: 3000 });
+      instrumentation.write({
+        sourceFilePath: 'com/diffblue/javademo/TicTacToe.java',
+        operation: 'merge',
+        results: 7,
+        readMilliseconds: 1,
+        combineMilliseconds: 10,
+        writeMilliseconds: 2,
+        bytes: 5000,
+      });
+      const requestDurations = collector.requestDuration.snapshot();
+      assert.deepStrictEqual(requestDurations.map(({ labels, sum }) => [labels.outcome, sum]), [
+        ['success', 0.02],
+        ['error', 0.03],
+      ]);
+      assert.strictEqual(collector.requestReceivedBytes.snapshot()[0].sum, 2000);
+      assert.strictEqual(collector.pollResults.snapshot()[0].sum, 7);
+      assert.strictEqual(collector.queueDuration.snapshot()[0].sum, 3);
+      assert.deepStrictEqual(collector.writeDuration.snapshot().map(({ labels }) => labels.stage), [
+        'read',
+        'combine',
+        'write',
+      ]);
+      assert.strictEqual(collector.writeBytes.snapshot()[0].sum, 5000);
+      const text = collector.toPrometheus();
+      const errorCount = 'cover_client_request_duration_seconds_count{method="get",outcome="error",route="results"} 1';
+      assert.ok(text.includes(errorCount));
+      assert.ok(text.endsWith('\n'));
+      collector.reset();
+      assert.deepStrictEqual(collector.histograms.map((histogram) => histogram.snapshot().length), [
+        0, 0, 0, 0, 0, 0, 0, 0,
+      ]);
+    });
+  });
+
+  describe('serveMetrics', () => {
+    it('Serves metrics at /metrics', async () => {
+      const collector = new MetricsCollector();
+      collector.recordPoll({ analysisId: 'id', results: 3, durationMilliseconds: 10 });
+      const server = await serveMetrics(collector, 0);
+      try {
+        const { port } = server.address() as AddressInfo;
+        const [status, body] = await fetch(port, '/metrics');
+        assert.strictEqual(status, 200);
+        assert.strictEqual(body, collector.toPrometheus());
+        const [missingStatus] = await fetch(port, '/other');
+        assert.strictEqual(missingStatus, 404);
+      } finally {
+        server.close();
+      }
+    });
+  });
+});
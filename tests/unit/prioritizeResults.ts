@@ -0,0 +1,93 @@
+// Copyright 2019 Diffblue Limited. All Rights Reserved.
+
+import prioritizeResults, { getResultPhase, ResultPrioritizer, scoreResult } from '../../src/prioritizeResults';
+import { AnalysisResult } from '../../src/types/types';
+import assert from '../../src/utils/assertExtra';
+import syntheticResults from '../../src/utils/syntheticResults';
+
+/** Create a result for a class with the given tags */
+function result(testId: string, sourceFilePath: string, tags: string[]): AnalysisResult {
+  return { ...syntheticResults(1)[0], testId: testId, sourceFilePath: sourceFilePath, tags: tags };
+}
+
+const aFile = '/com/example/A.java';
+const bFile = '/com/example/B.java';
+
+describe('prioritizeResults', () => {
+  describe('getResultPhase', () => {
+    it('Gets the phase from the phase tag', () => {
+      assert.strictEqual(getResultPhase(result('a', aFile, ['five_star', 'phase_3'])), 3);
+    });
+
+    it('Returns undefined if there is no phase tag', () => {
+      assert.strictEqual(getResultPhase(result('a', aFile, ['five_star', 'phase_x'])), undefined);
+    });
+  });
+
+  describe('scoreResult', () => {
+    it('Adds the weights of each tag, less a penalty for later phases', () => {
+      assert.strictEqual(scoreResult(result('a', aFile, ['five_star', 'no_mocking', 'unknown'])), 55);
+      assert.strictEqual(scoreResult(result('a', aFile, ['five_star', 'phase_1'])), 50);
+      assert.strictEqual(scoreResult(result('a', aFile, ['five_star', 'phase_4'])), 47);
+    });
+
+    it('Accepts custom weights', () => {
+      const options = { tagWeights: { custom: 7 }, phaseWeight: 10 };
+      assert.strictEqual(scoreResult(result('a', aFile, ['custom', 'five_star', 'phase_2'])), 49);
+      assert.strictEqual(scoreResult(result('a', aFile, ['custom', 'five_star', 'phase_2']), options), -3);
+    });
+  });
+
+  describe('prioritizeResults', () => {
+    it('Orders results by class, highest scoring first', () => {
+      const results = [
+        result('a1', aFile, ['three_star']),
+        result('b1', bFile, ['one_star']),
+        result('a2', aFile, ['two_star']),
+        result('b2', bFile, ['five_star']),
+        result('a3', aFile, ['two_star']),
+      ];
+      const prioritized = prioritizeResults(results);
+      assert.deepStrictEqual(prioritized.map(({ testId }) => testId), ['b2', 'b1', 'a1', 'a2', 'a3']);
+    });
+
+    it('Drops results below the minimum score', () => {
+      const results = [result('a1', aFile, ['one_star']), result('a2', aFile, ['two_star'])];
+      const prioritized = prioritizeResults(results, { minimumScore: 15 });
+      assert.deepStrictEqual(prioritized.map(({ testId }) => testId), ['a2']);
+    });
+  });
+
+  describe('ResultPrioritizer', () => {
+    it('Drops results once the budget for their class has been met', () => {
+      const prioritizer = new ResultPrioritizer({ classBudget: 60 });
+      const results = [
+        result('a1', aFile, ['three_star']),
+        result('a2', aFile, ['five_star']),
+        result('a3', aFile, ['one_star']),
+        result('b1', bFile, ['one_star']),
+      ];
+      const prioritized = prioritizer.select(results);
+      assert.deepStrictEqual(prioritized.map(({ testId }) => testId), ['a2', 'a1', 'b1']);
+      assert.strictEqual(prioritizer.dropped, 1);
+    });
+
+    it('Shares the budget for each class between batches', () => {
+      const prioritizer = new ResultPrioritizer({ classBudget: 60 });
+      const first = prioritizer.select([result('a1', aFile, ['five_star']), result('b1', bFile, ['one_star'])]);
+      const second = prioritizer.select([result('a2', aFile, ['two_star']), result('b2', bFile, ['two_star'])]);
+      const third = prioritizer.select([result('a3', aFile, ['one_star']), result('b3', bFile, ['two_star'])]);
+      assert.deepStrictEqual(first.map(({ testId }) => testId), ['a1', 'b1']);
+      assert.deepStrictEqual(second.map(({ testId }) => testId), ['a2', 'b2']);
+      assert.deepStrictEqual(third.map(({ testId }) => testId), ['b3']);
+      assert.strictEqual(prioritizer.dropped, 1);
+    });
+
+    it('Gets the top score of a set of results', () => {
+      const prioritizer = new ResultPrioritizer();
+      const results = [result('a1', aFile, ['two_star']), result('a2', aFile, ['four_star', 'phase_2'])];
+      assert.strictEqual(prioritizer.topScore(results), 39);
+      assert.strictEqual(prioritizer.topScore([]), -Infinity);
+    });
+  });
+});
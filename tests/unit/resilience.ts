@@ -0,0 +1,240 @@
+// Copyright 2019 Diffblue Limited. All Rights Reserved.
+
+import axios, { CancelToken } from 'axios';
+
+import { ApiError, BindingsError, BindingsErrorCode, ResilienceError, ResilienceErrorCode } from '../../src/errors';
+import resilient, {
+  CircuitBreaker,
+  CircuitState,
+  dependencies,
+  getBackoff,
+  getCircuitBreaker,
+  hedge,
+  isTransientError,
+  resetCircuitBreakers,
+} from '../../src/resilience';
+import assert from '../../src/utils/assertExtra';
+import sinonTestFactory from '../../src/utils/sinonTest';
+
+const sinonTest = sinonTestFactory();
+
+const api = 'http://localhost/api';
+const serverError = new ApiError('Bad gateway', 'requestError', 502);
+const clientError = new ApiError('Not found', 'notFound', 404);
+const circuitOpenError = new ResilienceError('Circuit open for http://localhost', ResilienceErrorCode.CIRCUIT_OPEN);
+
+describe('resilience', () => {
+  afterEach(() => resetCircuitBreakers());
+
+  describe('isTransientError', () => {
+    it('Treats server errors, rate limiting and network errors as transient', () => {
+      assert.strictEqual(isTransientError(serverError), true);
+      assert.strictEqual(isTransientError(new ApiError('Too many requests', 'requestError', 429)), true);
+      assert.strictEqual(isTransientError(new Error('socket hang up')), true);
+    });
+
+    it('Treats client errors as permanent', () => {
+      assert.strictEqual(isTransientError(clientError), false);
+      assert.strictEqual(isTransientError(new BindingsError('Missing', BindingsErrorCode.BUILD_MISSING)), false);
+      assert.strictEqual(isTransientError(circuitOpenError), false);
+      assert.strictEqual(isTransientError(new axios.Cancel('Polling stopped') as Error), false);
+    });
+  });
+
+  describe('getBackoff', () => {
+    it('Uses exponential backoff with full jitter, up to the maximum', sinonTest(async (sinon) => {
+      sinon.stub(dependencies, 'random').returns(0.5);
+      const options = { minDelayMilliseconds: 100, maxDelayMilliseconds: 1000 };
+      assert.deepStrictEqual([0, 1, 2, 3, 4].map((retry) => getBackoff(retry, options)), [50, 100, 200, 400, 500]);
+    }));
+  });
+
+  describe('CircuitBreaker', () => {
+    it('Opens after consecutive failures, then allows a single trial request', sinonTest(async (sinon) => {
+      const now = sinon.stub(dependencies, 'now').returns(1000);
+      const breaker = new CircuitBreaker({ failureThreshold: 2, resetMilliseconds: 500 });
+      breaker.recordFailure();
+      assert.strictEqual(breaker.state, CircuitState.CLOSED);
+      breaker.recordFailure();
+      assert.strictEqual(breaker.state, CircuitState.OPEN);
+      assert.strictEqual(breaker.allowRequest(), false);
+
+      now.returns(1500);
+      assert.strictEqual(breaker.state, CircuitState.HALF_OPEN);
+      assert.strictEqual(breaker.allowRequest(), true);
+      assert.strictEqual(breaker.allowRequest(), false);
+
+      breaker.recordFailure();
+      assert.strictEqual(breaker.state, CircuitState.OPEN);
+
+      now.returns(2000);
+      assert.strictEqual(breaker.allowRequest(), true);
+      breaker.recordSuccess();
+      assert.strictEqual(breaker.state, CircuitState.CLOSED);
+    }));
+
+    it('Resets the failure count after a success', () => {
+      const breaker = new CircuitBreaker({ failureThreshold: 2 });
+      breaker.recordFailure();
+      breaker.recordSuccess();
+      breaker.recordFailure();
+      assert.strictEqual(breaker.state, CircuitState.CLOSED);
+    });
+
+    it('Releases the trial request if it is canceled, without closing the circuit', sinonTest(async (sinon) => {
+      const now = sinon.stub(dependencies, 'now').returns(1000);
+      const breaker = new CircuitBreaker({ failureThreshold: 1, resetMilliseconds: 500 });
+      breaker.recordFailure();
+      now.returns(1500);
+      assert.strictEqual(breaker.allowRequest(), true);
+      breaker.recordCanceled();
+      assert.strictEqual(breaker.state, CircuitState.HALF_OPEN);
+      assert.strictEqual(breaker.allowRequest(), true);
+    }));
+
+    it('Is shared between APIs on the same server', () => {
+      const breaker = getCircuitBreaker(api, { failureThreshold: 1 });
+      assert.strictEqual(getCircuitBreaker('http://localhost/other'), breaker);
+      assert.notStrictEqual(getCircuitBreaker('http://remotehost/api'), breaker);
+      assert.strictEqual(breaker.failureThreshold, 1);
+    });
+  });
+
+  describe('hedge', () => {
+    it('Resolves with the hedged request if it completes first', sinonTest(async (sinon) => {
+      const setTimeout = sinon.stub(dependencies, 'setTimeout');
+      const send = sinon.stub();
+      send.onFirstCall().returns(new Promise(() => undefined));
+      send.onSecondCall().resolves('hedged');
+      const promise = hedge(send, 100);
+      assert.strictEqual(setTimeout.getCall(0).args[1], 100);
+      setTimeout.getCall(0).args[0]();
+      assert.strictEqual(await promise, 'hedged');
+      assert.strictEqual(send.callCount, 2);
+    }));
+
+    it('Does not hedge requests which complete before the delay', sinonTest(async (sinon) => {
+      sinon.stub(dependencies, 'setTimeout').returns('timer' as any);
+      const clearTimeout = sinon.stub(dependencies, 'clearTimeout');
+      const send = sinon.stub().resolves('response');
+      assert.strictEqual(await hedge(send, 100), 'response');
+      assert.calledOnce(send);
+      assert.calledOnceWith(clearTimeout, ['timer']);
+    }));
+
+    it('Rejects once every request has failed', sinonTest(async (sinon) => {
+      const setTimeout = sinon.stub(dependencies, 'setTimeout');
+      const send = sinon.stub();
+      let rejectFirst: (error: Error) => void = () => undefined;
+      send.onFirstCall().returns(new Promise((_, reject) => {
+        rejectFirst = reject;
+      }));
+      send.onSecondCall().rejects(clientError);
+      const promise = hedge(send, 100);
+      setTimeout.getCall(0).args[0]();
+      rejectFirst(serverError);
+      await assert.rejects(promise, serverError);
+    }));
+
+    it('Cancels the losing request once the other completes', sinonTest(async (sinon) => {
+      const setTimeout = sinon.stub(dependencies, 'setTimeout');
+      const send = sinon.stub();
+      send.onFirstCall().returns(new Promise(() => undefined));
+      send.onSecondCall().resolves('hedged');
+      const promise = hedge(send, 100);
+      setTimeout.getCall(0).args[0]();
+      assert.strictEqual(await promise, 'hedged');
+      const [[loser], [winner]] = send.args as CancelToken[][];
+      assert.ok(axios.isCancel(loser.reason));
+      assert.strictEqual(winner.reason, undefined);
+    }));
+
+    it('Cancels every request when the caller cancels', sinonTest(async (sinon) => {
+      const setTimeout = sinon.stub(dependencies, 'setTimeout');
+      const send = sinon.stub().callsFake(async (cancelToken: CancelToken) => cancelToken.promise.then((cancel) => {
+        throw cancel;
+      }));
+      const source = axios.CancelToken.source();
+      const promise = hedge(send, 100, source.token);
+      setTimeout.getCall(0).args[0]();
+      source.cancel('Polling stopped');
+      await assert.rejects(promise, (error: Error) => axios.isCancel(error) && error.message === 'Polling stopped');
+      assert.strictEqual(send.callCount, 2);
+    }));
+  });
+
+  describe('resilient', () => {
+    it('Makes the request directly without options', sinonTest(async (sinon) => {
+      const send = sinon.stub().rejects(serverError);
+      await assert.rejects(resilient(api, true, undefined, send), serverError);
+      assert.calledOnce(send);
+    }));
+
+    it('Retries transient errors until the retries are exhausted', sinonTest(async (sinon) => {
+      sinon.stub(dependencies, 'random').returns(0);
+      const send = sinon.stub().rejects(serverError);
+      await assert.rejects(resilient(api, true, { retry: { retries: 2 }}, send), serverError);
+      assert.strictEqual(send.callCount, 3);
+    }));
+
+    it('Stops retrying as soon as the request is canceled', sinonTest(async (sinon) => {
+      const source = axios.CancelToken.source();
+      sinon.stub(dependencies, 'setTimeout').callsFake(() => {
+        // Cancel during the backoff before the first retry
+        source.cancel('Polling stopped');
+        return 'timer' as any;
+      });
+      const clearTimeout = sinon.stub(dependencies, 'clearTimeout');
+      const send = sinon.stub().rejects(serverError);
+      const promise = resilient(api, true, { retry: { maxDelayMilliseconds: 10000 }}, send, source.token);
+      await assert.rejects(promise, (error: Error) => axios.isCancel(error));
+      assert.calledOnce(send);
+      assert.calledOnceWith(clearTimeout, ['timer']);
+    }));
+
+    it('Does not retry permanent errors', sinonTest(async (sinon) => {
+      const send = sinon.stub().rejects(clientError);
+      await assert.rejects(resilient(api, true, { retry: {}}, send), clientError);
+      assert.calledOnce(send);
+    }));
+
+    it('Rejects requests without making them while the circuit is open', sinonTest(async (sinon) => {
+      sinon.stub(dependencies, 'random').returns(0);
+      const send = sinon.stub().rejects(serverError);
+      const options = { retry: {}, circuitBreaker: { failureThreshold: 2 }};
+      await assert.rejectsWith(resilient(api, true, options, send), circuitOpenError);
+      assert.strictEqual(send.callCount, 2);
+      await assert.rejectsWith(resilient(api, false, options, send), circuitOpenError);
+      assert.strictEqual(send.callCount, 2);
+    }));
+
+    it('Does not count canceled requests as successes', sinonTest(async (sinon) => {
+      const send = sinon.stub();
+      send.onFirstCall().rejects(serverError);
+      send.onSecondCall().rejects(new axios.Cancel('Polling stopped'));
+      send.onThirdCall().rejects(serverError);
+      const options = { circuitBreaker: { failureThreshold: 2 }};
+      await assert.rejects(resilient(api, false, options, send), serverError);
+      await assert.rejects(resilient(api, false, options, send), (error: Error) => axios.isCancel(error));
+      await assert.rejects(resilient(api, false, options, send), serverError);
+      assert.strictEqual(getCircuitBreaker(api).state, CircuitState.OPEN);
+    }));
+
+    it('Does not count permanent errors as failures', sinonTest(async (sinon) => {
+      const send = sinon.stub().rejects(clientError);
+      const options = { circuitBreaker: { failureThreshold: 1 }};
+      await assert.rejects(resilient(api, false, options, send), clientError);
+      assert.strictEqual(getCircuitBreaker(api).state, CircuitState.CLOSED);
+    }));
+
+    it('Hedges idempotent requests', sinonTest(async (sinon) => {
+      const setTimeout = sinon.stub(dependencies, 'setTimeout');
+      const send = sinon.stub().resolves('response');
+      assert.strictEqual(await resilient(api, true, { hedge: { delayMilliseconds: 100 }}, send), 'response');
+      assert.strictEqual(await resilient(api, false, { hedge: { delayMilliseconds: 100 }}, send), 'response');
+      assert.calledOnce(setTimeout);
+      assert.ok(send.getCall(0).args[0]);
+      assert.strictEqual(send.getCall(1).args[0], undefined);
+    }));
+  });
+});
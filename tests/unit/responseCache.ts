@@ -0,0 +1,114 @@
+// Copyright 2019 Diffblue Limited. All Rights Reserved.
+
+import ResponseCache, { dependencies } from '../../src/responseCache';
+import assert from '../../src/utils/assertExtra';
+import sinonTestFactory from '../../src/utils/sinonTest';
+import TestError from '../../src/utils/TestError';
+
+const sinonTest = sinonTestFactory();
+
+const key = 'version http://localhost/api/version';
+const cacheDirectory = '/tmp/cover-client-cache';
+const cachePath = `${cacheDirectory}/f59f053c1bd3006bf2ab24e45c11717aa05f4f62946d36cdad427b66a2c176db.json`;
+
+describe('responseCache', () => {
+  it('Caches responses until they expire', sinonTest(async (sinon) => {
+    const now = sinon.stub(dependencies, 'now').returns(1000);
+    const cache = new ResponseCache({ ttlMilliseconds: 100 });
+    const fetch = sinon.stub().resolves({ notModified: false, data: { version: '1.0.0' }, etag: '"a"' });
+
+    assert.deepStrictEqual(await cache.get(key, fetch), { version: '1.0.0' });
+    now.returns(1099);
+    assert.deepStrictEqual(await cache.get(key, fetch), { version: '1.0.0' });
+    assert.calledOnceWith(fetch, [undefined]);
+  }));
+
+  it('Returns a copy of the cached data to each caller', sinonTest(async (sinon) => {
+    const cache = new ResponseCache();
+    const fetch = sinon.stub().resolves({ notModified: false, data: { phases: { a: 1 }}});
+    const first = await cache.get<{ phases: { [name: string]: number }}>(key, fetch);
+    first.phases.a = 2;
+    assert.deepStrictEqual(await cache.get(key, fetch), { phases: { a: 1 }});
+  }));
+
+  it('Coalesces concurrent requests for the same key', sinonTest(async (sinon) => {
+    const cache = new ResponseCache();
+    const fetch = sinon.stub().resolves({ notModified: false, data: { version: '1.0.0' }});
+    const responses = await Promise.all([cache.get(key, fetch), cache.get(key, fetch), cache.get('other', fetch)]);
+    assert.deepStrictEqual(responses, [{ version: '1.0.0' }, { version: '1.0.0' }, { version: '1.0.0' }]);
+    assert.strictEqual(fetch.callCount, 2);
+  }));
+
+  it('Revalidates expired responses using their ETag', sinonTest(async (sinon) => {
+    const now = sinon.stub(dependencies, 'now').returns(1000);
+    const cache = new ResponseCache({ ttlMilliseconds: 100 });
+    const fetch = sinon.stub();
+    fetch.onFirstCall().resolves({ notModified: false, data: { version: '1.0.0' }, etag: '"a"' });
+    fetch.onSecondCall().resolves({ notModified: true });
+    fetch.onThirdCall().resolves({ notModified: false, data: { version: '1.0.1' }, etag: '"b"' });
+
+    await cache.get(key, fetch);
+    now.returns(1100);
+    assert.deepStrictEqual(await cache.get(key, fetch), { version: '1.0.0' });
+    now.returns(1150);
+    assert.deepStrictEqual(await cache.get(key, fetch), { version: '1.0.0' });
+    now.returns(1200);
+    assert.deepStrictEqual(await cache.get(key, fetch), { version: '1.0.1' });
+    assert.calledWith(fetch, [[undefined], ['"a"'], ['"a"']]);
+  }));
+
+  it('Does not cache failed requests', sinonTest(async (sinon) => {
+    const cache = new ResponseCache();
+    const error = new Error('Request failed');
+    const fetch = sinon.stub();
+    fetch.onFirstCall().rejects(error);
+    fetch.onSecondCall().resolves({ notModified: false, data: { version: '1.0.0' }});
+    await assert.rejects(cache.get(key, fetch), error);
+    assert.deepStrictEqual(await cache.get(key, fetch), { version: '1.0.0' });
+  }));
+
+  it('Can be cleared', sinonTest(async (sinon) => {
+    const cache = new ResponseCache();
+    const fetch = sinon.stub().resolves({ notModified: false, data: { version: '1.0.0' }});
+    await cache.get(key, fetch);
+    cache.clear();
+    await cache.get(key, fetch);
+    assert.strictEqual(fetch.callCount, 2);
+  }));
+
+  describe('On disk', () => {
+    it('Uses unexpired responses stored on disk', sinonTest(async (sinon) => {
+      sinon.stub(dependencies, 'now').returns(1000);
+      const entry = { data: { version: '1.0.0' }, etag: '"a"', expires: 2000 };
+      const readFile = sinon.stub(dependencies, 'readFile').resolves(Buffer.from(JSON.stringify(entry)));
+      const fetch = sinon.stub();
+      const cache = new ResponseCache({ directory: cacheDirectory });
+      assert.deepStrictEqual(await cache.get(key, fetch), { version: '1.0.0' });
+      assert.deepStrictEqual(await cache.get(key, fetch), { version: '1.0.0' });
+      assert.calledOnce(readFile);
+      assert.notCalled(fetch);
+    }));
+
+    it('Revalidates expired responses stored on disk, and stores the result', sinonTest(async (sinon) => {
+      sinon.stub(dependencies, 'now').returns(1000);
+      const entry = { data: { version: '1.0.0' }, etag: '"a"', expires: 500 };
+      sinon.stub(dependencies, 'readFile').resolves(Buffer.from(JSON.stringify(entry)));
+      const mkdirp = sinon.stub(dependencies, 'mkdirp').resolves();
+      const writeFile = sinon.stub(dependencies, 'writeFile').resolves();
+      const fetch = sinon.stub().resolves({ notModified: true });
+      const cache = new ResponseCache({ ttlMilliseconds: 100, directory: cacheDirectory });
+      assert.deepStrictEqual(await cache.get(key, fetch), { version: '1.0.0' });
+      assert.calledOnceWith(fetch, ['"a"']);
+      assert.calledOnceWith(mkdirp, [cacheDirectory]);
+      assert.calledOnceWith(writeFile, [cachePath, JSON.stringify({ ...entry, expires: 1100 })]);
+    }));
+
+    it('Ignores errors reading and writing the disk cache', sinonTest(async (sinon) => {
+      sinon.stub(dependencies, 'readFile').rejects(new TestError('File not found', 'ENOENT'));
+      sinon.stub(dependencies, 'mkdirp').rejects(new TestError('Permission denied', 'EACCES'));
+      const fetch = sinon.stub().resolves({ notModified: false, data: { version: '1.0.0' }});
+      const cache = new ResponseCache({ directory: cacheDirectory });
+      assert.deepStrictEqual(await cache.get(key, fetch), { version: '1.0.0' });
+    }));
+  });
+});
@@ -0,0 +1,158 @@
+// Copyright 2019 Diffblue Limited. All Rights Reserved.
+
+import { mkdtemp, readFile } from 'fs';
+import { tmpdir } from 'os';
+import { join } from 'path';
+import { promisify } from 'util';
+import { createGzip, gunzipSync } from 'zlib';
+
+import { WriterError, WriterErrorCode } from '../../src/errors';
+import ResultsExporter, {
+  ColumnarDecoder,
+  ColumnarEncoder,
+  columnarHeader,
+  decodeColumnar,
+  dependencies,
+} from '../../src/resultsExporter';
+import assert from '../../src/utils/assertExtra';
+import sinonTestFactory from '../../src/utils/sinonTest';
+import syntheticResults from '../../src/utils/syntheticResults';
+
+const sinonTest = sinonTestFactory({ useFakeTimers: false });
+
+/** Create an empty temporary directory */
+async function createDirectory(): Promise<string> {
+  return promisify(mkdtemp)(join(tmpdir(), 'cover-client-export-test-'));
+}
+
+/** Write results to an export in batches, and read the export back */
+async function exportResults(
+  results: ReturnType<typeof syntheticResults>,
+  exporter: ResultsExporter,
+  batchSize: number,
+): Promise<Buffer> {
+  for (let index = 0; index < results.length; index += batchSize) {
+    await exporter.write(results.slice(index, index + batchSize));
+  }
+  await exporter.close();
+  return promisify(readFile)(exporter.path);
+}
+
+describe('resultsExporter', () => {
+  describe('ColumnarEncoder', () => {
+    it('Interns repeated strings once across batches', () => {
+      const results = syntheticResults(8, { classesPerPackage: 1 });
+      const encoder = new ColumnarEncoder();
+      const first = encoder.encode(results.slice(0, 4));
+      const second = encoder.encode(results.slice(4));
+      assert.strictEqual(first.count, 4);
+      assert.deepStrictEqual(first.testId, results.slice(0, 4).map((result) => result.testId));
+      assert.strictEqual(first.sourceFilePath[0], first.sourceFilePath[3]);
+      assert.strictEqual(first.strings[first.sourceFilePath[0]], results[0].sourceFilePath);
+      assert.ok(!second.strings.includes(results[4].sourceFilePath));
+      assert.ok(!second.strings.includes('org.junit.Test'));
+    });
+
+    it('Round trips results through the decoder', () => {
+      const results = syntheticResults(30);
+      const encoder = new ColumnarEncoder();
+      const decoder = new ColumnarDecoder();
+      const batches = [results.slice(0, 7), results.slice(7, 20), [], results.slice(20)];
+      const decoded = batches.map((batch) => decoder.decode(encoder.encode(batch)));
+      assert.deepStrictEqual(([] as typeof results).concat(...decoded), results);
+    });
+  });
+
+  describe('ResultsExporter', () => {
+    it('Exports results as newline delimited JSON', async () => {
+      const results = syntheticResults(25);
+      const path = join(await createDirectory(), 'results.ndjson');
+      const exporter = new ResultsExporter(path);
+      const content = (await exportResults(results, exporter, 10)).toString();
+      assert.strictEqual(exporter.format, 'ndjson');
+      assert.strictEqual(exporter.exported, 25);
+      assert.deepStrictEqual(content.trim().split('\n').map((line) => JSON.parse(line)), results);
+    });
+
+    it('Exports results in a columnar format a fraction of the size of the raw JSON', async () => {
+      const results = syntheticResults(200);
+      const path = join(await createDirectory(), 'results.columnar');
+      const content = (await exportResults(results, new ResultsExporter(path, { format: 'columnar' }), 50)).toString();
+      assert.deepStrictEqual(JSON.parse(content.split('\n')[0]), columnarHeader);
+      assert.strictEqual(content.trim().split('\n').length, 5);
+      assert.deepStrictEqual(decodeColumnar(content), results);
+      assert.ok(content.length < JSON.stringify(results).length / 2);
+    });
+
+    it('Compresses an export with gzip', async () => {
+      const results = syntheticResults(200);
+      const directory = await createDirectory();
+      const ndjson = await exportResults(results, new ResultsExporter(join(directory, 'a.gz'), { gzip: true }), 50);
+      const columnar = await exportResults(
+        results,
+        new ResultsExporter(join(directory, 'b.gz'), { format: 'columnar', gzip: true }),
+        50,
+      );
+      const ndjsonContent = gunzipSync(ndjson).toString();
+      assert.deepStrictEqual(ndjsonContent.trim().split('\n').map((line) => JSON.parse(line)), results);
+      assert.deepStrictEqual(decodeColumnar(gunzipSync(columnar).toString()), results);
+      assert.ok(ndjson.length < ndjsonContent.length / 4);
+    });
+
+    it('Writes an empty columnar export with only a header', async () => {
+      const path = join(await createDirectory(), 'empty.columnar');
+      const content = (await exportResults([], new ResultsExporter(path, { format: 'columnar' }), 1)).toString();
+      assert.deepStrictEqual(decodeColumnar(content), []);
+    });
+
+    it('Rejects if the export cannot be written', async () => {
+      const path = join(await createDirectory(), 'missing', 'results.ndjson');
+      const exporter = new ResultsExporter(path);
+      await assert.rejects(exporter.write(syntheticResults(1)), { code: 'ENOENT' });
+      await assert.rejects(exporter.close(), { code: 'ENOENT' });
+      assert.strictEqual(exporter.exported, 0);
+    });
+
+    it('Closes the file if the gzip stream fails', sinonTest(async (sinon) => {
+      const path = join(await createDirectory(), 'results.ndjson.gz');
+      const gzip = createGzip();
+      sinon.stub(dependencies, 'createGzip').returns(gzip);
+      const createWriteStream = sinon.spy(dependencies, 'createWriteStream');
+      const exporter = new ResultsExporter(path, { gzip: true });
+      const file = createWriteStream.getCall(0).returnValue;
+      const destroy = sinon.spy(file, 'destroy');
+      const error = new Error('Compression failed');
+      gzip.emit('error', error);
+      await assert.rejects(exporter.close(), error);
+      assert.calledOnce(destroy);
+    }));
+  });
+
+  describe('decodeColumnar', () => {
+    /** Check an error is a WriterError with the specified code */
+    const isWriterError = (code: WriterErrorCode) => {
+      return (error: Error) => error instanceof WriterError && error.code === code;
+    };
+    const isInvalid = isWriterError(WriterErrorCode.EXPORT_INVALID);
+
+    it('Rejects exports in an unknown format', () => {
+      assert.throws(() => decodeColumnar('{"format":"other","version":1}\n'), isInvalid);
+      assert.throws(() => decodeColumnar(''), isInvalid);
+    });
+
+    it('Rejects unsupported versions of the columnar format', () => {
+      const header = JSON.stringify({ ...columnarHeader, version: 2 });
+      assert.throws(() => decodeColumnar(`${header}\n`), isWriterError(WriterErrorCode.EXPORT_UNSUPPORTED));
+    });
+
+    it('Rejects malformed exports', () => {
+      const header = JSON.stringify(columnarHeader);
+      const batch = new ColumnarEncoder().encode(syntheticResults(2));
+      const truncated = JSON.stringify({ ...batch, testId: batch.testId.slice(1) });
+      assert.throws(() => decodeColumnar('{"format":'), isInvalid);
+      assert.throws(() => decodeColumnar(`${header}\nnot json\n`), isInvalid);
+      assert.throws(() => decodeColumnar(`${header}\n${truncated}\n`), isInvalid);
+      assert.throws(() => decodeColumnar(`${header}\nnull\n`), isInvalid);
+    });
+  });
+});
@@ -0,0 +1,102 @@
+// Copyright 2019 Diffblue Limited. All Rights Reserved.
+
+import { mkdtemp, readdir, readFile } from 'fs';
+import { groupBy } from 'lodash';
+import { tmpdir } from 'os';
+import { join } from 'path';
+import { promisify } from 'util';
+
+import ResultsStore, { defaultMaxMemoryBytes } from '../../src/resultsStore';
+import { AnalysisResult } from '../../src/types/types';
+import assert from '../../src/utils/assertExtra';
+import syntheticResults from '../../src/utils/syntheticResults';
+
+/** Create an empty temporary directory */
+async function createDirectory(): Promise<string> {
+  return promisify(mkdtemp)(join(tmpdir(), 'cover-client-store-test-'));
+}
+
+describe('resultsStore', () => {
+  it('Holds results in memory within the budget', async () => {
+    const store = new ResultsStore();
+    const results = syntheticResults(20);
+    await store.add(results.slice(0, 10));
+    await store.add(results.slice(10));
+    assert.strictEqual(store.maxMemoryBytes, defaultMaxMemoryBytes);
+    assert.strictEqual(store.size, 20);
+    assert.strictEqual(store.spilled, 0);
+    const expected = groupBy(results, 'sourceFilePath');
+    assert.deepStrictEqual(store.sourceFilePaths(), Object.keys(expected));
+    for (const [sourceFilePath, group] of Object.entries(expected)) {
+      assert.deepStrictEqual(await store.getGroup(sourceFilePath), group);
+    }
+    await store.close();
+  });
+
+  it('Spills results to disk beyond the budget, and reads them back by source file', async () => {
+    const directory = await createDirectory();
+    const store = new ResultsStore({ maxMemoryBytes: 25000, directory: directory });
+    const results = syntheticResults(100, { classesPerPackage: 3, functionsPerClass: 2 });
+    for (let index = 0; index < results.length; index += 10) {
+      await store.add(results.slice(index, index + 10));
+    }
+    assert.strictEqual(store.size, 100);
+    assert.ok(store.spilled > 0 && store.spilled < 100);
+    assert.strictEqual((await promisify(readdir)(directory)).length, 1);
+
+    const expected = groupBy(results, 'sourceFilePath');
+    assert.deepStrictEqual(store.sourceFilePaths(), Object.keys(expected));
+    for (const [sourceFilePath, group] of Object.entries(expected)) {
+      assert.deepStrictEqual(await store.getGroup(sourceFilePath), group);
+    }
+    assert.deepStrictEqual(await store.getAll(), ([] as typeof results).concat(...Object.values(expected)));
+
+    await store.close();
+    assert.strictEqual(store.size, 0);
+    assert.deepStrictEqual(store.sourceFilePaths(), []);
+    assert.deepStrictEqual(await promisify(readdir)(directory), []);
+  });
+
+  it('Spills results as returned by the API, with a numeric created time', async () => {
+    const content = await promisify(readFile)('./tests/integration/fixtures/sample-java-demo-results.json');
+    const results: AnalysisResult[] = JSON.parse(content.toString()).results;
+    assert.strictEqual(typeof results[0].createdTime, 'number');
+    const store = new ResultsStore({ maxMemoryBytes: 50000 });
+    for (let index = 0; index < results.length; index += 10) {
+      await store.add(results.slice(index, index + 10));
+    }
+    assert.ok(store.spilled > 0);
+    assert.deepStrictEqual(await store.getAll(), ([] as AnalysisResult[]).concat(
+      ...Object.values(groupBy(results, 'sourceFilePath')),
+    ));
+    await store.close();
+  });
+
+  it('Reads consistent groups while results are being spilled', async () => {
+    const store = new ResultsStore({ maxMemoryBytes: 0 });
+    const results = syntheticResults(8, { classesPerPackage: 1 });
+    const sourceFilePath = results[0].sourceFilePath;
+    const adding = store.add(results.slice(0, 4));
+    const added = store.add(results.slice(4));
+    const [during] = await Promise.all([store.getGroup(sourceFilePath), adding, added]);
+    assert.ok(during.length === 0 || during.length === 4 || during.length === 8);
+    assert.deepStrictEqual(await store.getGroup(sourceFilePath), results);
+    assert.strictEqual(store.spilled, 8);
+    await store.close();
+  });
+
+  it('Reads a group split between disk and memory in the order it was added', async () => {
+    const store = new ResultsStore({ maxMemoryBytes: 2000 });
+    const results = syntheticResults(3, { classesPerPackage: 1 });
+    await store.add(results.slice(0, 2));
+    await store.add(results.slice(2));
+    assert.strictEqual(store.spilled, 2);
+    assert.deepStrictEqual(await store.getGroup(results[0].sourceFilePath), results);
+    await store.close();
+  });
+
+  it('Returns no results for unknown source files', async () => {
+    const store = new ResultsStore();
+    assert.deepStrictEqual(await store.getGroup('Unknown.java'), []);
+  });
+});
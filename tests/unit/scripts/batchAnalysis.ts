@@ -0,0 +1,197 @@
+// Copyright 2019 Diffblue Limited. All Rights Reserved.
+
+import { createReadStream, mkdtemp, writeFile } from 'fs';
+import { tmpdir } from 'os';
+import { join } from 'path';
+import { promisify } from 'util';
+
+import Analysis from '../../../src/analysis';
+import batchAnalysis, {
+  components,
+  dependencies,
+  formatBytes,
+  formatProgress,
+  readManifest,
+  runBatch,
+} from '../../../src/scripts/batchAnalysis';
+import { AnalysisStatus } from '../../../src/types/types';
+import assert from '../../../src/utils/assertExtra';
+import { ExpectedError } from '../../../src/utils/commandLineRunner';
+import MockApiServer from '../../../src/utils/mockApiServer';
+import sinonTestFactory from '../../../src/utils/sinonTest';
+
+const sinonTest = sinonTestFactory({ useFakeTimers: false });
+
+/** Create a temporary directory containing the specified files */
+async function createFiles(files: { [name: string]: string }): Promise<string> {
+  const directory = await promisify(mkdtemp)(join(tmpdir(), 'cover-client-batch-'));
+  await Promise.all(Object.entries(files).map(async ([name, content]) => {
+    return promisify(writeFile)(join(directory, name), content);
+  }));
+  return directory;
+}
+
+const emptyReport = {
+  durationSeconds: 0,
+  completed: 0,
+  failed: 0,
+  testsWritten: 0,
+  bytesWritten: 0,
+  analyses: [],
+};
+
+describe('scripts/batchAnalysis', () => {
+  describe('formatProgress', () => {
+    it('Formats byte counts', () => {
+      assert.strictEqual(formatBytes(100), '100 B');
+      assert.strictEqual(formatBytes(1536), '1.5 KB');
+      assert.strictEqual(formatBytes(3 * 1024 * 1024), '3.0 MB');
+    });
+
+    it('Formats progress and throughput', () => {
+      const progress = {
+        elapsedMilliseconds: 4000,
+        total: 10,
+        running: 2,
+        completed: 3,
+        failed: 1,
+        testsWritten: 50,
+        bytesWritten: 8192,
+      };
+      assert.strictEqual(formatProgress(progress), [
+        '4.0s',
+        '4/10 analyses finished (1 failed)',
+        '2 running',
+        '50 tests written (12.5 tests/s)',
+        '8.0 KB written (2.0 KB/s)',
+      ].join(', '));
+    });
+  });
+
+  describe('runBatch', () => {
+    it('Runs every analysis and writes their tests', sinonTest(async (sinon) => {
+      const writeProgress = sinon.stub(dependencies, 'writeProgress');
+      const directory = await createFiles({ 'a.jar': 'a', 'b.jar': 'b', 'settings.json': '{ "phases": {} }' });
+      const server = new MockApiServer({ totalResults: 3, resultsPerSecond: 1000 });
+      const apiUrl = await server.start();
+      try {
+        const report = await runBatch([
+          { build: 'a.jar', settings: 'settings.json', outputTests: 'a-tests' },
+          { build: 'b.jar', settings: { phases: {}}, outputTests: 'b-tests' },
+        ], {
+          apiUrl: apiUrl,
+          concurrency: 1,
+          pollingInterval: 0.01,
+          progressIntervalMilliseconds: 5,
+          baseDirectory: directory,
+        });
+        assert.strictEqual(report.completed, 2);
+        assert.strictEqual(report.failed, 0);
+        assert.strictEqual(report.testsWritten, 6);
+        assert.ok(report.bytesWritten > 0);
+        assert.deepStrictEqual(report.analyses.map(({ status, results }) => [status, results]), [
+          [AnalysisStatus.COMPLETED, 3],
+          [AnalysisStatus.COMPLETED, 3],
+        ]);
+        assert.strictEqual(server.stats.analysesStarted, 2);
+        assert.ok(writeProgress.called);
+      } finally {
+        await server.stop();
+      }
+    }));
+
+    it('Records failed analyses without stopping the batch', sinonTest(async (sinon) => {
+      sinon.stub(dependencies, 'writeProgress');
+      const directory = await createFiles({ 'a.jar': 'a' });
+      const server = new MockApiServer({ errorRate: 1, errorRoutes: ['start'] });
+      const apiUrl = await server.start();
+      try {
+        const report = await runBatch([
+          { build: 'a.jar', settings: { phases: {}}, outputTests: 'a-tests' },
+          { build: 'missing.jar', settings: 'missing.json', outputTests: 'b-tests' },
+        ], {
+          apiUrl: apiUrl,
+          concurrency: 2,
+          progressIntervalMilliseconds: 1000,
+          baseDirectory: directory,
+        });
+        assert.strictEqual(report.completed, 0);
+        assert.strictEqual(report.failed, 2);
+        assert.ok(report.analyses.every(({ error }) => Boolean(error)));
+      } finally {
+        await server.stop();
+      }
+    }));
+
+    it('Closes the build files if an analysis fails before uploading them', sinonTest(async (sinon) => {
+      sinon.stub(dependencies, 'writeProgress');
+      const directory = await createFiles({ 'a.jar': 'a', 'base.jar': 'base' });
+      const build = createReadStream(join(directory, 'a.jar'));
+      const baseBuild = createReadStream(join(directory, 'base.jar'));
+      sinon.stub(dependencies, 'createReadStream')
+        .onFirstCall().returns(build)
+        .onSecondCall().returns(baseBuild);
+      const destroyBuild = sinon.spy(build, 'destroy');
+      const destroyBaseBuild = sinon.spy(baseBuild, 'destroy');
+      sinon.stub(Analysis.prototype, 'run').rejects(new Error('Upload failed'));
+      const report = await runBatch([
+        { build: 'a.jar', baseBuild: 'base.jar', settings: { phases: {}}, outputTests: 'a-tests' },
+      ], {
+        apiUrl: 'http://localhost/api',
+        concurrency: 1,
+        progressIntervalMilliseconds: 1000,
+        baseDirectory: directory,
+      });
+      assert.strictEqual(report.failed, 1);
+      assert.calledOnce(destroyBuild);
+      assert.calledOnce(destroyBaseBuild);
+    }));
+  });
+
+  describe('readManifest', () => {
+    it('Rejects manifests without a list of analyses', async () => {
+      const directory = await createFiles({ 'manifest.json': '{ "apiUrl": "http://localhost" }' });
+      await assert.rejects(readManifest(join(directory, 'manifest.json')), ExpectedError);
+    });
+
+    it('Rejects analyses without a build or output directory', async () => {
+      const directory = await createFiles({ 'manifest.json': '{ "analyses": [{ "build": "a.jar" }] }' });
+      await assert.rejects(readManifest(join(directory, 'manifest.json')), ExpectedError);
+    });
+
+    it('Rejects files which are not JSON', async () => {
+      const directory = await createFiles({ 'manifest.json': 'analyses' });
+      await assert.rejects(readManifest(join(directory, 'manifest.json')), ExpectedError);
+    });
+  });
+
+  describe('batchAnalysis', () => {
+    it('Runs the manifest with options from the command line', sinonTest(async (sinon) => {
+      const analyses = [{ build: 'a.jar', outputTests: 'tests' }];
+      const manifest = { apiUrl: 'http://manifest/api', pollingInterval: 30, analyses: analyses };
+      const directory = await createFiles({ 'manifest.json': JSON.stringify(manifest) });
+      const runBatchStub = sinon.stub(components, 'runBatch').resolves(emptyReport);
+      const output = await batchAnalysis([join(directory, 'manifest.json')], { concurrency: '8' });
+      assert.deepStrictEqual(JSON.parse(output), emptyReport);
+      assert.calledOnceWith(runBatchStub, [analyses, {
+        apiUrl: 'http://manifest/api',
+        concurrency: 8,
+        pollingInterval: 30,
+        progressIntervalMilliseconds: 5000,
+        baseDirectory: directory,
+        allowUnauthorizedHttps: false,
+      }]);
+    }));
+
+    it('Requires a manifest', async () => {
+      await assert.rejects(batchAnalysis([], {}), ExpectedError);
+    });
+
+    it('Requires an API URL', sinonTest(async (sinon) => {
+      const directory = await createFiles({ 'manifest.json': '{ "analyses": [] }' });
+      const runBatchStub = sinon.stub(components, 'runBatch').resolves(emptyReport);
+      await assert.rejects(batchAnalysis([join(directory, 'manifest.json')], {}), ExpectedError);
+      assert.notCalled(runBatchStub);
+    }));
+  });
+});
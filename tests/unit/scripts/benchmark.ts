@@ -0,0 +1,171 @@
+// Copyright 2019 Diffblue Limited. All Rights Reserved.
+
+import { dependencies as combinerDependencies } from '../../../src/combiner';
+import benchmark, {
+  Benchmark,
+  BenchmarkResult,
+  benchmarks,
+  components,
+  dependencies,
+  findRegressions,
+  removeDirectory,
+  runBenchmark,
+} from '../../../src/scripts/benchmark';
+import assert from '../../../src/utils/assertExtra';
+import { ExpectedError } from '../../../src/utils/commandLineRunner';
+import sinonTestFactory from '../../../src/utils/sinonTest';
+import syntheticResults from '../../../src/utils/syntheticResults';
+import TestError from '../../../src/utils/TestError';
+import { dependencies as writeTestsDependencies } from '../../../src/writeTests';
+
+const sinonTest = sinonTestFactory();
+
+const workingDirectory = '/tmp/cover-client-benchmark-123';
+
+const sampleBenchmarkResult: BenchmarkResult = {
+  name: 'groupResults',
+  size: 1000,
+  iterations: 2,
+  meanMilliseconds: 100,
+  minMilliseconds: 90,
+  maxMilliseconds: 110,
+  resultsPerSecond: 10000,
+};
+
+/** Create a fake `hrtime` where every timed section takes the specified number of nanoseconds */
+function fakeHrtime(nanoseconds: number) {
+  return (start?: [number, number]): [number, number] => start ? [0, nanoseconds] : [0, 0];
+}
+
+/** Create a benchmark which records the number of times its timed function was called */
+function countingBenchmark(name: string) {
+  const counter = { setups: 0, calls: 0 };
+  const countingBenchmark: Benchmark = {
+    name: name,
+    setup: async () => {
+      counter.setups += 1;
+      return () => {
+        counter.calls += 1;
+      };
+    },
+  };
+  return { benchmark: countingBenchmark, counter: counter };
+}
+
+describe('scripts/benchmark', () => {
+  describe('runBenchmark', () => {
+    it('Times each iteration of a benchmark', sinonTest(async (sinon) => {
+      sinon.stub(dependencies, 'hrtime').callsFake(fakeHrtime(5e6));
+      const { benchmark: countedBenchmark, counter } = countingBenchmark('counted');
+      const result = await runBenchmark(countedBenchmark, syntheticResults(10), 3, workingDirectory);
+      assert.deepStrictEqual(counter, { setups: 1, calls: 3 });
+      assert.deepStrictEqual(result, {
+        name: 'counted',
+        size: 10,
+        iterations: 3,
+        meanMilliseconds: 5,
+        minMilliseconds: 5,
+        maxMilliseconds: 5,
+        resultsPerSecond: 2000,
+      });
+    }));
+  });
+
+  describe('benchmarks', () => {
+    it('Can run every benchmark', sinonTest(async (sinon) => {
+      sinon.stub(combinerDependencies, 'genTestClass').returns('test-class');
+      sinon.stub(combinerDependencies, 'mergeTests').resolves('merged-test-class');
+      sinon.stub(writeTestsDependencies, 'mkdirp').resolves();
+      sinon.stub(writeTestsDependencies, 'readFile').rejects(new TestError('File not found', 'ENOENT'));
+      const writeFile = sinon.stub(writeTestsDependencies, 'writeFile').resolves();
+      const results = syntheticResults(40);
+      for (const selectedBenchmark of benchmarks) {
+        const result = await runBenchmark(selectedBenchmark, results, 1, workingDirectory);
+        assert.strictEqual(result.size, results.length);
+      }
+      assert.strictEqual(writeFile.callCount, 2);
+      assert.startsWith(writeFile.getCall(0).args[0], `${workingDirectory}/writeTests-1/`);
+    }));
+  });
+
+  describe('findRegressions', () => {
+    it('Finds benchmarks slower than the threshold', () => {
+      const slower = { ...sampleBenchmarkResult, meanMilliseconds: 120 };
+      const regressions = findRegressions([sampleBenchmarkResult], [slower], 0.1);
+      assert.strictEqual(regressions.length, 1);
+      assert.strictEqual(regressions[0].baselineMilliseconds, 100);
+      assert.strictEqual(regressions[0].meanMilliseconds, 120);
+      assert.ok(Math.abs(regressions[0].change - 0.2) < 1e-9);
+    });
+
+    it('Ignores benchmarks within the threshold, or without a baseline', () => {
+      const similar = { ...sampleBenchmarkResult, meanMilliseconds: 105 };
+      const otherSize = { ...sampleBenchmarkResult, size: 10000, meanMilliseconds: 1000 };
+      assert.deepStrictEqual(findRegressions([sampleBenchmarkResult], [similar, otherSize], 0.1), []);
+    });
+  });
+
+  describe('removeDirectory', () => {
+    it('Removes a directory recursively', sinonTest(async (sinon) => {
+      const readdir = sinon.stub(dependencies, 'readdir');
+      readdir.withArgs('/root').resolves(['file', 'dir'] as any);
+      readdir.withArgs('/root/dir').resolves([] as any);
+      const lstat = sinon.stub(dependencies, 'lstat');
+      lstat.withArgs('/root/file').resolves({ isDirectory: () => false } as any);
+      lstat.withArgs('/root/dir').resolves({ isDirectory: () => true } as any);
+      const unlink = sinon.stub(dependencies, 'unlink').resolves();
+      const rmdir = sinon.stub(dependencies, 'rmdir').resolves();
+      await removeDirectory('/root');
+      assert.calledOnceWith(unlink, ['/root/file']);
+      assert.calledWith(rmdir, [['/root/dir'], ['/root']]);
+    }));
+  });
+
+  describe('benchmark', () => {
+    it('Outputs a JSON report', sinonTest(async (sinon) => {
+      sinon.stub(dependencies, 'mkdtemp').resolves(workingDirectory);
+      const removeDirectoryStub = sinon.stub(components, 'removeDirectory').resolves();
+      const { benchmark: first, counter } = countingBenchmark('first');
+      const { benchmark: second } = countingBenchmark('second');
+      const output = await benchmark([first, second])([], { sizes: '5,10', iterations: '2', only: 'first' });
+      const report = JSON.parse(output);
+      assert.deepStrictEqual(report.benchmarks.map(({ name, size }: BenchmarkResult) => [name, size]), [
+        ['first', 5],
+        ['first', 10],
+      ]);
+      assert.deepStrictEqual(report.regressions, []);
+      assert.deepStrictEqual(counter, { setups: 2, calls: 4 });
+      assert.calledOnceWith(removeDirectoryStub, [workingDirectory]);
+    }));
+
+    it('Writes the report to a file', sinonTest(async (sinon) => {
+      sinon.stub(dependencies, 'mkdtemp').resolves(workingDirectory);
+      sinon.stub(components, 'removeDirectory').resolves();
+      const writeFile = sinon.stub(dependencies, 'writeFile').resolves();
+      const { benchmark: first } = countingBenchmark('first');
+      const message = await benchmark([first])([], { sizes: '5', output: 'report.json' });
+      assert.strictEqual(message, 'Benchmark report written to report.json');
+      assert.strictEqual(writeFile.getCall(0).args[0], 'report.json');
+    }));
+
+    it('Fails if a benchmark regresses against the baseline', sinonTest(async (sinon) => {
+      sinon.stub(dependencies, 'mkdtemp').resolves(workingDirectory);
+      sinon.stub(components, 'removeDirectory').resolves();
+      sinon.stub(dependencies, 'hrtime').callsFake(fakeHrtime(150e6));
+      const baseline = { nodeVersion: 'v12', benchmarks: [sampleBenchmarkResult], regressions: [] };
+      sinon.stub(dependencies, 'readFile').resolves(Buffer.from(JSON.stringify(baseline)));
+      const { benchmark: groupBenchmark } = countingBenchmark('groupResults');
+      await assert.rejectsWith(
+        benchmark([groupBenchmark])([], { sizes: '1000', baseline: 'baseline.json' }),
+        /groupResults \(1000 results\) is 50\.0% slower than the baseline/,
+      );
+    }));
+
+    it('Fails if no benchmarks are selected', async () => {
+      await assert.rejects(
+        benchmark(benchmarks)([], { only: 'missing' }),
+        ExpectedError,
+      );
+    });
+  });
+});
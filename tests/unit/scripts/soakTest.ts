@@ -0,0 +1,86 @@
+// Copyright 2019 Diffblue Limited. All Rights Reserved.
+
+import soakTest, { dependencies, percentiles, runSoakTest } from '../../../src/scripts/soakTest';
+import assert from '../../../src/utils/assertExtra';
+import { ExpectedError } from '../../../src/utils/commandLineRunner';
+import sinonTestFactory from '../../../src/utils/sinonTest';
+
+const sinonTest = sinonTestFactory({ useFakeTimers: false });
+
+/** Create a fake `memoryUsage` which reports the specified heap sizes in turn */
+function fakeMemoryUsage(heapSizes: number[]) {
+  let call = 0;
+  return () => {
+    const heapUsed = heapSizes[Math.min(call, heapSizes.length - 1)];
+    call += 1;
+    return { rss: 0, heapTotal: 0, heapUsed: heapUsed, external: 0 };
+  };
+}
+
+describe('scripts/soakTest', () => {
+  describe('percentiles', () => {
+    it('Calculates percentiles of a set of values', () => {
+      const values = Array.from({ length: 100 }, (_, index) => 100 - index);
+      assert.deepStrictEqual(percentiles(values), { p50: 51, p95: 96, p99: 100, max: 100 });
+    });
+
+    it('Returns zeros for no values', () => {
+      assert.deepStrictEqual(percentiles([]), { p50: 0, p95: 0, p99: 0, max: 0 });
+    });
+  });
+
+  describe('runSoakTest', () => {
+    it('Runs concurrent analyses against a mock server until the duration has elapsed', sinonTest(async (sinon) => {
+      sinon.stub(dependencies, 'memoryUsage').callsFake(fakeMemoryUsage([1000, 3000, 2000]));
+      const report = await runSoakTest({
+        analyses: 2,
+        durationSeconds: 0.05,
+        pollingInterval: 0.01,
+        sampleIntervalMilliseconds: 10,
+        server: { totalResults: 3, resultsPerSecond: 1000 },
+      });
+      assert.strictEqual(report.analyses, 2);
+      assert.ok(report.runsCompleted >= 2);
+      assert.strictEqual(report.runsFailed, 0);
+      assert.strictEqual(report.resultsReceived, report.runsCompleted * 3);
+      assert.strictEqual(report.heapUsedStartBytes, 1000);
+      assert.strictEqual(report.heapUsedPeakBytes, 3000);
+      assert.strictEqual(report.heapGrowthBytes, report.heapUsedEndBytes - 1000);
+      assert.strictEqual(report.server.analysesStarted, report.runsCompleted);
+      assert.ok(report.peakOpenConnections >= 1);
+    }));
+
+    it('Counts failed runs', async () => {
+      const report = await runSoakTest({
+        analyses: 1,
+        durationSeconds: 0.02,
+        pollingInterval: 0.01,
+        sampleIntervalMilliseconds: 10,
+        server: { errorRate: 1, errorRoutes: ['start'] },
+      });
+      assert.strictEqual(report.runsCompleted, 0);
+      assert.ok(report.runsFailed >= 1);
+      assert.strictEqual(report.resultsReceived, 0);
+    });
+  });
+
+  describe('soakTest', () => {
+    it('Outputs a JSON report', async () => {
+      const output = await soakTest([], {
+        analyses: '1',
+        duration: '0.02',
+        'polling-interval': '0.01',
+        'total-results': '2',
+        'results-per-second': '1000',
+      });
+      const report = JSON.parse(output);
+      assert.strictEqual(report.analyses, 1);
+      assert.strictEqual(report.durationSeconds, 0.02);
+      assert.strictEqual(report.resultsReceived, report.runsCompleted * 2);
+    });
+
+    it('Requires at least one analysis', async () => {
+      await assert.rejects(soakTest([], { analyses: '0' }), ExpectedError);
+    });
+  });
+});
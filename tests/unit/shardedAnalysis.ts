@@ -0,0 +1,218 @@
+// Copyright 2019 Diffblue Limited. All Rights Reserved.
+
+import { SinonSandbox } from 'sinon';
+import { PassThrough } from 'stream';
+
+import { AnalysisError, AnalysisErrorCode } from '../../src/errors';
+import ShardedAnalysis, { components, dependencies, partitionSettings } from '../../src/shardedAnalysis';
+import { AnalysisResult, AnalysisSettings, RunAnalysisOptions } from '../../src/types/types';
+import assert from '../../src/utils/assertExtra';
+import sinonTestFactory from '../../src/utils/sinonTest';
+import syntheticResults from '../../src/utils/syntheticResults';
+
+const sinonTest = sinonTestFactory();
+const sinonTestWithTimers = sinonTestFactory({ useFakeTimers: false });
+
+const files = { build: Buffer.from('build') };
+const apiUrls = ['http://server-1/api', 'http://server-2/api'];
+const settings: AnalysisSettings = {
+  phases: {},
+  entryPointsInclude: ['com.example.A', 'com.example.B', 'com.example.C', 'com.example.D'],
+};
+
+/** A fake analysis, which records the server and settings it was run with */
+interface FakeAnalysis {
+  apiUrl: string;
+  entryPoints: string[];
+  queued: boolean;
+  stopped: boolean;
+  run(
+    analysisFiles: object,
+    analysisSettings: AnalysisSettings,
+    options: RunAnalysisOptions,
+  ): Promise<AnalysisResult[]>;
+  stopPolling(): void;
+  cancel(): Promise<void>;
+  isQueued(): boolean;
+}
+
+/**
+ * Stub the Analysis constructor with fake analyses, each producing a result per partitioned entry.
+ *
+ * Analyses on servers listed in `stuckServers` stay queued until they stop polling.
+ */
+function stubAnalysis(sinon: SinonSandbox, stuckServers: string[] = []) {
+  const analyses: FakeAnalysis[] = [];
+  sinon.stub(components, 'Analysis').callsFake((apiUrl: string) => {
+    let stop: () => void = () => undefined;
+    const analysis: FakeAnalysis = {
+      apiUrl: apiUrl,
+      entryPoints: [],
+      queued: stuckServers.includes(apiUrl),
+      stopped: false,
+      run: async (_, shardSettings, options) => {
+        analysis.entryPoints = shardSettings.entryPointsInclude || [];
+        if (analysis.queued) {
+          await new Promise((resolve) => {
+            stop = resolve;
+          });
+          return [];
+        }
+        const results = analysis.entryPoints.map((entry, index) => ({
+          ...syntheticResults(1)[0],
+          testId: `${entry}-${index}`,
+        }));
+        if (options.onResults) {
+          await options.onResults(results, `${apiUrl}.java`);
+        }
+        return results;
+      },
+      stopPolling: () => {
+        analysis.stopped = true;
+        stop();
+      },
+      cancel: async () => undefined,
+      isQueued: () => analysis.queued,
+    };
+    analyses.push(analysis);
+    return analysis;
+  });
+  return analyses;
+}
+
+describe('shardedAnalysis', () => {
+  describe('partitionSettings', () => {
+    it('Deals sorted entry points round robin between shards', () => {
+      const entryPointsInclude = ['com.example.E', 'com.example.A', 'com.example.C', 'com.example.B', 'com.example.D'];
+      const partitioned = partitionSettings({ ...settings, entryPointsInclude: entryPointsInclude }, 2);
+      assert.deepStrictEqual(partitioned, [
+        { ...settings, entryPointsInclude: ['com.example.A', 'com.example.C', 'com.example.E'] },
+        { ...settings, entryPointsInclude: ['com.example.B', 'com.example.D'] },
+      ]);
+    });
+
+    it('Partitions the cover list if there are no entry points', () => {
+      const coverSettings = { phases: {}, cover: ['com.example.A', 'com.example.A', 'com.example.B'] };
+      assert.deepStrictEqual(partitionSettings(coverSettings, 3), [
+        { phases: {}, cover: ['com.example.A'] },
+        { phases: {}, cover: ['com.example.B'] },
+      ]);
+    });
+
+    it('Fails if there is nothing to partition', () => {
+      assert.throws(
+        () => partitionSettings({ phases: {}, entryPointsInclude: [] }, 2),
+        (error: AnalysisError) => error.code === AnalysisErrorCode.SHARDING_UNPARTITIONABLE,
+      );
+    });
+  });
+
+  describe('ShardedAnalysis', () => {
+    it('Requires at least one server', () => {
+      assert.throws(
+        () => new ShardedAnalysis([]),
+        (error: AnalysisError) => error.code === AnalysisErrorCode.SHARDING_NO_SERVERS,
+      );
+    });
+
+    it('Rejects files which are streams', sinonTest(async (sinon) => {
+      const analyses = stubAnalysis(sinon);
+      const shardedAnalysis = new ShardedAnalysis(apiUrls);
+      await assert.rejects(
+        shardedAnalysis.run({ ...files, baseBuild: new PassThrough() }, settings),
+        (error: AnalysisError) => error.code === AnalysisErrorCode.SHARDING_STREAM_FILES,
+      );
+      assert.strictEqual(analyses.length, 0);
+    }));
+
+    it('Runs a shard on each server and merges the results', sinonTest(async (sinon) => {
+      const analyses = stubAnalysis(sinon);
+      const writeTests = sinon.stub(components, 'writeTests').resolves([]);
+      const onResults = sinon.stub();
+      const shardedAnalysis = new ShardedAnalysis(apiUrls);
+      const results = await shardedAnalysis.run(files, settings, { outputTests: 'tests', onResults: onResults });
+
+      assert.deepStrictEqual(analyses.map(({ apiUrl }) => apiUrl), apiUrls);
+      assert.deepStrictEqual(analyses.map(({ entryPoints }) => entryPoints), [
+        ['com.example.A', 'com.example.C'],
+        ['com.example.B', 'com.example.D'],
+      ]);
+      assert.strictEqual(results.length, 4);
+      assert.deepStrictEqual(shardedAnalysis.shards.map(({ completed }) => completed), [true, true]);
+      assert.strictEqual(onResults.callCount, 2);
+      const writeOptions = {
+        concurrency: undefined,
+        filter: undefined,
+        prioritizer: undefined,
+        instrumentation: undefined,
+      };
+      assert.calledOnceWith(writeTests, ['tests', results, writeOptions]);
+    }));
+
+    it('Runs further shards as servers become free', sinonTest(async (sinon) => {
+      const analyses = stubAnalysis(sinon);
+      const results = await new ShardedAnalysis(apiUrls).run(files, settings, { shards: 4 });
+      assert.strictEqual(analyses.length, 4);
+      assert.deepStrictEqual(analyses.map(({ entryPoints }) => entryPoints), [
+        ['com.example.A'],
+        ['com.example.B'],
+        ['com.example.C'],
+        ['com.example.D'],
+      ]);
+      assert.strictEqual(results.length, 4);
+    }));
+
+    it('Moves shards which stay queued to a free server', sinonTest(async (sinon) => {
+      const now = sinon.stub(dependencies, 'now').returns(1000);
+      const analyses = stubAnalysis(sinon, [apiUrls[0]]);
+      const onResults = sinon.stub();
+      const shardedAnalysis = new ShardedAnalysis(apiUrls);
+      const run = shardedAnalysis.run(files, settings, { rebalanceAfter: 10, onResults: onResults });
+      now.returns(20000);
+      const results = await run;
+
+      assert.deepStrictEqual(analyses.map(({ apiUrl }) => apiUrl), [apiUrls[0], apiUrls[1], apiUrls[1]]);
+      assert.deepStrictEqual(analyses[2].entryPoints, analyses[0].entryPoints);
+      assert.strictEqual(analyses[0].stopped, true);
+      assert.strictEqual(results.length, 4);
+      assert.strictEqual(onResults.callCount, 2);
+      assert.deepStrictEqual(shardedAnalysis.shards.map(({ apiUrl }) => apiUrl), [apiUrls[1], apiUrls[1]]);
+    }));
+
+    it('Keeps free slots checking for queued shards until every shard completes', sinonTestWithTimers(async (sinon) => {
+      const now = sinon.stub(dependencies, 'now').returns(1000);
+      const analyses = stubAnalysis(sinon, [apiUrls[0]]);
+      const shardedAnalysis = new ShardedAnalysis(apiUrls);
+      const run = shardedAnalysis.run(files, settings, { shards: 1, rebalanceAfter: 10, pollingInterval: 0.001 });
+      await new Promise((resolve) => setTimeout(resolve, 20));
+      assert.strictEqual(analyses.length, 1);
+      assert.ok(now.callCount > 2);
+
+      now.returns(20000);
+      const results = await run;
+      assert.deepStrictEqual(analyses.map(({ apiUrl }) => apiUrl), [apiUrls[0], apiUrls[1]]);
+      assert.strictEqual(analyses[0].stopped, true);
+      assert.strictEqual(results.length, 4);
+      assert.deepStrictEqual(shardedAnalysis.shards.map(({ completed }) => completed), [true]);
+    }));
+
+    it('Stops every shard if one fails', sinonTest(async (sinon) => {
+      const analyses = stubAnalysis(sinon, [apiUrls[1]]);
+      const error = new Error('Shard failed');
+      const writeTests = sinon.stub(components, 'writeTests');
+      const onError = sinon.stub();
+      const shardedAnalysis = new ShardedAnalysis(apiUrls);
+      await shardedAnalysis.run(files, settings, {
+        outputTests: 'tests',
+        onResults: async () => {
+          throw error;
+        },
+        onError: onError,
+      });
+      assert.calledOnceWith(onError, [error]);
+      assert.strictEqual(shardedAnalysis.pollingStopped, true);
+      assert.strictEqual(analyses[1].stopped, true);
+      assert.notCalled(writeTests);
+    }));
+  });
+});
@@ -0,0 +1,101 @@
+// Copyright 2019 Diffblue Limited. All Rights Reserved.
+
+import SymbolTable, { parseFunctionName, parseSourceFilePath } from '../../src/symbolTable';
+import assert from '../../src/utils/assertExtra';
+
+const sampleResult = {
+  testId: 'id',
+  testName: 'name',
+  testedFunction: 'java::com.diffblue.javademo.TicTacToe.checkTicTacToePosition:([I)I',
+  sourceFilePath: 'com/diffblue/javademo/TicTacToe.java',
+  testBody: 'body',
+  imports: ['import'],
+  staticImports: ['static import'],
+  classAnnotations: ['class annotation'],
+  classRules: ['class rule'],
+  tags: ['tag'],
+  createdTime: 'created',
+  coveredLines: ['com.diffblue.javademo.TicTacToe.checkTicTacToePosition:1-2,4-5'],
+};
+
+describe('symbolTable', () => {
+  describe('parseFunctionName', () => {
+    it('Parses a prefixed function name with a descriptor', () => {
+      assert.deepStrictEqual(parseFunctionName(sampleResult.testedFunction), {
+        packageName: 'com.diffblue.javademo',
+        className: 'TicTacToe',
+        methodName: 'checkTicTacToePosition',
+        signature: '([I)I',
+      });
+    });
+
+    it('Parses a function name without a prefix or descriptor', () => {
+      assert.deepStrictEqual(parseFunctionName('com.diffblue.javademo.TicTacToe.<init>'), {
+        packageName: 'com.diffblue.javademo',
+        className: 'TicTacToe',
+        methodName: '<init>',
+        signature: '',
+      });
+    });
+
+    it('Parses a descriptor containing class names', () => {
+      const functionName = 'java::com.diffblue.javademo.UserAccess.loginUser:(Ljava/lang/String;)Z';
+      assert.deepStrictEqual(parseFunctionName(functionName), {
+        packageName: 'com.diffblue.javademo',
+        className: 'UserAccess',
+        methodName: 'loginUser',
+        signature: '(Ljava/lang/String;)Z',
+      });
+    });
+
+    it('Parses a function in the default package', () => {
+      assert.deepStrictEqual(parseFunctionName('TicTacToe.check'), {
+        packageName: '',
+        className: 'TicTacToe',
+        methodName: 'check',
+        signature: '',
+      });
+    });
+  });
+
+  describe('parseSourceFilePath', () => {
+    it('Parses a source file path', () => {
+      assert.deepStrictEqual(parseSourceFilePath(sampleResult.sourceFilePath), {
+        directory: 'com/diffblue/javademo',
+        className: 'TicTacToe',
+      });
+    });
+  });
+
+  describe('SymbolTable', () => {
+    it('Parses each distinct function name once', () => {
+      const symbols = new SymbolTable();
+      const first = symbols.getFunction(sampleResult.testedFunction);
+      const second = symbols.getFunction(sampleResult.testedFunction);
+      assert.strictEqual(first, second);
+      assert.strictEqual(symbols.functionCount, 1);
+      assert.ok(Object.isFrozen(first));
+    });
+
+    it('Parses each distinct source file path once', () => {
+      const symbols = new SymbolTable();
+      const first = symbols.getSourceFile(sampleResult.sourceFilePath);
+      const second = symbols.getSourceFile(sampleResult.sourceFilePath);
+      const other = symbols.getSourceFile('com/diffblue/javademo/Search.java');
+      assert.strictEqual(first, second);
+      assert.notStrictEqual(first, other);
+      assert.strictEqual(symbols.sourceFileCount, 2);
+    });
+
+    it('Shares symbols between results', () => {
+      const symbols = new SymbolTable();
+      const otherResult = { ...sampleResult, testId: 'other-id' };
+      const resultSymbols = symbols.getResult(sampleResult);
+      const otherResultSymbols = symbols.getResult(otherResult);
+      assert.strictEqual(symbols.getResult(sampleResult), resultSymbols);
+      assert.notStrictEqual(otherResultSymbols, resultSymbols);
+      assert.strictEqual(otherResultSymbols.testedFunction, resultSymbols.testedFunction);
+      assert.strictEqual(otherResultSymbols.sourceFile, resultSymbols.sourceFile);
+    });
+  });
+});
@@ -0,0 +1,153 @@
+// Copyright 2019 Diffblue Limited. All Rights Reserved.
+
+import {
+  cancelAnalysis,
+  getAllAnalysisResults,
+  getAnalysisResults,
+  getAnalysisStatus,
+  getApiVersion,
+  getDefaultSettings,
+  startAnalysis,
+} from '../../../src/bindings';
+import { ApiError } from '../../../src/errors';
+import { AnalysisStatus } from '../../../src/types/types';
+import assert from '../../../src/utils/assertExtra';
+import MockApiServer, { dependencies, matchRoute } from '../../../src/utils/mockApiServer';
+import sinonTestFactory from '../../../src/utils/sinonTest';
+
+const sinonTest = sinonTestFactory({ useFakeTimers: false });
+
+const build = Buffer.from('build');
+
+/** Start a mock server, run a test against it, and stop it again */
+async function withServer(server: MockApiServer, test: (api: string) => Promise<void>) {
+  const api = await server.start();
+  try {
+    await test(api);
+  } finally {
+    await server.stop();
+  }
+}
+
+describe('utils/mockApiServer', () => {
+  describe('matchRoute', () => {
+    it('Matches each API route', () => {
+      assert.deepStrictEqual(matchRoute('GET', '/version'), { route: 'version' });
+      assert.deepStrictEqual(matchRoute('GET', '/default-settings'), { route: 'defaultSettings' });
+      assert.deepStrictEqual(matchRoute('POST', '/analysis'), { route: 'start' });
+      assert.deepStrictEqual(matchRoute('GET', '/analysis/abc'), { route: 'results', id: 'abc' });
+      assert.deepStrictEqual(matchRoute('GET', '/analysis/abc/status'), { route: 'status', id: 'abc' });
+      assert.deepStrictEqual(matchRoute('POST', '/analysis/abc/cancel'), { route: 'cancel', id: 'abc' });
+    });
+
+    it('Does not match unknown routes or methods', () => {
+      assert.strictEqual(matchRoute('POST', '/version'), undefined);
+      assert.strictEqual(matchRoute('GET', '/analysis'), undefined);
+      assert.strictEqual(matchRoute('GET', '/analysis/abc/other'), undefined);
+      assert.strictEqual(matchRoute('GET', '/other'), undefined);
+    });
+  });
+
+  describe('MockApiServer', () => {
+    it('Serves the version and default settings', async () => {
+      const server = new MockApiServer();
+      await withServer(server, async (api) => {
+        assert.deepStrictEqual(await getApiVersion(api), { version: 'mock' });
+        assert.ok((await getDefaultSettings(api)).phases);
+      });
+      assert.deepStrictEqual(server.stats.requests, { version: 1, defaultSettings: 1 });
+    });
+
+    it('Produces results at the configured rate', sinonTest(async (sinon) => {
+      const now = sinon.stub(dependencies, 'now').returns(10000);
+      const server = new MockApiServer({ totalResults: 10, resultsPerSecond: 4, queueMilliseconds: 1000 });
+      await withServer(server, async (api) => {
+        const { id } = await startAnalysis(api, { build: build }, {});
+        assert.strictEqual((await getAnalysisStatus(api, id)).status, AnalysisStatus.QUEUED);
+
+        now.returns(12000);
+        const first = await getAnalysisResults(api, id);
+        assert.strictEqual(first.status.status, AnalysisStatus.RUNNING);
+        assert.strictEqual(first.cursor, 4);
+        const createdTimes = first.results.map(({ createdTime }) => createdTime);
+        assert.deepStrictEqual(createdTimes, ['11250', '11500', '11750', '12000']);
+
+        now.returns(20000);
+        const second = await getAnalysisResults(api, id, first.cursor);
+        assert.strictEqual(second.status.status, AnalysisStatus.COMPLETED);
+        assert.strictEqual(second.cursor, 10);
+        assert.strictEqual(second.results.length, 6);
+      });
+      assert.strictEqual(server.stats.analysesStarted, 1);
+      assert.ok(server.stats.bytesReceived > build.length);
+      assert.ok(server.stats.bytesSent > 0);
+    }));
+
+    it('Limits the size of each page of results, and reports the total', sinonTest(async (sinon) => {
+      const now = sinon.stub(dependencies, 'now').returns(10000);
+      const server = new MockApiServer({ totalResults: 10, resultsPerSecond: 1 });
+      await withServer(server, async (api) => {
+        const { id } = await startAnalysis(api, { build: build }, {});
+        now.returns(20000);
+        const page = await getAnalysisResults(api, id, 2, undefined, 3);
+        assert.strictEqual(page.cursor, 5);
+        assert.strictEqual(page.results.length, 3);
+        assert.strictEqual(page.total, 10);
+        const all = await getAllAnalysisResults(api, id, undefined, { pageSize: 3 });
+        assert.strictEqual(all.cursor, 10);
+        assert.strictEqual(all.results.length, 10);
+      });
+    }));
+
+    it('Stops producing results once canceled', sinonTest(async (sinon) => {
+      const now = sinon.stub(dependencies, 'now').returns(10000);
+      const server = new MockApiServer({ totalResults: 10, resultsPerSecond: 1 });
+      await withServer(server, async (api) => {
+        const { id } = await startAnalysis(api, { build: build }, {});
+        now.returns(13000);
+        const { status } = await cancelAnalysis(api, id);
+        assert.strictEqual(status.status, AnalysisStatus.CANCELED);
+
+        now.returns(20000);
+        const { cursor, results } = await getAnalysisResults(api, id);
+        assert.strictEqual(cursor, 3);
+        assert.strictEqual(results.length, 3);
+      });
+    }));
+
+    it('Pads result bodies to the configured size', sinonTest(async (sinon) => {
+      const now = sinon.stub(dependencies, 'now').returns(10000);
+      const server = new MockApiServer({ totalResults: 2, resultBodyBytes: 2000 });
+      await withServer(server, async (api) => {
+        const { id } = await startAnalysis(api, { build: build }, {});
+        now.returns(20000);
+        const { results } = await getAnalysisResults(api, id);
+        assert.strictEqual(results.length, 2);
+        results.forEach(({ testBody }) => assert.ok(testBody.length >= 2000));
+      });
+    }));
+
+    it('Responds with a 404 for unknown analyses', async () => {
+      await withServer(new MockApiServer(), async (api) => {
+        await assert.rejectsWith(
+          getAnalysisStatus(api, 'missing'),
+          new ApiError('Analysis missing not found', 'notFound', 404),
+        );
+      });
+    });
+
+    it('Injects errors into the configured routes', sinonTest(async (sinon) => {
+      sinon.stub(dependencies, 'random').returns(0.1);
+      const server = new MockApiServer({ errorRate: 0.5, errorRoutes: ['version'] });
+      await withServer(server, async (api) => {
+        await assert.rejectsWith(getApiVersion(api), new ApiError('Injected error', 'badGateway', 502));
+        assert.ok((await getDefaultSettings(api)).phases);
+      });
+      assert.strictEqual(server.stats.injectedErrors, 1);
+    }));
+
+    it('Can be stopped before it is started', async () => {
+      await new MockApiServer().stop();
+    });
+  });
+});
@@ -0,0 +1,34 @@
+// Copyright 2019 Diffblue Limited. All Rights Reserved.
+
+import assert from '../../../src/utils/assertExtra';
+import { ExpectedError } from '../../../src/utils/commandLineRunner';
+import { parseListOption, parseNumberOption } from '../../../src/utils/parseOptions';
+
+describe('utils/parseOptions', () => {
+  describe('parseListOption', () => {
+    it('Parses comma separated lists, ignoring empty values', () => {
+      assert.deepStrictEqual(parseListOption('a, b,,c'), ['a', 'b', 'c']);
+    });
+
+    it('Returns undefined if the option is missing or has no value', () => {
+      assert.strictEqual(parseListOption(true), undefined);
+      assert.strictEqual(parseListOption(undefined), undefined);
+    });
+  });
+
+  describe('parseNumberOption', () => {
+    it('Parses non-negative numbers', () => {
+      assert.strictEqual(parseNumberOption('iterations', '3', 5), 3);
+      assert.strictEqual(parseNumberOption('error-rate', '0', 5), 0);
+    });
+
+    it('Returns the default value if the option is missing', () => {
+      assert.strictEqual(parseNumberOption('iterations', undefined, 5), 5);
+    });
+
+    it('Throws if the option is not a non-negative number', () => {
+      assert.throws(() => parseNumberOption('iterations', 'many', 5), ExpectedError);
+      assert.throws(() => parseNumberOption('error-rate', '-1', 5), ExpectedError);
+    });
+  });
+});
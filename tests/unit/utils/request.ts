@@ -1,6 +1,6 @@
 // Copyright 2019 Diffblue Limited. All Rights Reserved.
 
-import axios, { AxiosError, AxiosResponse } from 'axios';
+import axios, { AxiosError, AxiosRequestConfig, AxiosResponse } from 'axios';
 
 import { ApiError } from '../../../src/errors';
 import assert, { errorEquals } from '../../../src/utils/assertExtra';
@@ -79,5 +79,17 @@ describe('utils/request', () => {
       };
       assert.deepStrictEqual(actualResponse, expectedResponse);
     }));
+
+    it('Resolves the whole response of an axios GET request, accepting Not Modified', sinonTest(async (sinon) => {
+      const testUrl = 'http://localhost/api/version';
+      const response = { ...templateResponse, status: 304, data: '' };
+      const get = sinon.stub(axios, 'get').resolves(response);
+
+      assert.strictEqual(await request.getResponse(testUrl, { headers: { 'If-None-Match': '"abc"' }}), response);
+      const { headers, validateStatus } = get.getCall(0).args[1] as AxiosRequestConfig;
+      const accepts = validateStatus as (status: number) => boolean;
+      assert.deepStrictEqual(headers, { 'If-None-Match': '"abc"' });
+      assert.deepStrictEqual([200, 304, 404].map(accepts), [true, true, false]);
+    }));
   });
 });
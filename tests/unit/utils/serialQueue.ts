@@ -0,0 +1,36 @@
+// Copyright 2019 Diffblue Limited. All Rights Reserved.
+
+import assert from '../../../src/utils/assertExtra';
+import SerialQueue from '../../../src/utils/serialQueue';
+
+describe('utils/serialQueue', () => {
+  it('Runs each operation once every earlier operation has settled', async () => {
+    const queue = new SerialQueue();
+    const events: string[] = [];
+    let release: () => void = () => undefined;
+    const first = queue.enqueue(async () => {
+      events.push('first started');
+      await new Promise<void>((resolve) => { release = resolve; });
+      events.push('first finished');
+    });
+    const second = queue.enqueue(async () => {
+      events.push('second started');
+    });
+    await Promise.resolve();
+    assert.deepStrictEqual(events, ['first started']);
+    release();
+    await Promise.all([first, second]);
+    assert.deepStrictEqual(events, ['first started', 'first finished', 'second started']);
+  });
+
+  it('Rejects with the error of a failed operation, and still runs later operations', async () => {
+    const queue = new SerialQueue();
+    const error = new Error('Operation failed');
+    const failed = queue.enqueue(async () => { throw error; });
+    let ran = false;
+    const later = queue.enqueue(async () => { ran = true; });
+    await assert.rejects(failed, error);
+    await later;
+    assert.ok(ran);
+  });
+});
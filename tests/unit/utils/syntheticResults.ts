@@ -0,0 +1,38 @@
+// Copyright 2019 Diffblue Limited. All Rights Reserved.
+
+import { groupResults } from '../../../src/combiner';
+import SymbolTable from '../../../src/symbolTable';
+import assert from '../../../src/utils/assertExtra';
+import syntheticResults from '../../../src/utils/syntheticResults';
+
+describe('utils/syntheticResults', () => {
+  it('Generates the requested number of results', () => {
+    assert.strictEqual(syntheticResults(0).length, 0);
+    assert.strictEqual(syntheticResults(25).length, 25);
+  });
+
+  it('Generates deterministic results', () => {
+    assert.deepStrictEqual(syntheticResults(10), syntheticResults(10));
+  });
+
+  it('Generates results with unique test ids', () => {
+    const results = syntheticResults(100);
+    assert.strictEqual(new Set(results.map(({ testId }) => testId)).size, results.length);
+  });
+
+  it('Groups results into classes according to the options', () => {
+    const results = syntheticResults(24, { classesPerPackage: 2, functionsPerClass: 3, testsPerFunction: 2 });
+    const groups = groupResults(results);
+    assert.strictEqual(Object.keys(groups).length, 4);
+    Object.values(groups).forEach((group) => assert.strictEqual(group.length, 6));
+  });
+
+  it('Generates tested functions consistent with source file paths', () => {
+    const symbols = new SymbolTable();
+    syntheticResults(100).forEach((result) => {
+      const { sourceFile, testedFunction } = symbols.getResult(result);
+      assert.strictEqual(sourceFile.className, testedFunction.className);
+      assert.strictEqual(sourceFile.directory, testedFunction.packageName.replace(/\./g, '/'));
+    });
+  });
+});
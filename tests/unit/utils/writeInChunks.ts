@@ -0,0 +1,46 @@
+// Copyright 2019 Diffblue Limited. All Rights Reserved.
+
+import { mkdtemp, readFile } from 'fs';
+import { tmpdir } from 'os';
+import { join } from 'path';
+import { promisify } from 'util';
+
+import assert from '../../../src/utils/assertExtra';
+import sinonTestFactory from '../../../src/utils/sinonTest';
+import writeInChunks, { dependencies } from '../../../src/utils/writeInChunks';
+
+const sinonTest = sinonTestFactory({ useFakeTimers: false });
+
+/** Create a temporary file path */
+async function temporaryPath(): Promise<string> {
+  return join(await promisify(mkdtemp)(join(tmpdir(), 'cover-client-write-')), 'Test.java');
+}
+
+describe('utils/writeInChunks', () => {
+  it('Writes a string to a file a chunk at a time', sinonTest(async (sinon) => {
+    const createWriteStream = sinon.spy(dependencies, 'createWriteStream');
+    const filePath = await temporaryPath();
+    const content = 'public class Test {}\n'.repeat(1000);
+    await writeInChunks(filePath, content, 100);
+    assert.strictEqual((await promisify(readFile)(filePath)).toString(), content);
+    assert.calledOnceWith(createWriteStream, [filePath]);
+  }));
+
+  it('Does not split surrogate pairs between chunks', async () => {
+    const filePath = await temporaryPath();
+    const content = 'a\ud83d\ude00b\ud83d\ude00\ud83d\ude00c'.repeat(100);
+    await writeInChunks(filePath, content, 2);
+    assert.strictEqual((await promisify(readFile)(filePath)).toString(), content);
+  });
+
+  it('Writes an empty string', async () => {
+    const filePath = await temporaryPath();
+    await writeInChunks(filePath, '');
+    assert.strictEqual((await promisify(readFile)(filePath)).toString(), '');
+  });
+
+  it('Rejects if the file cannot be written', async () => {
+    const filePath = join(await temporaryPath(), 'missing-directory', 'Test.java');
+    await assert.rejects(writeInChunks(filePath, 'content'), /ENOENT/);
+  });
+});
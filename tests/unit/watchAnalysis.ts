@@ -0,0 +1,337 @@
+// Copyright 2019 Diffblue Limited. All Rights Reserved.
+
+import { SinonSandbox, SinonStub } from 'sinon';
+
+import { AnalysisError, AnalysisErrorCode } from '../../src/errors';
+import { AnalysisStatus } from '../../src/types/types';
+import assert from '../../src/utils/assertExtra';
+import sinonTestFactory from '../../src/utils/sinonTest';
+import WatchAnalysis, {
+  components,
+  dependencies,
+  getChangedClasses,
+  getClassName,
+  readJarEntries,
+} from '../../src/watchAnalysis';
+
+const sinonTest = sinonTestFactory({ useFakeTimers: false });
+
+const apiUrl = 'http://localhost/api';
+const buildPath = '/builds/app.jar';
+const outputTests = '/project/src/test/java';
+const defaultSettings = { phases: { default: { timeout: 60 }}, cover: ['com.example'] };
+
+/**
+ * Create the central directory of a JAR, with an entry for each name and CRC.
+ *
+ * Entry data and local headers are omitted, since only the central directory is read.
+ */
+function createJar(entries: { [name: string]: number }): Buffer {
+  const headers = Object.entries(entries).map(([name, crc]) => {
+    const header = Buffer.alloc(46);
+    header.writeUInt32LE(0x02014b50, 0);
+    header.writeUInt32LE(crc, 16);
+    header.writeUInt32LE(crc * 2, 20);
+    header.writeUInt32LE(crc * 3, 24);
+    header.writeUInt16LE(Buffer.byteLength(name), 28);
+    return Buffer.concat([header, Buffer.from(name)]);
+  });
+  const centralDirectory = Buffer.concat(headers);
+  const end = Buffer.alloc(22);
+  end.writeUInt32LE(0x06054b50, 0);
+  end.writeUInt16LE(headers.length, 8);
+  end.writeUInt16LE(headers.length, 10);
+  end.writeUInt32LE(centralDirectory.length, 12);
+  end.writeUInt32LE(4, 16);
+  return Buffer.concat([Buffer.from('data'), centralDirectory, end]);
+}
+
+const firstBuild = createJar({
+  'META-INF/MANIFEST.MF': 1,
+  'com/example/A.class': 2,
+  'com/example/B.class': 3,
+  'com/example/B$Inner.class': 4,
+});
+const secondBuild = createJar({
+  'META-INF/MANIFEST.MF': 10,
+  'com/example/A.class': 2,
+  'com/example/B.class': 3,
+  'com/example/B$Inner.class': 40,
+  'com/example/C.class': 5,
+});
+
+/** A fake analysis, which completes with a single result unless it is canceled first */
+interface FakeAnalysis {
+  status: AnalysisStatus;
+  run: SinonStub;
+  stopPolling: SinonStub;
+  cancel: SinonStub;
+  getDefaultSettings: SinonStub;
+  isCompleted(): boolean;
+  isInProgress(): boolean;
+}
+
+/** Stub the Analysis constructor with fake analyses, which complete when `complete` is called */
+function stubAnalysis(sinon: SinonSandbox) {
+  const analyses: FakeAnalysis[] = [];
+  const completions: Array<() => void> = [];
+  sinon.stub(components, 'Analysis').callsFake(() => {
+    const analysis: FakeAnalysis = {
+      status: AnalysisStatus.RUNNING,
+      run: sinon.stub().callsFake(async () => new Promise((resolve) => {
+        completions.push(() => {
+          if (analysis.status === AnalysisStatus.RUNNING) {
+            analysis.status = AnalysisStatus.COMPLETED;
+          }
+          resolve([{ testId: 'test-id' }]);
+        });
+      })),
+      stopPolling: sinon.stub(),
+      cancel: sinon.stub().callsFake(async () => {
+        analysis.status = AnalysisStatus.CANCELED;
+      }),
+      getDefaultSettings: sinon.stub().resolves(defaultSettings),
+      isCompleted: () => analysis.status === AnalysisStatus.COMPLETED,
+      isInProgress: () => analysis.status === AnalysisStatus.RUNNING,
+    };
+    analyses.push(analysis);
+    return analysis;
+  });
+  return {
+    analyses: analyses,
+    complete: async () => {
+      // Let the analysis reach `run` before completing it
+      await new Promise((resolve) => setImmediate(resolve));
+      const completion = completions.shift();
+      if (completion) {
+        completion();
+      }
+    },
+  };
+}
+
+/** Let pending promise callbacks run */
+async function flush(): Promise<void> {
+  for (let i = 0; i < 5; i++) {
+    await new Promise((resolve) => setImmediate(resolve));
+  }
+}
+
+describe('watchAnalysis', () => {
+  describe('readJarEntries', () => {
+    it('Reads the CRC and size of every entry from the central directory', () => {
+      const entries = readJarEntries(createJar({ 'com/example/A.class': 7, 'README.md': 8 }));
+      assert.deepStrictEqual([...entries], [
+        ['com/example/A.class', '7:21'],
+        ['README.md', '8:24'],
+      ]);
+    });
+
+    it('Rejects files which are not JARs', () => {
+      assert.throws(
+        () => readJarEntries(Buffer.from('not a jar file, but long enough to have an end record')),
+        (error: AnalysisError) => error.code === AnalysisErrorCode.WATCH_INVALID_BUILD,
+      );
+    });
+
+    it('Rejects JARs with a corrupt central directory', () => {
+      const jar = createJar({ 'com/example/A.class': 7 });
+      jar.writeUInt32LE(0, 4);
+      assert.throws(
+        () => readJarEntries(jar),
+        (error: AnalysisError) => error.code === AnalysisErrorCode.WATCH_INVALID_BUILD,
+      );
+    });
+  });
+
+  describe('getClassName', () => {
+    it('Gets the top level class of class files', () => {
+      assert.strictEqual(getClassName('com/example/A.class'), 'com.example.A');
+      assert.strictEqual(getClassName('com/example/A$Inner$1.class'), 'com.example.A');
+      assert.strictEqual(getClassName('A.class'), 'A');
+    });
+
+    it('Ignores other entries', () => {
+      assert.strictEqual(getClassName('com/example/'), undefined);
+      assert.strictEqual(getClassName('com/example/a.properties'), undefined);
+      assert.strictEqual(getClassName('module-info.class'), undefined);
+      assert.strictEqual(getClassName('META-INF/versions/9/com/example/A.class'), undefined);
+    });
+  });
+
+  describe('getChangedClasses', () => {
+    it('Lists added and changed classes once each, ignoring other entries', () => {
+      const changed = getChangedClasses(readJarEntries(firstBuild), readJarEntries(secondBuild));
+      assert.deepStrictEqual(changed, ['com.example.B', 'com.example.C']);
+    });
+
+    it('Lists no classes when only removed', () => {
+      const changed = getChangedClasses(readJarEntries(secondBuild), readJarEntries(firstBuild));
+      assert.deepStrictEqual(changed, []);
+    });
+  });
+
+  describe('WatchAnalysis', () => {
+    it('Analyzes only the changed classes, with the previous build as the base build', sinonTest(async (sinon) => {
+      sinon.stub(dependencies, 'readFile')
+        .onFirstCall().resolves(firstBuild)
+        .onSecondCall().resolves(secondBuild);
+      const { analyses, complete } = stubAnalysis(sinon);
+      const writeTests = sinon.stub(components, 'writeTests').resolves(['B.java', 'C.java']);
+      const onChange = sinon.stub();
+      const onTestsWritten = sinon.stub();
+      const watcher = new WatchAnalysis(apiUrl, buildPath, {
+        outputTests: outputTests,
+        settings: { phases: {}, cover: ['com.example'] },
+        pollingInterval: 10,
+        onChange: onChange,
+        onTestsWritten: onTestsWritten,
+      });
+      sinon.stub(dependencies, 'watchFile');
+      await watcher.start();
+
+      const analyzed = watcher.analyzeChanges();
+      await complete();
+      assert.deepStrictEqual(await analyzed, ['com.example.B', 'com.example.C']);
+
+      assert.calledOnceWith(onChange, [['com.example.B', 'com.example.C']]);
+      assert.calledOnceWith(analyses[0].run, [
+        { build: secondBuild, baseBuild: firstBuild },
+        { phases: {}, cover: ['com.example'], entryPointsInclude: ['com.example.B', 'com.example.C'] },
+        { pollingInterval: 10 },
+      ]);
+      assert.calledOnceWith(writeTests, [outputTests, [{ testId: 'test-id' }], {
+        concurrency: undefined,
+        filter: undefined,
+        instrumentation: undefined,
+      }]);
+      assert.calledOnceWith(onTestsWritten, [['B.java', 'C.java']]);
+      assert.strictEqual(watcher.baseline && watcher.baseline.jar, secondBuild);
+      assert.strictEqual(watcher.analysis, undefined);
+    }));
+
+    it('Limits the default settings to the changed classes when no settings are given', sinonTest(async (sinon) => {
+      sinon.stub(dependencies, 'readFile')
+        .onFirstCall().resolves(firstBuild)
+        .onSecondCall().resolves(secondBuild);
+      const { analyses, complete } = stubAnalysis(sinon);
+      sinon.stub(components, 'writeTests').resolves([]);
+      const watcher = new WatchAnalysis(apiUrl, buildPath, { outputTests: outputTests });
+      await watcher.analyzeChanges();
+
+      const analyzed = watcher.analyzeChanges();
+      await complete();
+      await analyzed;
+      assert.calledOnce(analyses[0].getDefaultSettings);
+      assert.calledOnceStartingWith(analyses[0].run, [
+        { build: secondBuild, baseBuild: firstBuild },
+        { ...defaultSettings, entryPointsInclude: ['com.example.B', 'com.example.C'] },
+      ]);
+    }));
+
+    it('Does not start an analysis when no classes have changed', sinonTest(async (sinon) => {
+      sinon.stub(dependencies, 'readFile').resolves(firstBuild);
+      const analysis = sinon.stub(components, 'Analysis');
+      const watcher = new WatchAnalysis(apiUrl, buildPath, { outputTests: outputTests });
+      assert.deepStrictEqual(await watcher.analyzeChanges(), []);
+      assert.deepStrictEqual(await watcher.analyzeChanges(), []);
+      assert.notCalled(analysis);
+    }));
+
+    it('Keeps the baseline when an analysis does not complete', sinonTest(async (sinon) => {
+      sinon.stub(dependencies, 'readFile')
+        .onFirstCall().resolves(firstBuild)
+        .onSecondCall().resolves(secondBuild);
+      const { analyses, complete } = stubAnalysis(sinon);
+      const writeTests = sinon.stub(components, 'writeTests');
+      const watcher = new WatchAnalysis(apiUrl, buildPath, { outputTests: outputTests });
+      await watcher.analyzeChanges();
+
+      const analyzed = watcher.analyzeChanges();
+      await flush();
+      analyses[0].status = AnalysisStatus.ERRORED;
+      await complete();
+      await assert.rejects(analyzed, (error: AnalysisError) => error.code === AnalysisErrorCode.RUN_ERRORED);
+      assert.notCalled(writeTests);
+      assert.strictEqual(watcher.baseline && watcher.baseline.jar, firstBuild);
+    }));
+
+    it('Analyzes the build once it has stopped changing, and reports errors', sinonTest(async (sinon) => {
+      const readFile = sinon.stub(dependencies, 'readFile').resolves(firstBuild);
+      const watchFile: SinonStub = sinon.stub(dependencies, 'watchFile');
+      const setTimeout = (sinon.stub(dependencies, 'setTimeout') as SinonStub).returns(1);
+      const clearTimeout = sinon.stub(dependencies, 'clearTimeout');
+      const onError = sinon.stub();
+      const watcher = new WatchAnalysis(apiUrl, buildPath, { outputTests: outputTests, onError: onError });
+      await watcher.start();
+      assert.calledOnceStartingWith(watchFile, [buildPath, { interval: 1000 }]);
+
+      const listener = watchFile.firstCall.args[2];
+      listener({ mtimeMs: 1, size: 1 }, { mtimeMs: 1, size: 1 });
+      assert.notCalled(setTimeout);
+      listener({ mtimeMs: 2, size: 1 }, { mtimeMs: 1, size: 1 });
+      listener({ mtimeMs: 3, size: 1 }, { mtimeMs: 2, size: 1 });
+      assert.calledOnce(clearTimeout);
+      assert.strictEqual(setTimeout.callCount, 2);
+      assert.strictEqual(setTimeout.secondCall.args[1], 1000);
+
+      const error = new Error('File is being written');
+      readFile.rejects(error);
+      await setTimeout.secondCall.args[0]();
+      assert.calledOnceWith(onError, [error]);
+    }));
+
+    it('Cancels a running analysis when the build changes again', sinonTest(async (sinon) => {
+      const thirdBuild = createJar({ 'com/example/A.class': 20, 'com/example/B.class': 3 });
+      sinon.stub(dependencies, 'readFile')
+        .onFirstCall().resolves(firstBuild)
+        .onSecondCall().resolves(secondBuild)
+        .onThirdCall().resolves(thirdBuild);
+      const watchFile: SinonStub = sinon.stub(dependencies, 'watchFile');
+      const setTimeout: SinonStub = sinon.stub(dependencies, 'setTimeout');
+      const { analyses, complete } = stubAnalysis(sinon);
+      const writeTests = sinon.stub(components, 'writeTests').resolves(['A.java']);
+      const watcher = new WatchAnalysis(apiUrl, buildPath, { outputTests: outputTests });
+      await watcher.start();
+
+      const listener = watchFile.firstCall.args[2];
+      listener({ mtimeMs: 2, size: 1 }, { mtimeMs: 1, size: 1 });
+      const first = setTimeout.firstCall.args[0]();
+      await flush();
+      listener({ mtimeMs: 3, size: 1 }, { mtimeMs: 2, size: 1 });
+      await setTimeout.secondCall.args[0]();  // Returns once the first analysis is canceled
+      assert.calledOnce(analyses[0].stopPolling);
+      assert.calledOnce(analyses[0].cancel);
+
+      await complete();
+      await complete();
+      await first;
+      assert.strictEqual(analyses.length, 2);
+      assert.deepStrictEqual(analyses[1].run.firstCall.args[1].entryPointsInclude, ['com.example.A']);
+      assert.calledOnceStartingWith(writeTests, [outputTests]);
+      assert.strictEqual(watcher.baseline && watcher.baseline.jar, thirdBuild);
+    }));
+
+    it('Stops watching, and cancels the running analysis', sinonTest(async (sinon) => {
+      sinon.stub(dependencies, 'readFile')
+        .onFirstCall().resolves(firstBuild)
+        .onSecondCall().resolves(secondBuild);
+      const watchFile: SinonStub = sinon.stub(dependencies, 'watchFile');
+      const unwatchFile = sinon.stub(dependencies, 'unwatchFile');
+      const { analyses, complete } = stubAnalysis(sinon);
+      const writeTests = sinon.stub(components, 'writeTests');
+      const watcher = new WatchAnalysis(apiUrl, buildPath, { outputTests: outputTests });
+      await watcher.start();
+
+      const analyzed = watcher.analyzeChanges();
+      await flush();
+      await watcher.stop();
+      assert.calledOnceWith(unwatchFile, [buildPath, watchFile.firstCall.args[2]]);
+      assert.calledOnce(analyses[0].cancel);
+      await complete();
+      await analyzed;
+      assert.notCalled(writeTests);
+      assert.strictEqual(watcher.baseline && watcher.baseline.jar, firstBuild);
+    }));
+  });
+});
@@ -1,13 +1,18 @@
 // Copyright 2019 Diffblue Limited. All Rights Reserved.
 
+import axios from 'axios';
 import { clone } from 'lodash';
-import { assert as sinonAssert } from 'sinon';
+import { assert as sinonAssert, match } from 'sinon';
 
 import { WriterError, WriterErrorCode } from '../../src/errors';
+import Instrumentation from '../../src/instrumentation';
+import { ResultPrioritizer } from '../../src/prioritizeResults';
+import ResultsStore from '../../src/resultsStore';
+import SymbolTable from '../../src/symbolTable';
 import assert from '../../src/utils/assertExtra';
 import sinonTestFactory from '../../src/utils/sinonTest';
 import TestError from '../../src/utils/TestError';
-import writeTests, { components, dependencies } from '../../src/writeTests';
+import writeTests, { components, dependencies, streamingThreshold } from '../../src/writeTests';
 
 const sinonTest = sinonTestFactory();
 
@@ -37,6 +42,7 @@ const sampleResultFilePath = `${sampleResultDirPath}/TicTacToeTest.java`;
 const otherResultDirPath = `${testDirPath}/com/diffblue/other`;
 const otherResultFilePath = `${otherResultDirPath}/OtherClassTest.java`;
 const enoentError = new TestError('File not found', 'ENOENT');
+const anySymbolTable = match.instanceOf(SymbolTable);
 
 describe('writeTests', () => {
   it('Can write tests to new files', sinonTest(async (sinon) => {
@@ -52,11 +58,11 @@ describe('writeTests', () => {
     sinonAssert.calledWithExactly(mkdirp, sampleResultDirPath);
     sinonAssert.calledWithExactly(mkdirp, otherResultDirPath);
     sinonAssert.calledTwice(readFile);
-    sinonAssert.calledWithExactly(readFile, sampleResultFilePath);
-    sinonAssert.calledWithExactly(readFile, otherResultFilePath);
+    sinonAssert.calledWithExactly(readFile, sampleResultFilePath, 'utf8');
+    sinonAssert.calledWithExactly(readFile, otherResultFilePath, 'utf8');
     sinonAssert.calledTwice(generateTestClass);
-    sinonAssert.calledWithExactly(generateTestClass, [sampleResult]);
-    sinonAssert.calledWithExactly(generateTestClass, [otherResult]);
+    sinonAssert.calledWithExactly(generateTestClass, [sampleResult], anySymbolTable);
+    sinonAssert.calledWithExactly(generateTestClass, [otherResult], anySymbolTable);
     sinonAssert.calledTwice(writeFile);
     sinonAssert.calledWithExactly(writeFile, sampleResultFilePath, 'test-class');
     sinonAssert.calledWithExactly(writeFile, otherResultFilePath, 'test-class');
@@ -75,11 +81,11 @@ describe('writeTests', () => {
     sinonAssert.calledWithExactly(mkdirp, sampleResultDirPath);
     sinonAssert.calledWithExactly(mkdirp, otherResultDirPath);
     sinonAssert.calledTwice(readFile);
-    sinonAssert.calledWithExactly(readFile, sampleResultFilePath);
-    sinonAssert.calledWithExactly(readFile, otherResultFilePath);
+    sinonAssert.calledWithExactly(readFile, sampleResultFilePath, 'utf8');
+    sinonAssert.calledWithExactly(readFile, otherResultFilePath, 'utf8');
     sinonAssert.calledTwice(mergeIntoTestClass);
-    sinonAssert.calledWithExactly(mergeIntoTestClass, 'existing-test-class', [sampleResult]);
-    sinonAssert.calledWithExactly(mergeIntoTestClass, 'existing-test-class', [otherResult]);
+    sinonAssert.calledWithExactly(mergeIntoTestClass, 'existing-test-class', [sampleResult], anySymbolTable);
+    sinonAssert.calledWithExactly(mergeIntoTestClass, 'existing-test-class', [otherResult], anySymbolTable);
     sinonAssert.calledTwice(writeFile);
     sinonAssert.calledWithExactly(writeFile, sampleResultFilePath, 'test-class');
     sinonAssert.calledWithExactly(writeFile, otherResultFilePath, 'test-class');
@@ -101,9 +107,9 @@ describe('writeTests', () => {
     sinonAssert.calledWithExactly(mkdirp, testDirPath);
     sinonAssert.calledWithExactly(mkdirp, sampleResultDirPath);
     sinonAssert.calledOnce(readFile);
-    sinonAssert.calledWithExactly(readFile, sampleResultFilePath);
+    sinonAssert.calledWithExactly(readFile, sampleResultFilePath, 'utf8');
     sinonAssert.calledOnce(generateTestClass);
-    sinonAssert.calledWithExactly(generateTestClass, [sampleResult]);
+    sinonAssert.calledWithExactly(generateTestClass, [sampleResult], anySymbolTable);
     sinonAssert.calledOnce(writeFile);
     sinonAssert.calledWithExactly(writeFile, sampleResultFilePath, 'test-class');
   }));
@@ -124,11 +130,11 @@ describe('writeTests', () => {
     sinonAssert.calledWithExactly(mkdirp, sampleResultDirPath);
     sinonAssert.calledWithExactly(mkdirp, otherResultDirPath);
     sinonAssert.calledTwice(readFile);
-    sinonAssert.calledWithExactly(readFile, sampleResultFilePath);
-    sinonAssert.calledWithExactly(readFile, similarResultFilePath);
+    sinonAssert.calledWithExactly(readFile, sampleResultFilePath, 'utf8');
+    sinonAssert.calledWithExactly(readFile, similarResultFilePath, 'utf8');
     sinonAssert.calledTwice(generateTestClass);
-    sinonAssert.calledWithExactly(generateTestClass, [sampleResult]);
-    sinonAssert.calledWithExactly(generateTestClass, [similarResult]);
+    sinonAssert.calledWithExactly(generateTestClass, [sampleResult], anySymbolTable);
+    sinonAssert.calledWithExactly(generateTestClass, [similarResult], anySymbolTable);
     sinonAssert.calledTwice(writeFile);
     sinonAssert.calledWithExactly(writeFile, sampleResultFilePath, 'test-class');
     sinonAssert.calledWithExactly(writeFile, similarResultFilePath, 'test-class');
@@ -162,7 +168,7 @@ describe('writeTests', () => {
     sinonAssert.calledWithExactly(mkdirp, testDirPath);
     sinonAssert.calledWithExactly(mkdirp, sampleResultDirPath);
     sinonAssert.calledOnce(readFile);
-    sinonAssert.calledWithExactly(readFile, sampleResultFilePath);
+    sinonAssert.calledWithExactly(readFile, sampleResultFilePath, 'utf8');
     sinonAssert.notCalled(generateTestClass);
     sinonAssert.notCalled(writeFile);
   }));
@@ -188,9 +194,9 @@ describe('writeTests', () => {
     sinonAssert.calledWithExactly(mkdirp, testDirPath);
     sinonAssert.calledWithExactly(mkdirp, sampleResultDirPath);
     sinonAssert.calledOnce(readFile);
-    sinonAssert.calledWithExactly(readFile, sampleResultFilePath);
+    sinonAssert.calledWithExactly(readFile, sampleResultFilePath, 'utf8');
     sinonAssert.calledOnce(generateTestClass);
-    sinonAssert.calledWithExactly(generateTestClass, [sampleResult]);
+    sinonAssert.calledWithExactly(generateTestClass, [sampleResult], anySymbolTable);
     sinonAssert.notCalled(writeFile);
   }));
 
@@ -215,9 +221,9 @@ describe('writeTests', () => {
     sinonAssert.calledWithExactly(mkdirp, testDirPath);
     sinonAssert.calledWithExactly(mkdirp, sampleResultDirPath);
     sinonAssert.calledOnce(readFile);
-    sinonAssert.calledWithExactly(readFile, sampleResultFilePath);
+    sinonAssert.calledWithExactly(readFile, sampleResultFilePath, 'utf8');
     sinonAssert.calledOnce(mergeIntoTestClass);
-    sinonAssert.calledWithExactly(mergeIntoTestClass, 'existing-test-class', [sampleResult]);
+    sinonAssert.calledWithExactly(mergeIntoTestClass, 'existing-test-class', [sampleResult], anySymbolTable);
     sinonAssert.notCalled(writeFile);
   }));
 
@@ -242,9 +248,9 @@ describe('writeTests', () => {
     sinonAssert.calledWithExactly(mkdirp, testDirPath);
     sinonAssert.calledWithExactly(mkdirp, sampleResultDirPath);
     sinonAssert.calledOnce(readFile);
-    sinonAssert.calledWithExactly(readFile, sampleResultFilePath);
+    sinonAssert.calledWithExactly(readFile, sampleResultFilePath, 'utf8');
     sinonAssert.calledOnce(generateTestClass);
-    sinonAssert.calledWithExactly(generateTestClass, [sampleResult]);
+    sinonAssert.calledWithExactly(generateTestClass, [sampleResult], anySymbolTable);
     sinonAssert.calledOnce(writeFile);
     sinonAssert.calledWithExactly(writeFile, sampleResultFilePath, 'test-class');
   }));
@@ -270,9 +276,9 @@ describe('writeTests', () => {
     sinonAssert.calledWithExactly(mkdirp, testDirPath);
     sinonAssert.calledWithExactly(mkdirp, sampleResultDirPath);
     sinonAssert.calledOnce(readFile);
-    sinonAssert.calledWithExactly(readFile, sampleResultFilePath);
+    sinonAssert.calledWithExactly(readFile, sampleResultFilePath, 'utf8');
     sinonAssert.calledOnce(mergeIntoTestClass);
-    sinonAssert.calledWithExactly(mergeIntoTestClass, 'existing-test-class', [sampleResult]);
+    sinonAssert.calledWithExactly(mergeIntoTestClass, 'existing-test-class', [sampleResult], anySymbolTable);
     sinonAssert.calledOnce(writeFile);
     sinonAssert.calledWithExactly(writeFile, sampleResultFilePath, 'test-class');
   }));
@@ -349,12 +355,117 @@ describe('writeTests', () => {
     sinonAssert.calledWithExactly(mkdirp, sampleResultDirPath);
     sinonAssert.calledWithExactly(mkdirp, otherResultDirPath);
     sinonAssert.calledTwice(readFile);
-    sinonAssert.calledWithExactly(readFile, sampleResultFilePath);
-    sinonAssert.calledWithExactly(readFile, otherResultFilePath);
+    sinonAssert.calledWithExactly(readFile, sampleResultFilePath, 'utf8');
+    sinonAssert.calledWithExactly(readFile, otherResultFilePath, 'utf8');
     sinonAssert.calledTwice(mergeIntoTestClass);
-    sinonAssert.calledWithExactly(mergeIntoTestClass, 'existing-test-class', [sampleResult]);
-    sinonAssert.calledWithExactly(mergeIntoTestClass, 'existing-test-class', [otherResult]);
+    sinonAssert.calledWithExactly(mergeIntoTestClass, 'existing-test-class', [sampleResult], anySymbolTable);
+    sinonAssert.calledWithExactly(mergeIntoTestClass, 'existing-test-class', [otherResult], anySymbolTable);
     sinonAssert.calledOnce(writeFile);
     sinonAssert.calledWithExactly(writeFile, sampleResultFilePath, 'test-class');
   }));
+
+  it('Reports each test file written when the instrumentation option is set', sinonTest(async (sinon) => {
+    sinon.stub(dependencies, 'mkdirp').resolves();
+    sinon.stub(dependencies, 'writeFile').resolves();
+    sinon.stub(components, 'generateTestClass').returns('test-class');
+    sinon.stub(dependencies, 'readFile').rejects(enoentError);
+    const instrumentation = new Instrumentation();
+    const onWrite = sinon.spy();
+    instrumentation.onWrite(onWrite);
+    await writeTests(testDirPath, [sampleResult, sampleResult], { instrumentation: instrumentation });
+    assert.calledOnce(onWrite);
+    const event = onWrite.getCall(0).args[0];
+    assert.strictEqual(event.sourceFilePath, sampleResult.sourceFilePath);
+    assert.strictEqual(event.operation, 'generate');
+    assert.strictEqual(event.results, 2);
+    assert.strictEqual(event.bytes, 'test-class'.length);
+  }));
+
+  it('Reports merging into an existing test file, even if it is empty', sinonTest(async (sinon) => {
+    sinon.stub(dependencies, 'mkdirp').resolves();
+    sinon.stub(dependencies, 'writeFile').resolves();
+    const mergeIntoTestClass = sinon.stub(components, 'mergeIntoTestClass').resolves('test-class');
+    const readFile = sinon.stub(dependencies, 'readFile').resolves('');
+    const instrumentation = new Instrumentation();
+    const onWrite = sinon.spy();
+    instrumentation.onWrite(onWrite);
+    await writeTests(testDirPath, [sampleResult], { instrumentation: instrumentation });
+    sinonAssert.calledWithExactly(readFile, sampleResultFilePath, 'utf8');
+    sinonAssert.calledWithExactly(mergeIntoTestClass, '', [sampleResult], anySymbolTable);
+    assert.calledOnce(onWrite);
+    assert.strictEqual(onWrite.getCall(0).args[0].operation, 'merge');
+  }));
+
+  it('Writes the highest priority classes first, within their budget', sinonTest(async (sinon) => {
+    sinon.stub(dependencies, 'mkdirp').resolves();
+    sinon.stub(dependencies, 'writeFile').resolves();
+    const generateTestClass = sinon.stub(components, 'generateTestClass').returns('test-class');
+    sinon.stub(dependencies, 'readFile').rejects(enoentError);
+    const lowResult = { ...sampleResult, testId: 'low', tags: ['one_star'] };
+    const highResult = { ...sampleResult, testId: 'high', tags: ['four_star'] };
+    const bestResult = { ...otherResult, tags: ['five_star'] };
+    const prioritizer = new ResultPrioritizer({ classBudget: 40 });
+    const returnValue = await writeTests(testDirPath, [lowResult, highResult, bestResult], {
+      concurrency: 1,
+      prioritizer: prioritizer,
+    });
+    assert.deepStrictEqual(returnValue, [otherResultFilePath, sampleResultFilePath]);
+    assert.calledStartingWith(generateTestClass, [[[bestResult]], [[highResult]]]);
+    assert.strictEqual(prioritizer.dropped, 1);
+  }));
+
+  it('Streams large test classes to disk', sinonTest(async (sinon) => {
+    sinon.stub(dependencies, 'mkdirp').resolves();
+    sinon.stub(dependencies, 'readFile').rejects(enoentError);
+    const writeFile = sinon.stub(dependencies, 'writeFile').resolves();
+    const writeInChunks = sinon.stub(components, 'writeInChunks').resolves();
+    const largeTestClass = 'x'.repeat(streamingThreshold);
+    sinon.stub(components, 'generateTestClass').returns(largeTestClass);
+    const returnValue = await writeTests(testDirPath, [sampleResult]);
+    assert.deepStrictEqual(returnValue, [sampleResultFilePath]);
+    assert.calledOnceWith(writeInChunks, [sampleResultFilePath, largeTestClass]);
+    assert.notCalled(writeFile);
+  }));
+
+  it('Reads results from a results store one class at a time', sinonTest(async (sinon) => {
+    sinon.stub(dependencies, 'mkdirp').resolves();
+    sinon.stub(dependencies, 'writeFile').resolves();
+    sinon.stub(dependencies, 'readFile').rejects(enoentError);
+    const generateTestClass = sinon.stub(components, 'generateTestClass').returns('test-class');
+    const store = new ResultsStore();
+    await store.add([sampleResult, otherResult, sampleResult]);
+    const getGroup = sinon.spy(store, 'getGroup');
+    const returnValue = await writeTests(testDirPath, store, { concurrency: 1, filter: ['sample'] });
+    assert.deepStrictEqual(returnValue, [sampleResultFilePath]);
+    assert.calledWith(getGroup, [[sampleResult.sourceFilePath], [otherResult.sourceFilePath]]);
+    assert.calledOnceStartingWith(generateTestClass, [[sampleResult, sampleResult]]);
+  }));
+
+  it('Stops writing tests once the cancelToken is canceled', sinonTest(async (sinon) => {
+    sinon.stub(dependencies, 'mkdirp').resolves();
+    sinon.stub(dependencies, 'readFile').rejects(enoentError);
+    const writeFile = sinon.stub(dependencies, 'writeFile').resolves();
+    const cancellation = axios.CancelToken.source();
+    const generateTestClass = sinon.stub(components, 'generateTestClass').callsFake(() => {
+      cancellation.cancel('Analysis canceled');
+      return 'test-class';
+    });
+    await assert.rejects(
+      writeTests(testDirPath, [sampleResult, otherResult], { concurrency: 1, cancelToken: cancellation.token }),
+      (error: Error) => axios.isCancel(error),
+    );
+    assert.calledOnce(generateTestClass);
+    assert.notCalled(writeFile);
+  }));
+
+  it('Writes nothing if the cancelToken was already canceled', sinonTest(async (sinon) => {
+    const mkdirp = sinon.stub(dependencies, 'mkdirp').resolves();
+    const cancellation = axios.CancelToken.source();
+    cancellation.cancel('Analysis canceled');
+    await assert.rejects(
+      writeTests(testDirPath, [sampleResult], { cancelToken: cancellation.token }),
+      (error: Error) => axios.isCancel(error),
+    );
+    assert.notCalled(mkdirp);
+  }));
 });